@@ -1,30 +1,70 @@
 package ldf.compiler;
 
+import com.google.common.base.Predicate;
 import ldf.java_cup.runtime.LocationAwareEntity;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static java.text.MessageFormat.format;
 
 /**
- * A class for collecting (and formatting) error messages reported by
+ * <p>A class for collecting (and formatting) error messages reported by
  * various parts of the compiler. The messages are sorted by their
- * filename and position information (when possible).
+ * filename and position information (when possible), so the order in
+ * which they are reported (e.g. from several threads) doesn't matter.
+ * </p>
+ * <p>Reporting a message doesn't take any lock: the messages are appended
+ * to one of several lock-free segments (picked by thread id, so threads
+ * rarely share one), and are only sorted when they are asked for ({@link
+ * #getMessages}); the sorted set is kept until the next change. The
+ * messages are only formatted when they are printed. The {@link Sink}s
+ * added to the log are given the messages as soon as they are reported.
+ * </p>
  *
  * @author Cristian Harja
  */
+@ThreadSafe
 public class CompilerLog {
 
-    private boolean hasErrors;
-    private SortedSet<Entry> messages;
-    private SortedSet<Entry> readOnlyMessages;
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    // a power of two, greater than the number of processors
+    private static final int SEGMENT_COUNT = Integer.highestOneBit(
+            Runtime.getRuntime().availableProcessors()
+    ) * 2;
+
+    // the messages (each segment is created when first needed)
+    private final AtomicReferenceArray<Queue<Entry>> segments
+            = new AtomicReferenceArray<Queue<Entry>>(SEGMENT_COUNT);
+
+    // incremented after messages are reported or removed
+    private final AtomicLong version = new AtomicLong();
+
+    private final AtomicInteger errorCount = new AtomicInteger();
+
+    private final List<Sink> sinks = new CopyOnWriteArrayList<Sink>();
+
+    private volatile Snapshot snapshot = new Snapshot(
+            0, Collections.unmodifiableSortedSet(
+                    new TreeSet<Entry>(ENTRY_COMPARATOR)
+            )
+    );
 
     public static final Comparator<Entry> ENTRY_COMPARATOR
             = new Comparator<Entry>() {
@@ -41,28 +81,30 @@ public class CompilerLog {
 
             x1 = (o1.pos == null) ? -1 : o1.pos.getOffsetL();
             x2 = (o2.pos == null) ? -1 : o2.pos.getOffsetL();
-            if (x1 != x2) return x1 - x2;
+            if (x1 != x2) return x1 < x2 ? -1 : +1;
 
             if (x1 != -1) {
                 x1 = o1.pos.getOffsetR();
                 x2 = o2.pos.getOffsetR();
-                if (x1 != x2) return x1 - x2;
+                if (x1 != x2) return x1 < x2 ? -1 : +1;
             }
 
-            x1 = o1.hashCode();
-            x2 = o2.hashCode();
+            x1 = o1.type.compareTo(o2.type);
+            if (x1 != 0) return x1;
+
+            x1 = o1.msgFormat.compareTo(o2.msgFormat);
+            if (x1 != 0) return x1;
 
-            return x1 - x2;
+            // distinct entries are never equal (or one would be lost)
+            return o1.seq < o2.seq ? -1 : o1.seq > o2.seq ? +1 : 0;
         }
     };
 
     public CompilerLog() {
-        messages = new TreeSet<Entry>(ENTRY_COMPARATOR);
-        readOnlyMessages = Collections.unmodifiableSortedSet(messages);
     }
 
     public void printLog(PrintStream out) {
-        for (Entry e : messages) {
+        for (Entry e : getMessages()) {
             out.println(e);
         }
     }
@@ -74,26 +116,139 @@ public class CompilerLog {
             @Nonnull String format,
             @Nonnull Object[] args
     ) {
-        Entry res = new Entry();
-        res.fileName = fileName;
-        res.pos = pos;
-        res.type = type;
-        res.msgFormat = format;
-        res.msgArgs = args;
+        append(new Entry(type, fileName, pos, format, args));
+    }
+
+    private void append(Entry e) {
+        localSegment().add(e);
+        if (e.type == EntryType.ERROR) {
+            errorCount.incrementAndGet();
+        }
+        version.incrementAndGet();
+        for (Sink sink : sinks) {
+            sink.messageLogged(e);
+        }
+    }
+
+    private Queue<Entry> localSegment() {
+        int i = (int) Thread.currentThread().getId() & (SEGMENT_COUNT - 1);
+        Queue<Entry> segment = segments.get(i);
+        if (segment == null) {
+            segments.compareAndSet(i, null, new ConcurrentLinkedQueue<Entry>());
+            segment = segments.get(i);
+        }
+        return segment;
+    }
 
-        messages.add(res);
+    /**
+     * Adds all the messages of another log (e.g. one used as a buffer by
+     * a single thread) to this one.
+     */
+    public void addAll(@Nonnull CompilerLog other) {
+        for (Entry e : other.getMessages()) {
+            append(e);
+        }
+    }
 
-        if (type == EntryType.ERROR) {
-            hasErrors = true;
+    /**
+     * Removes the messages matching the given predicate (e.g. those which
+     * are about to be reported again, after recompiling a file).
+     */
+    public synchronized void removeMessages(@Nonnull Predicate<Entry> p) {
+        boolean changed = false;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            Queue<Entry> segment = segments.get(i);
+            if (segment == null) continue;
+            Iterator<Entry> it = segment.iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (p.apply(e)) {
+                    it.remove();
+                    changed = true;
+                    if (e.type == EntryType.ERROR) {
+                        errorCount.decrementAndGet();
+                    }
+                }
+            }
         }
+        if (changed) {
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds a sink, which will be given the messages reported from now on
+     * (on the threads reporting them).
+     */
+    public void addSink(@Nonnull Sink sink) {
+        sinks.add(sink);
     }
 
+    public void removeSink(@Nonnull Sink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * The messages in the log, sorted (see {@link #ENTRY_COMPARATOR}).
+     * The returned set doesn't change when new messages are reported.
+     */
     public SortedSet<Entry> getMessages() {
-        return readOnlyMessages;
+        // (changes made while copying will have a later version)
+        long v = version.get();
+        Snapshot current = snapshot;
+        if (current.version == v) {
+            return current.messages;
+        }
+
+        TreeSet<Entry> sorted = new TreeSet<Entry>(ENTRY_COMPARATOR);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            Queue<Entry> segment = segments.get(i);
+            if (segment != null) {
+                sorted.addAll(segment);
+            }
+        }
+        current = new Snapshot(v, Collections.unmodifiableSortedSet(sorted));
+        snapshot = current;
+        return current.messages;
     }
 
     public boolean hasErrors() {
-        return hasErrors;
+        return errorCount.get() > 0;
+    }
+
+    /**
+     * Receives the messages reported to a log, as they are reported.
+     * Called by the threads reporting the messages, possibly several at
+     * a time.
+     */
+    public interface Sink {
+        void messageLogged(@Nonnull Entry e);
+    }
+
+    /**
+     * A sink which prints the messages to the given stream.
+     */
+    @Nonnull
+    public static Sink printingSink(final @Nonnull PrintStream out) {
+        return new Sink() {
+            @Override
+            public void messageLogged(@Nonnull Entry e) {
+                String line = e.toString();
+                synchronized (out) {
+                    out.println(line);
+                }
+            }
+        };
+    }
+
+    private static final class Snapshot {
+        final long version;
+        final SortedSet<Entry> messages;
+
+        Snapshot(long version, SortedSet<Entry> messages) {
+            this.version = version;
+            this.messages = messages;
+        }
     }
 
     private static void formatLocation(
@@ -130,23 +285,39 @@ public class CompilerLog {
     @SuppressWarnings("unused")
     public static class Entry {
         @Nullable
-        private LocationAwareEntity pos;
+        private final LocationAwareEntity pos;
 
         @Nonnull
-        private EntryType type;
+        private final EntryType type;
 
         @Nullable
-        private String fileName;
+        private final String fileName;
 
         @Nonnull
-        private String msgFormat;
+        private final String msgFormat;
 
         @Nonnull
-        private Object[] msgArgs;
-
-        private String formattedLocation;
-
-        private String formattedMessage;
+        private final Object[] msgArgs;
+
+        private final long seq = SEQUENCE.getAndIncrement();
+
+        private volatile String formattedLocation;
+
+        private volatile String formattedMessage;
+
+        private Entry(
+                @Nonnull EntryType type,
+                @Nullable String fileName,
+                @Nullable LocationAwareEntity pos,
+                @Nonnull String msgFormat,
+                @Nonnull Object[] msgArgs
+        ) {
+            this.type = type;
+            this.fileName = fileName;
+            this.pos = pos;
+            this.msgFormat = msgFormat;
+            this.msgArgs = msgArgs;
+        }
 
         @Nullable
         public LocationAwareEntity getPosition() {
@@ -191,11 +362,11 @@ public class CompilerLog {
 
         public String getFormattedMessage() {
             if (formattedMessage != null) {
-                return formattedLocation;
+                return formattedMessage;
             }
             synchronized (this) {
                 if (formattedMessage != null) {
-                    return formattedLocation;
+                    return formattedMessage;
                 }
                 formattedMessage = format(msgFormat, msgArgs);
             }
@@ -1,19 +1,32 @@
 package ldf.compiler;
 
+import com.google.common.base.Predicate;
+import com.google.common.collect.Multimap;
+import ldf.compiler.ast.AstIdentifier;
+import ldf.compiler.ast.AstNode;
+import ldf.compiler.ast.AstSourceFile;
 import ldf.compiler.context.CompilerContext;
 import ldf.compiler.context.ContextImpl;
+import ldf.compiler.context.ParserContext;
 import ldf.compiler.phases.*;
 import ldf.compiler.semantics.symbols.NsNode;
+import ldf.compiler.semantics.symbols.NsNodeType;
 import ldf.compiler.semantics.symbols.Scope;
 import ldf.compiler.semantics.types.TypeEnv;
+import ldf.compiler.util.DependencyGraph;
 import ldf.compiler.util.ParserGeneratorBase;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * @author Cristian Harja
@@ -29,6 +42,12 @@ public final class LdfCompiler extends ContextImpl
 
     final Map<File, LdfParser> parsedFiles;
 
+    // which files does each file depend on (via imports, references)
+    final DependencyGraph<File> dependencies;
+
+    // messages reported by the checks which run on the whole namespace
+    private final Set<CompilerLog.Entry> globalCheckMessages;
+
     private boolean attemptedCompile;
     private boolean parsed;
     private boolean analyzed;
@@ -36,12 +55,22 @@ public final class LdfCompiler extends ContextImpl
 
     ParserGeneratorBase parserGen;
 
+    final ExecutorService parseExecutor;
+    final ExecutorService analysisExecutor;
+
+    final ParseCache parseCache;
+
     public LdfCompiler(LdfCompilerSettings settings) throws Exception {
-        sources = settings.sources;
+        sources = new ArrayList<File>(settings.sources);
         typeEnv = settings.typeEnv.newInstance();
         globalNS = NsNode.initGlobalNS();
-        globalScope = new Scope();
+        globalScope = new Scope(globalNS);
         parserGen = settings.parserGen;
+        parseExecutor = settings.parseExecutor;
+        analysisExecutor = settings.analysisExecutor;
+        parseCache = settings.parseCacheDir != null
+                ? new ParseCache(settings.parseCacheDir)
+                : null;
 
         initLogger(
                 settings.locale,
@@ -50,64 +79,332 @@ public final class LdfCompiler extends ContextImpl
         );
 
         parsedFiles = new TreeMap<File, LdfParser>();
+        dependencies = new DependencyGraph<File>();
+        globalCheckMessages = new HashSet<CompilerLog.Entry>();
     }
 
-    public void analyzeParsedFiles() {
+    public synchronized void analyzeParsedFiles() {
         parseAllFiles();
         if (analyzed) return;
         analyzed = true;
+        analyze(new ArrayList<LdfParser>(parsedFiles.values()));
+    }
 
-        for (LdfParser parser: parsedFiles.values()) {
+    /**
+     * <p>Brings the compiler up to date after some of the source files
+     * have been modified, added or deleted. Only the given files, along
+     * with the files which depend on them (or which previously had
+     * errors) are parsed and analyzed again; the symbols they declared
+     * are first removed from the global namespace.
+     * </p>
+     * <p>Dependencies are recorded after each file is analyzed, by
+     * looking at the symbols which its imports, {@code extends} clauses
+     * and other references resolved into.
+     * </p>
+     *
+     * @param changedFiles files which changed since the previous call
+     */
+    public synchronized void updateFiles(
+            @Nonnull Collection<File> changedFiles
+    ) {
+        for (File f : changedFiles) {
+            if (!sources.contains(f)) {
+                sources.add(f);
+            }
+        }
+        if (!analyzed) {
+            analyzeParsedFiles();
+            return;
+        }
 
-            // create `Scope` objects
-            Phase_InitScopes.initScopes(
-                    this, parser.getAbstractSyntaxTree()
-            );
+        Set<File> affected = getAffectedFiles(changedFiles);
+        invalidateFiles(affected);
 
-            // catalog declared symbols which are visible from the global scope
-            Phase_CollectDeclarations.collectSymbols(
-                    this, parser.getAbstractSyntaxTree()
-            );
+        List<File> reparse = new ArrayList<File>(affected.size());
+        for (File f : affected) {
+            if (f.isFile()) {
+                reparse.add(f);
+            } else {
+                sources.remove(f);
+            }
+        }
+        parseFiles(reparse);
+
+        List<LdfParser> parsers = new ArrayList<LdfParser>(reparse.size());
+        for (File f : reparse) {
+            LdfParser parser = parsedFiles.get(f);
+            if (parser != null) {
+                parsers.add(parser);
+            }
+        }
+
+        attemptedCompile = false;
+        analyze(parsers);
+    }
+
+    /**
+     * Returns the files which need to be compiled again: the changed
+     * files, those which depend on them, and those which had errors
+     * (some of their references might now be resolved; warnings don't
+     * count). Files sharing the same name with any of these are also
+     * included, since compiler messages only refer to files by their
+     * name.
+     */
+    private Set<File> getAffectedFiles(Collection<File> changedFiles) {
+        Set<String> names = new HashSet<String>();
+        for (CompilerLog.Entry e : getLogger().getMessages()) {
+            if (e.getType() == CompilerLog.EntryType.ERROR) {
+                names.add(e.getFileName());
+            }
+        }
+        Set<File> changed = new LinkedHashSet<File>(changedFiles);
+        for (File f : sources) {
+            if (names.contains(f.getName())) {
+                changed.add(f);
+            }
+        }
+
+        Set<File> affected = dependencies.getAffectedItems(changed);
+
+        names.clear();
+        for (File f : affected) {
+            names.add(f.getName());
+        }
+        for (File f : sources) {
+            if (names.contains(f.getName())) {
+                affected.add(f);
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * Forgets everything about the given files: their syntax trees,
+     * dependencies, the symbols they declared and the messages reported
+     * about them (or by the global checks).
+     */
+    private void invalidateFiles(final Set<File> files) {
+        final Set<ParserContext> contexts = new HashSet<ParserContext>();
+        final Set<String> names = new HashSet<String>();
+        for (File f : files) {
+            LdfParser parser = parsedFiles.remove(f);
+            if (parser != null) {
+                contexts.add(parser);
+            }
+            dependencies.remove(f);
+            names.add(f.getName());
         }
 
+        getLogger().removeMessages(new Predicate<CompilerLog.Entry>() {
+            @Override
+            public boolean apply(@Nullable CompilerLog.Entry input) {
+                assert input != null;
+                return globalCheckMessages.contains(input) ||
+                        names.contains(input.getFileName());
+            }
+        });
+        globalCheckMessages.clear();
+
+        removeSymbols(globalNS, contexts);
+    }
+
+    /**
+     * Removes the symbols declared by the given parsers from the
+     * namespace (as well as the packages left empty because of that).
+     */
+    private static void removeSymbols(
+            NsNode nsNode,
+            Set<ParserContext> contexts
+    ) {
+        for (Multimap<NsNodeType, NsNode> mm :
+                nsNode.getChildren().values()) {
+            for (NsNode n : new ArrayList<NsNode>(mm.values())) {
+                if (n.getType() == NsNodeType.PACKAGE) {
+                    removeSymbols(n, contexts);
+                    AstIdentifier id = n.getIdentifier();
+                    if (!n.hasChildren() && (id == null ||
+                            contexts.contains(id.getParserContext()))) {
+                        nsNode.removeChild(n);
+                    }
+                    continue;
+                }
+                AstNode astNode = n.getAstNode();
+                if (astNode != null &&
+                        contexts.contains(astNode.getParserContext())) {
+                    nsNode.removeChild(n);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs all the analysis phases on the given files.
+     */
+    private void analyze(final Collection<LdfParser> parsers) {
+
+        // create `Scope` objects; catalog declared symbols which are
+        // visible from the global scope
+        forEachFile(parsers, new FilePhase() {
+            @Override
+            public void run(AstSourceFile file) {
+                Phase_InitScopes.initScopes(LdfCompiler.this, file);
+                Phase_CollectDeclarations.collectSymbols(
+                        LdfCompiler.this, file
+                );
+            }
+        });
+
+        Set<CompilerLog.Entry> before;
+        before = new HashSet<CompilerLog.Entry>(getLogger().getMessages());
+
         // report clashing / duplicate declarations
         Check_DeclaredSymbols.checkSymbols(globalNS);
 
         // populate scopes with imported/declared symbols
-        for (LdfParser parser: parsedFiles.values()) {
-            Phase_ResolveImports.resolveImports(
-                    this, parser.getAbstractSyntaxTree()
-            );
-        }
+        forEachFile(parsers, new FilePhase() {
+            @Override
+            public void run(AstSourceFile file) {
+                Phase_ResolveImports.resolveImports(LdfCompiler.this, file);
+            }
+        });
 
         // resolve the remaining references in the code
-        for (LdfParser parser: parsedFiles.values()) {
-            Phase_ResolveReferences.resolveReferences(
-                    parser.getAbstractSyntaxTree()
-            );
-        }
+        forEachFile(parsers, new FilePhase() {
+            @Override
+            public void run(AstSourceFile file) {
+                Phase_ResolveReferences.resolveReferences(file);
+            }
+        });
 
         // report cyclic dependencies in grammars
         Check_ExtendsCycles.checkExtends(globalNS);
 
-        // resolve type references to `DataType` objects
-        for (LdfParser parser: parsedFiles.values()) {
-            Phase_InitTypes.initTypes(
-                    this, parser.getAbstractSyntaxTree()
-            );
+        // these two checks run on all the files, so their messages need
+        // to be discarded before running them again
+        for (CompilerLog.Entry e : getLogger().getMessages()) {
+            if (!before.contains(e)) {
+                globalCheckMessages.add(e);
+            }
         }
 
+        // resolve type references to `DataType` objects
+        forEachFile(parsers, new FilePhase() {
+            @Override
+            public void run(AstSourceFile file) {
+                Phase_InitTypes.initTypes(LdfCompiler.this, file);
+            }
+        });
+
         // initialize BNF symbols and their types
-        for (LdfParser parser: parsedFiles.values()) {
-            Phase_InitBnfSymbol.initBnfSymbol(
-                    this, parser.getAbstractSyntaxTree()
-            );
-        }
+        forEachFile(parsers, new FilePhase() {
+            @Override
+            public void run(AstSourceFile file) {
+                Phase_InitBnfSymbol.initBnfSymbol(LdfCompiler.this, file);
+            }
+        });
 
+        recordDependencies(parsers);
 
         success = !getLogger().hasErrors();
     }
 
+    /**
+     * Looks at which symbols have been referenced by each of the given
+     * files, and in which files those symbols have been declared.
+     */
+    private void recordDependencies(Collection<LdfParser> parsers) {
+        Map<ParserContext, File> files = new HashMap<ParserContext, File>();
+        for (Map.Entry<File, LdfParser> e : parsedFiles.entrySet()) {
+            files.put(e.getValue(), e.getKey());
+        }
+
+        for (LdfParser parser : parsers) {
+            Set<File> dependsOn = new HashSet<File>();
+            Iterator<AstNode> it;
+            it = parser.getAbstractSyntaxTree().findAllByDFS();
+            while (it.hasNext()) {
+                NsNode n = it.next().getReferencedNsNode();
+                if (n == null) continue;
+                if (n.getType() == NsNodeType.PACKAGE) {
+                    // depends on everything declared in the package
+                    for (Multimap<NsNodeType, NsNode> mm :
+                            n.getChildren().values()) {
+                        for (NsNode child : mm.values()) {
+                            addDeclaringFile(dependsOn, child, files);
+                        }
+                    }
+                } else {
+                    addDeclaringFile(dependsOn, n, files);
+                }
+            }
+            dependencies.setDependencies(files.get(parser), dependsOn);
+        }
+    }
+
+    private static void addDeclaringFile(
+            Set<File> dependsOn,
+            NsNode n,
+            Map<ParserContext, File> files
+    ) {
+        AstNode astNode = n.getAstNode();
+        if (astNode == null) return;
+        File f = files.get(astNode.getParserContext());
+        if (f != null) {
+            dependsOn.add(f);
+        }
+    }
+
+    /**
+     * A compiler phase which processes one source file at a time.
+     */
+    private interface FilePhase {
+        void run(AstSourceFile file);
+    }
+
+    /**
+     * Runs a phase on the given files. When an {@link
+     * #analysisExecutor} is configured, the files are processed in
+     * parallel, but this method still only returns after all of them are
+     * done (acting as a barrier between consecutive phases).
+     */
+    private void forEachFile(
+            Collection<LdfParser> parsers,
+            final FilePhase phase
+    ) {
+        if (analysisExecutor == null) {
+            for (LdfParser parser : parsers) {
+                phase.run(parser.getAbstractSyntaxTree());
+            }
+            return;
+        }
+
+        List<Future<?>> results;
+        results = new ArrayList<Future<?>>(parsers.size());
+        for (final LdfParser parser : parsers) {
+            results.add(analysisExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    phase.run(parser.getAbstractSyntaxTree());
+                }
+            }));
+        }
+
+        // wait for all tasks, even if some of them fail
+        Throwable failure = null;
+        for (Future<?> result : results) {
+            try {
+                await(result);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure != null) {
+            rethrow(failure);
+        }
+    }
+
     public void generateParser(String grammarName) throws Exception {
         analyzeParsedFiles();
         if (!success) return;
@@ -139,7 +436,15 @@ public final class LdfCompiler extends ContextImpl
     public synchronized void parseAllFiles() {
         if (parsed) return;
         parsed = true;
-        for (File f : sources) {
+        parseFiles(sources);
+    }
+
+    private void parseFiles(Collection<File> files) {
+        if (parseExecutor != null) {
+            parseFilesParallel(files);
+            return;
+        }
+        for (File f : files) {
             if (f.isFile()) {
                 try {
                     parseSourceCode(f);
@@ -150,6 +455,76 @@ public final class LdfCompiler extends ContextImpl
         }
     }
 
+    /**
+     * Parses each source file on {@link #parseExecutor}, using a separate
+     * {@link LdfParser} for each one. The results are merged on the
+     * calling thread, in the order they were given in, so the outcome is
+     * the same as that of a sequential run.
+     */
+    private void parseFilesParallel(Collection<File> sources) {
+        List<File> files = new ArrayList<File>(sources.size());
+        List<Future<LdfParser>> results;
+        results = new ArrayList<Future<LdfParser>>(sources.size());
+
+        for (final File f : sources) {
+            if (parsedFiles.containsKey(f) || !f.isFile()) {
+                continue;
+            }
+            files.add(f);
+            results.add(parseExecutor.submit(new Callable<LdfParser>() {
+                @Override
+                public LdfParser call() throws Exception {
+                    return parseFile(f);
+                }
+            }));
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            LdfParser parser = awaitParser(results.get(i));
+            if (parser != null && parser.successful()) {
+                parsedFiles.put(files.get(i), parser);
+            }
+        }
+    }
+
+    /**
+     * Waits for a parse task to complete. Returns {@code null} for the
+     * files which could not be opened (same as in a sequential run) and
+     * re-throws any other failure.
+     */
+    private static LdfParser awaitParser(Future<LdfParser> result) {
+        try {
+            return await(result);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FileNotFoundException ||
+                    cause instanceof SecurityException) {
+                return null;
+            }
+            rethrow(cause);
+            return null;
+        }
+    }
+
+    private static <T> T await(Future<T> result) throws ExecutionException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while compiling", e);
+        }
+    }
+
+    private static void rethrow(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+    }
+
     private LdfParser parseSourceCode(File f) throws FileNotFoundException {
         LdfParser parser;
         parser = parsedFiles.get(f);
@@ -161,16 +536,7 @@ public final class LdfCompiler extends ContextImpl
             if (parser != null) {
                 return parser;
             }
-            LdfParserSettings params = new LdfParserSettings();
-            params.setUseSyntaxTree(false);
-            params.setRecordInput(false);
-            params.setInput(f);
-            params.setLocale(getLocale());
-            params.setLogger(getLogger());
-            params.setI18n(i18n());
-
-            parser = new LdfParser(params);
-            parser.syntaxCheck();
+            parser = parseFile(f);
             if (parser.successful()) {
                 parsedFiles.put(f, parser);
             }
@@ -178,4 +544,62 @@ public final class LdfCompiler extends ContextImpl
         }
     }
 
+    /**
+     * Parses and syntax-checks a file, or loads its syntax tree from the
+     * {@link #parseCache} (if there is one, and it contains the tree).
+     */
+    private LdfParser parseFile(@Nonnull File f)
+            throws FileNotFoundException {
+        LdfParserSettings params = newParserSettings();
+
+        if (parseCache == null) {
+            params.setInput(f);
+            LdfParser parser = new LdfParser(params);
+            parser.syntaxCheck();
+            return parser;
+        }
+
+        byte[] sourceCode;
+        try {
+            sourceCode = ParseCache.readFile(f);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            params.setInput(f);
+            LdfParser parser = new LdfParser(params);
+            parser.syntaxCheck();
+            return parser;
+        }
+
+        String key = parseCache.getKey(sourceCode);
+        AstSourceFile tree = parseCache.load(key);
+        params.overrideFileName(f.getName());
+
+        if (tree != null) {
+            params.setInput(tree);
+            LdfParser parser = new LdfParser(params);
+            parser.syntaxCheck();
+            return parser;
+        }
+
+        // same decoding as that of `FileReader`
+        params.setInput(new String(sourceCode));
+        LdfParser parser = new LdfParser(params);
+        parser.syntaxCheck();
+        if (parser.successful()) {
+            parseCache.store(key, parser.getAbstractSyntaxTree());
+        }
+        return parser;
+    }
+
+    private LdfParserSettings newParserSettings() {
+        LdfParserSettings params = new LdfParserSettings();
+        params.setUseSyntaxTree(false);
+        params.setRecordInput(false);
+        params.setLocale(getLocale());
+        params.setLogger(getLogger());
+        params.setI18n(i18n());
+        return params;
+    }
+
 }
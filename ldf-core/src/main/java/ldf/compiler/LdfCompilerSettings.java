@@ -10,6 +10,7 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Locale;
 import java.util.ResourceBundle;
+import java.util.concurrent.ExecutorService;
 
 /**
  * @author Cristian Harja
@@ -38,6 +39,15 @@ public class LdfCompilerSettings {
     @Nullable
     ResourceBundle i18n;
 
+    @Nullable
+    ExecutorService parseExecutor;
+
+    @Nullable
+    ExecutorService analysisExecutor;
+
+    @Nullable
+    File parseCacheDir;
+
     public void addSourceFile(File f) {
         sources.add(f);
     }
@@ -58,6 +68,39 @@ public class LdfCompilerSettings {
         this.i18n = i18n;
     }
 
+    /**
+     * Enables parsing the source files in parallel, on the given executor
+     * (e.g. a {@link java.util.concurrent.ForkJoinPool}). The executor is
+     * not shut down by the compiler. When {@code null} (the default), the
+     * files are parsed sequentially, on the calling thread.
+     */
+    public void setParseExecutor(@Nullable ExecutorService parseExecutor) {
+        this.parseExecutor = parseExecutor;
+    }
+
+    /**
+     * Enables running each semantic analysis phase on all the source
+     * files in parallel, on the given executor (preferably a work-stealing
+     * one, such as a {@link java.util.concurrent.ForkJoinPool}). Phases
+     * are still run one after the other. The executor is not shut down by
+     * the compiler. When {@code null} (the default), the files are
+     * analyzed sequentially, on the calling thread.
+     */
+    public void setAnalysisExecutor(
+            @Nullable ExecutorService analysisExecutor
+    ) {
+        this.analysisExecutor = analysisExecutor;
+    }
+
+    /**
+     * Enables caching syntax trees in the given directory (which is
+     * created if needed), so that files which haven't changed since a
+     * previous run don't have to be parsed again. See {@link ParseCache}.
+     */
+    public void setParseCacheDir(@Nullable File parseCacheDir) {
+        this.parseCacheDir = parseCacheDir;
+    }
+
     public void setParserGen(@Nonnull ParserGeneratorBase parserGen) {
         this.parserGen = parserGen;
     }
@@ -0,0 +1,106 @@
+package ldf.compiler;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ResourceBundle;
+
+import static java.util.ResourceBundle.getBundle;
+
+/**
+ * <p>Parses many (typically small) inputs, one after the other, with the
+ * same lexer and LALR(1) parser; these are reset between inputs, keeping
+ * their buffers and stacks, so that each input costs little more than
+ * the parsing itself.
+ * </p>
+ * <p>Each input still gets an {@link LdfParser} of its own, which holds
+ * its syntax tree and its log (and is the context of its AST nodes); the
+ * returned parsers have already run, and can't parse anything else.
+ * </p>
+ *
+ * @author Cristian Harja
+ */
+@NotThreadSafe
+public final class LdfParseSession {
+
+    private final boolean syntaxTree;
+    private final boolean compactSyntaxTree;
+    private final boolean recordInput;
+    private final LdfParserSettings template;
+
+    private final LdfParser.Components components;
+
+    /**
+     * @param settings the options used for all inputs (the input itself
+     *                 is ignored); if there's no logger, each input gets
+     *                 one of its own
+     */
+    public LdfParseSession(@Nonnull LdfParserSettings settings) {
+        compactSyntaxTree = settings.compactSyntaxTree;
+        syntaxTree = settings.syntaxTree && !compactSyntaxTree;
+        recordInput = settings.recordInput;
+        template = new LdfParserSettings();
+        template.setLocale(settings.locale);
+        template.setLogger(settings.logger);
+        template.setI18n(settings.i18n != null ? settings.i18n : bundle(
+                settings
+        ));
+        components = new LdfParser.Components(
+                syntaxTree, compactSyntaxTree
+        );
+    }
+
+    private static ResourceBundle bundle(LdfParserSettings settings) {
+        return settings.locale != null
+                ? getBundle("ldf.compiler.i18n", settings.locale)
+                : getBundle("ldf.compiler.i18n");
+    }
+
+    /**
+     * Parses a single input.
+     *
+     * @param fileName name used when reporting errors (may be null)
+     * @param input    the source code
+     */
+    @Nonnull
+    public LdfParser parse(@Nullable String fileName, @Nonnull String input) {
+        LdfParserSettings settings = new LdfParserSettings();
+        settings.setInput(input);
+        settings.overrideFileName(fileName);
+        settings.setUseSyntaxTree(syntaxTree);
+        settings.setUseCompactSyntaxTree(compactSyntaxTree);
+        settings.setRecordInput(recordInput);
+        settings.setLocale(template.locale);
+        settings.setLogger(template.logger);
+        settings.setI18n(template.i18n);
+
+        LdfParser parser;
+        try {
+            parser = new LdfParser(settings, components);
+        } catch (FileNotFoundException e) {
+            // not reading from a file
+            throw new IllegalStateException(e);
+        }
+        parser.parseInput();
+        return parser;
+    }
+
+    /**
+     * Parses each of the inputs, in order.
+     *
+     * @return one (already run) parser for each input, holding its syntax
+     *         tree and its log
+     */
+    @Nonnull
+    public List<LdfParser> parseAll(@Nonnull List<String> inputs) {
+        List<LdfParser> result = new ArrayList<LdfParser>(inputs.size());
+        for (String input : inputs) {
+            result.add(parse(null, input));
+        }
+        return result;
+    }
+
+}
@@ -6,24 +6,33 @@ import ldf.compiler.context.ContextImpl;
 import ldf.compiler.context.ParserContext;
 import ldf.compiler.gen.Lexer;
 import ldf.compiler.gen.parser;
-import ldf.compiler.inspect.InspectionSet;
+import ldf.compiler.inspect.Inspection;
+import ldf.compiler.inspect.InspectionEngine;
 import ldf.compiler.syntax.Check_BnfAbstractAction;
 import ldf.compiler.syntax.Check_BnfQuantifier;
 import ldf.compiler.syntax.Check_LiteralString;
 import ldf.compiler.syntax.tree.LdfTokenFactory;
+import ldf.compiler.syntax.tree.StCompactNodeFactory;
+import ldf.compiler.syntax.tree.StCompactTree;
 import ldf.compiler.syntax.tree.StNode;
 import ldf.compiler.syntax.tree.StNodeFactory;
+import ldf.compiler.util.CharBufferReader;
 import ldf.compiler.util.StreamRecorder;
 import ldf.compiler.util.SubSequenceImpl;
 import ldf.java_cup.runtime.LocationAwareEntity;
-import ldf.java_cup.runtime.Scanner;
 import ldf.java_cup.runtime.Symbol;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.*;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
 import java.security.InvalidParameterException;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.SortedSet;
 
 /**
@@ -33,26 +42,42 @@ public final class LdfParser extends ContextImpl
         implements ParserContext {
 
     private boolean syntaxTree;
+    private boolean compactSyntaxTree;
     private boolean recordInput;
+    private boolean memoryMapped;
 
     private CharSequence recordedInput;
     private Reader reader;
-    private parser parser;
+    private Components components;
 
     private boolean parsed;
     private boolean success;
 
     private StNode        stRoot;
+    private StCompactTree stCompact;
     private AstSourceFile astRoot;
 
     private String fileName;
 
+    // syntax tree provided by the caller, instead of parsing some input
+    private AstSourceFile inputTree;
+
     private boolean hasErrors;
 
     public LdfParser(LdfParserSettings settings)
             throws FileNotFoundException {
+        this(settings, null);
+    }
+
+    /**
+     * @param components the lexer and parser to use (shared with other
+     *                   instances, see {@link LdfParseSession}), or
+     *                   {@code null} to create new ones
+     */
+    LdfParser(LdfParserSettings settings, @Nullable Components components)
+            throws FileNotFoundException {
         initInputMethod(settings);
-        initParser(settings);
+        initParser(settings, components);
         initLogger(settings);
     }
 
@@ -61,11 +86,17 @@ public final class LdfParser extends ContextImpl
 
         recordInput = settings.recordInput;
 
-        if (settings.inputString != null) {
+        if (settings.inputTree != null) {
+            inputTree = settings.inputTree;
+            recordInput = false;
+        } else if (settings.inputString != null) {
             reader = new StringReader(settings.inputString);
             if (recordInput) {
                 recordedInput = new SubSequenceImpl(settings.inputString);
             }
+        } else if (settings.inputFile != null && settings.memoryMapped &&
+                recordInput && initMemoryMapped(settings.inputFile)) {
+            // `reader` and `recordedInput` have been initialized
         } else {
             if (settings.inputReader != null) {
                 reader = settings.inputReader;
@@ -102,20 +133,98 @@ public final class LdfParser extends ContextImpl
         }
     }
 
-    private void initParser(LdfParserSettings settings) {
+    /**
+     * Decodes the (memory-mapped) contents of a file into a buffer, which
+     * will be shared by the lexer and {@link #getRecordedText}. Returns
+     * {@code false} if the file is too large to be mapped, or if mapping
+     * it fails, so that it can be read the usual way.
+     */
+    private boolean initMemoryMapped(File file)
+            throws FileNotFoundException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            try {
+                FileChannel ch = in.getChannel();
+                if (ch.size() > Integer.MAX_VALUE) {
+                    return false;
+                }
+                MappedByteBuffer bytes = ch.map(
+                        FileChannel.MapMode.READ_ONLY, 0, ch.size()
+                );
+                // same decoding as that of `FileReader`
+                CharBuffer chars = Charset.defaultCharset().newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                        .decode(bytes);
+                reader = new CharBufferReader(chars.duplicate());
+                recordedInput = new SubSequenceImpl(chars);
+                memoryMapped = true;
+                return true;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void initParser(
+            LdfParserSettings settings, Components components
+    ) {
 
-        syntaxTree = settings.syntaxTree;
+        if (inputTree != null) {
+            return;
+        }
 
-        LdfTokenFactory symbolFactory = syntaxTree
-                ? new StNodeFactory()
-                : new LdfTokenFactory();
+        compactSyntaxTree = settings.compactSyntaxTree;
+        syntaxTree = settings.syntaxTree && !compactSyntaxTree;
 
-        symbolFactory.setParserContext(this);
+        if (components == null) {
+            components = new Components(syntaxTree, compactSyntaxTree);
+        } else if (components.syntaxTree != syntaxTree ||
+                components.compactSyntaxTree != compactSyntaxTree) {
+            throw new IllegalArgumentException(
+                    "The parser builds a different kind of tree"
+            );
+        }
+        this.components = components;
 
-        Scanner scanner = new Lexer(reader, symbolFactory);
+    }
 
-        parser  = new parser(scanner, symbolFactory);
+    /**
+     * The lexer, the LALR(1) parser and the token factory. These keep
+     * their buffers and stacks between inputs, so they can be reused, as
+     * long as the inputs are parsed one at a time.
+     */
+    static final class Components {
+        final boolean syntaxTree;
+        final boolean compactSyntaxTree;
+        final LdfTokenFactory symbolFactory;
+        final Lexer lexer;
+        final parser parser;
+
+        Components(boolean syntaxTree, boolean compactSyntaxTree) {
+            this.syntaxTree = syntaxTree;
+            this.compactSyntaxTree = compactSyntaxTree;
+            symbolFactory = compactSyntaxTree
+                    ? new StCompactNodeFactory()
+                    : syntaxTree
+                    ? new StNodeFactory()
+                    : new LdfTokenFactory();
+            lexer = new Lexer(null, symbolFactory);
+            parser = new parser(lexer, symbolFactory);
+        }
 
+        /**
+         * Prepares for a new input (the previous one, if any, is closed).
+         */
+        parser reset(ParserContext context, Reader reader)
+                throws IOException {
+            symbolFactory.reset();
+            symbolFactory.setParserContext(context);
+            lexer.yyreset(reader);
+            return parser;
+        }
     }
 
     private void initLogger(LdfParserSettings settings) {
@@ -126,6 +235,14 @@ public final class LdfParser extends ContextImpl
         );
     }
 
+    /**
+     * Whether the input file was memory-mapped (see {@link
+     * LdfParserSettings#setMemoryMapped}).
+     */
+    boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
     /**
      * If {@code recordInput} was set to {@code true}, this method
      * retrieves a portion of the input text (which was recorder directly
@@ -144,7 +261,12 @@ public final class LdfParser extends ContextImpl
         if (parsed) {
             return;
         }
+        if (inputTree != null) {
+            useInputTree();
+            return;
+        }
         try {
+            parser parser = components.reset(this, reader);
             Symbol parseResult;
             parseResult = parser.parse(); // invoke the parser
             if (parser.failed) {
@@ -156,6 +278,10 @@ public final class LdfParser extends ContextImpl
                 astRoot = (AstSourceFile) parseResult.value;
                 if (syntaxTree) {
                     stRoot = (StNode) parseResult;
+                } else if (compactSyntaxTree) {
+                    stCompact = ((StCompactNodeFactory)
+                            components.symbolFactory
+                    ).buildTree(parseResult);
                 }
             }
             success = !parser.failed;
@@ -166,6 +292,16 @@ public final class LdfParser extends ContextImpl
         }
     }
 
+    private void useInputTree() {
+        Iterator<AstNode> it = inputTree.findAllByDFS();
+        while (it.hasNext()) {
+            it.next().setParserContext(this);
+        }
+        astRoot = inputTree;
+        success = true;
+        parsed = true;
+    }
+
     /**
      * If the parser completed successfully, returns the root AST node.
      */
@@ -182,6 +318,28 @@ public final class LdfParser extends ContextImpl
         return stRoot;
     }
 
+    /**
+     * If the parser completed successfully, and was set to build a
+     * compact syntax tree, returns that tree.
+     */
+    public StCompactTree getCompactSyntaxTree() {
+        parseInput();
+        return stCompact;
+    }
+
+    /**
+     * The inspections run by {@link #syntaxCheck} (and by {@link
+     * ParallelSyntaxCheck}).
+     */
+    static final InspectionEngine<ParserContext, AstNode>
+            SYNTAX_CHECKS = new InspectionEngine<ParserContext, AstNode>(
+                    Arrays.<Inspection<ParserContext, ? extends AstNode>>asList(
+                            Check_BnfQuantifier.getInstance(),
+                            Check_BnfAbstractAction.getInstance(),
+                            Check_LiteralString.getInstance()
+                    )
+            );
+
     /**
      * Runs the LALR(1) parser and runs a couple of inspections over the
      * AST nodes.
@@ -192,17 +350,7 @@ public final class LdfParser extends ContextImpl
             return;
         }
 
-        @SuppressWarnings("ALL")
-        InspectionSet<ParserContext, AstNode>
-                inspections = new InspectionSet<ParserContext, AstNode>();
-
-        inspections.addAll(Arrays.asList(
-                Check_BnfQuantifier.getInstance(),
-                Check_BnfAbstractAction.getInstance(),
-                Check_LiteralString.getInstance()
-        ));
-
-        inspections.runAllOnIterator(this, astRoot.findAllByDFS());
+        SYNTAX_CHECKS.runAllOnIterator(this, astRoot.findAllByDFS());
 
     }
 
@@ -1,5 +1,7 @@
 package ldf.compiler;
 
+import ldf.compiler.ast.AstSourceFile;
+
 import java.io.*;
 import java.util.Locale;
 import java.util.ResourceBundle;
@@ -16,9 +18,12 @@ public class LdfParserSettings {
     InputStream inputStream;
     File        inputFile  ;
     String      inputString;
+    AstSourceFile inputTree;
 
     boolean syntaxTree;
+    boolean compactSyntaxTree;
     boolean recordInput;
+    boolean memoryMapped;
     Locale locale;
     CompilerLog logger;
     ResourceBundle i18n;
@@ -29,6 +34,7 @@ public class LdfParserSettings {
         inputStream = null;
         inputFile   = null;
         inputString = null;
+        inputTree   = null;
     }
 
     public void setInput(InputStream in) {
@@ -36,6 +42,7 @@ public class LdfParserSettings {
         inputStream = in;
         inputFile   = null;
         inputString = null;
+        inputTree   = null;
     }
 
     public void setInput(File file) {
@@ -43,6 +50,7 @@ public class LdfParserSettings {
         inputStream = null;
         inputFile   = file;
         inputString = null;
+        inputTree   = null;
     }
 
     public void setInput(String string) {
@@ -50,16 +58,52 @@ public class LdfParserSettings {
         inputStream = null;
         inputFile   = null;
         inputString = string;
+        inputTree   = null;
+    }
+
+    /**
+     * Uses an already built syntax tree (e.g. one loaded from a cache)
+     * instead of parsing some input. The tree must not have been
+     * associated with another parser.
+     */
+    public void setInput(AstSourceFile tree) {
+        inputReader = null;
+        inputStream = null;
+        inputFile   = null;
+        inputString = null;
+        inputTree   = tree;
     }
 
     public void overrideFileName(String name) {
         fileName = name;
     }
 
+    /**
+     * When reading from a {@link File}, maps it into memory and decodes
+     * it into a single buffer, which is read by the lexer and also backs
+     * the text returned by {@link LdfParser#getRecordedText} (instead of
+     * copying the input into a separate buffer while parsing). Only has
+     * an effect together with {@link #setRecordInput}; otherwise, the file
+     * is read in small chunks, which needs less memory.
+     */
+    public void setMemoryMapped(boolean b) {
+        memoryMapped = b;
+    }
+
     public void setUseSyntaxTree(boolean b) {
         syntaxTree = b;
     }
 
+    /**
+     * Builds a {@link ldf.compiler.syntax.tree.StCompactTree} (see {@link
+     * LdfParser#getCompactSyntaxTree}) instead of a tree of {@code StNode}
+     * objects, which takes several times less memory; this overrides
+     * {@link #setUseSyntaxTree}.
+     */
+    public void setUseCompactSyntaxTree(boolean b) {
+        compactSyntaxTree = b;
+    }
+
     public void setRecordInput(boolean b) {
         recordInput = b;
     }
@@ -0,0 +1,211 @@
+package ldf.compiler;
+
+import ldf.compiler.ast.AstNode;
+import ldf.compiler.ast.decl.Declaration;
+import ldf.compiler.context.ParserContext;
+import ldf.java_cup.runtime.LocationAwareEntity;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>Runs the inspections of {@link LdfParser#syntaxCheck} over many
+ * files, in parallel, on a {@link ForkJoinPool}.
+ * </p>
+ * <p>Each file's AST is split into tasks at {@link Declaration}
+ * boundaries: a task inspects the nodes of a declaration, except for the
+ * nested declarations, which become tasks of their own. Each task writes
+ * its messages into a buffer of its own; the buffers are merged into the
+ * logs of the parsers at the end, on the calling thread (the messages
+ * are sorted by their positions, so the result is the same as that of a
+ * sequential run).
+ * </p>
+ *
+ * @author Cristian Harja
+ */
+@ThreadSafe
+public final class ParallelSyntaxCheck {
+
+    private final ForkJoinPool pool;
+
+    public ParallelSyntaxCheck(@Nonnull ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Parses the inputs (if they haven't been parsed yet), then runs the
+     * inspections over the ASTs of those which have been parsed
+     * successfully.
+     */
+    public void run(@Nonnull Collection<LdfParser> parsers) {
+        final Queue<Buffer> buffers = new ConcurrentLinkedQueue<Buffer>();
+        final List<Task> tasks = new ArrayList<Task>(parsers.size());
+
+        for (LdfParser parser : parsers) {
+            parser.parseInput();
+            if (parser.successful()) {
+                Buffer buffer = new Buffer(parser, buffers);
+                tasks.add(new Task(buffer, parser.getAbstractSyntaxTree()));
+            }
+        }
+
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        for (Buffer b : buffers) {
+            b.context.getLogger().addAll(b.log);
+        }
+    }
+
+    /**
+     * Inspects the nodes of a sub-tree, forking a new task for each of
+     * the nested declarations.
+     */
+    private static final class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Buffer parent;
+        private final AstNode root;
+
+        Task(Buffer parent, AstNode root) {
+            this.parent = parent;
+            this.root = root;
+        }
+
+        @Override
+        protected void compute() {
+            Buffer buffer = new Buffer(parent.context, parent.buffers);
+            List<Task> forks = new ArrayList<Task>();
+
+            AstNode node = root;
+            while (node != null) {
+                if (node != root && node instanceof Declaration) {
+                    forks.add(new Task(buffer, node));
+                    node = skip(node);
+                } else {
+                    LdfParser.SYNTAX_CHECKS.run(buffer, node);
+                    node = next(node);
+                }
+            }
+            invokeAll(forks);
+        }
+
+        // the next node, in DFS order, within the sub-tree
+        private AstNode next(AstNode node) {
+            AstNode child = node.getAstChildL();
+            return child != null ? child : skip(node);
+        }
+
+        // the next node which isn't a descendant of `node`
+        private AstNode skip(AstNode node) {
+            for (; node != root; node = node.getAstParent()) {
+                AstNode sibling = node.getAstSiblingR();
+                if (sibling != null) {
+                    return sibling;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The context of the inspections run by a single task; it writes the
+     * messages into a log of its own (created when the first message is
+     * reported), and passes everything else to the parser.
+     */
+    private static final class Buffer implements ParserContext {
+        final ParserContext context;
+        final Queue<Buffer> buffers;
+        CompilerLog log;
+
+        Buffer(ParserContext context, Queue<Buffer> buffers) {
+            this.context = context;
+            this.buffers = buffers;
+        }
+
+        @Nullable
+        @Override
+        public String getFileName() {
+            return context.getFileName();
+        }
+
+        @Nullable
+        @Override
+        public Locale getLocale() {
+            return context.getLocale();
+        }
+
+        @Nonnull
+        @Override
+        public ResourceBundle i18n() {
+            return context.i18n();
+        }
+
+        @Nonnull
+        @Override
+        public CompilerLog getLogger() {
+            if (log == null) {
+                log = new CompilerLog();
+                buffers.add(this);
+            }
+            return log;
+        }
+
+        @Override
+        public void reportError(
+                @Nullable LocationAwareEntity pos,
+                @Nonnull String format, Object... args
+        ) {
+            reportError(getFileName(), pos, format, args);
+        }
+
+        @Override
+        public void reportWarn(
+                @Nullable LocationAwareEntity pos,
+                @Nonnull String format, Object... args
+        ) {
+            reportWarn(getFileName(), pos, format, args);
+        }
+
+        @Override
+        public void reportError(
+                @Nullable String fileName,
+                @Nullable LocationAwareEntity pos,
+                @Nonnull String format, Object... args
+        ) {
+            getLogger().logMessage(
+                    CompilerLog.EntryType.ERROR,
+                    fileName, pos,
+                    format, args
+            );
+        }
+
+        @Override
+        public void reportWarn(
+                @Nullable String fileName,
+                @Nullable LocationAwareEntity pos,
+                @Nonnull String format, Object... args
+        ) {
+            getLogger().logMessage(
+                    CompilerLog.EntryType.WARN,
+                    fileName, pos,
+                    format, args
+            );
+        }
+    }
+
+}
@@ -0,0 +1,227 @@
+package ldf.compiler;
+
+import ldf.compiler.ast.AstCodec;
+import ldf.compiler.ast.AstNode;
+import ldf.compiler.ast.AstSourceFile;
+import ldf.compiler.gen.parser;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>An on-disk cache of syntax trees, which allows the compiler to skip
+ * parsing source files which haven't changed since a previous run.
+ * </p>
+ * <p>Each entry is a file in the cache directory, named after a hash of
+ * the source code and of the parser (its format version, and the classes
+ * of the generated parser and lexer, which change whenever the grammar
+ * does), which contains the syntax tree (with positions and identifiers,
+ * but no semantic information), as written by {@link AstCodec}. Entries
+ * which can't be read back are simply ignored; since the codec only ever
+ * creates AST nodes, the contents of the cache don't need to be trusted.
+ * </p>
+ * <p>If the classes of the parser can't be found (so there's no way of
+ * telling whether an entry was created by the same parser), the cache is
+ * disabled.
+ * </p>
+ *
+ * @author Cristian Harja
+ */
+@ThreadSafe
+public final class ParseCache {
+
+    private static final String[] PARSER_CLASSES = {
+            "parser.class",
+            "parser$CUP$parser$tables.class",
+            "CUP$parser$actions.class",
+            "Lexer.class"
+    };
+
+    // null if the parser classes can't be found
+    private static final byte[] PARSER_HASH = hashParser();
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    public ParseCache(@Nonnull File directory) {
+        this.directory = directory;
+    }
+
+    @Nonnull
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * The number of syntax trees successfully loaded from the cache.
+     */
+    public int getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Whether the cache can be used (see the class description).
+     */
+    public boolean isEnabled() {
+        return PARSER_HASH != null;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hashParser() {
+        MessageDigest md = sha256();
+        md.update((byte) (AstCodec.FORMAT_VERSION >>> 24));
+        md.update((byte) (AstCodec.FORMAT_VERSION >>> 16));
+        md.update((byte) (AstCodec.FORMAT_VERSION >>> 8));
+        md.update((byte) AstCodec.FORMAT_VERSION);
+        byte[] buf = new byte[8192];
+        for (String name : PARSER_CLASSES) {
+            InputStream in = parser.class.getResourceAsStream(name);
+            if (in == null) {
+                if (name.equals(PARSER_CLASSES[0])) {
+                    return null;
+                }
+                continue;
+            }
+            md.update(name.getBytes());
+            try {
+                try {
+                    int n;
+                    while ((n = in.read(buf)) != -1) {
+                        md.update(buf, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return md.digest();
+    }
+
+    /**
+     * Computes the key under which the syntax tree for the given source
+     * code is stored.
+     */
+    @Nonnull
+    public String getKey(@Nonnull byte[] sourceCode) {
+        MessageDigest md = sha256();
+        if (PARSER_HASH != null) {
+            md.update(PARSER_HASH);
+        }
+        md.update((byte) 0);
+        md.update(sourceCode);
+
+        byte[] hash = md.digest();
+        char[] result = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            result[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            result[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    /**
+     * @return the cached syntax tree, or {@code null} if there isn't one
+     *         (or if it couldn't be read)
+     */
+    @Nullable
+    public AstSourceFile load(@Nonnull String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        File f = new File(directory, key + ".ast");
+        if (!f.isFile()) {
+            return null;
+        }
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(f));
+            try {
+                AstNode tree = AstCodec.read(in);
+                if (!(tree instanceof AstSourceFile)) {
+                    return null;
+                }
+                hits.incrementAndGet();
+                return (AstSourceFile) tree;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores a syntax tree in the cache. Failures are ignored, since the
+     * tree can always be obtained again by parsing the source code.
+     */
+    public void store(@Nonnull String key, @Nonnull AstSourceFile tree) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        File tmp = null;
+        try {
+            // write to a temporary file first, then move it in place, so
+            // that concurrent readers never see partially written entries
+            tmp = File.createTempFile(key, ".tmp", directory);
+            OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(tmp)
+            );
+            try {
+                AstCodec.write(tree, out);
+            } finally {
+                out.close();
+            }
+            File f = new File(directory, key + ".ast");
+            if (tmp.renameTo(f)) {
+                tmp = null;
+            }
+        } catch (IOException ignored) {
+        } finally {
+            if (tmp != null && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Reads the contents of a source file.
+     */
+    @Nonnull
+    static byte[] readFile(@Nonnull File f) throws IOException {
+        long len = f.length();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(
+                (int) Math.min(Math.max(len, 0), Integer.MAX_VALUE - 8)
+        );
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] b = new byte[8192];
+            int n;
+            while ((n = in.read(b)) != -1) {
+                buf.write(b, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return buf.toByteArray();
+    }
+
+}
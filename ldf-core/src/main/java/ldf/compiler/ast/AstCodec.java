@@ -0,0 +1,1440 @@
+package ldf.compiler.ast;
+
+import ldf.compiler.ast.bnf.*;
+import ldf.compiler.ast.decl.*;
+import ldf.compiler.ast.expr.*;
+import ldf.compiler.ast.stmt.*;
+import ldf.compiler.ast.type.ArrayTypeExpr;
+import ldf.compiler.ast.type.ClassTypeExpr;
+import ldf.compiler.ast.type.ObjectTypeExpr;
+import ldf.compiler.ast.type.TypeExpression;
+import ldf.java_cup.runtime.Symbol;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * <p>A binary format for syntax trees, used for caching them on disk (see
+ * {@link ldf.compiler.ParseCache}) and for keeping them in compact form
+ * (see {@link AstStore}).
+ * </p>
+ * <p>Only the syntactic information is stored: the kind of each node,
+ * its scalar fields (names, literals, operators) and the positions of
+ * its symbol. Nodes are decoded by calling the same constructors and
+ * builders as the parser, so that everything they derive from their
+ * children is computed again.
+ * </p>
+ * <p>The stream starts with {@link #MAGIC} and {@link #FORMAT_VERSION},
+ * followed by the nodes, in post-order: the records of the nodes held
+ * by a node (its children, and the identifiers it refers to) come before
+ * its own record, so the decoder keeps a stack of nodes, from which each
+ * record takes its operands. Neither the encoder nor the decoder recurse,
+ * so trees of any depth can be stored. Integers are stored as varints,
+ * positions as differences from the previous ones, and strings only the
+ * first time they're used (afterwards, by their index).
+ * </p>
+ * <p>The nodes created inside builders (e.g. the cases of a {@code
+ * switch}) never have symbols of their own, and are stored as part of
+ * the node which owns them.
+ * </p>
+ * <p>The codes in {@code KIND_*} are part of the format: they must not be
+ * renumbered or reused, and any change to the layout of a record calls
+ * for a new {@link #FORMAT_VERSION}.
+ * </p>
+ *
+ * @author Cristian Harja
+ */
+@ThreadSafe
+public final class AstCodec {
+
+    /**
+     * The first four bytes of an encoded tree ({@code "LDFA"}).
+     */
+    public static final int MAGIC = 0x4c444641;
+
+    public static final int FORMAT_VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // record tags
+    private static final int TAG_END  = 0;
+    private static final int TAG_NULL = 1;
+
+    // node kinds
+    private static final int KIND_SOURCE_FILE       =  2;
+    private static final int KIND_IDENTIFIER        =  3;
+    private static final int KIND_IMPORT_LIST       =  4;
+    private static final int KIND_REFERENCE         =  5;
+    private static final int KIND_DECL_CLASS        =  6;
+    private static final int KIND_DECL_FUNCTION     =  7;
+    private static final int KIND_DECL_GRAMMAR      =  8;
+    private static final int KIND_DECL_LIST         =  9;
+    private static final int KIND_DECL_NTERM        = 10;
+    private static final int KIND_DECL_VARIABLE     = 11;
+    private static final int KIND_DECL_WHERE        = 12;
+    private static final int KIND_BNF_ACTION        = 13;
+    private static final int KIND_BNF_ALTERNATION   = 14;
+    private static final int KIND_BNF_CONCAT        = 15;
+    private static final int KIND_BNF_GUARD         = 16;
+    private static final int KIND_BNF_ITEM          = 17;
+    private static final int KIND_BNF_LABEL         = 18;
+    private static final int KIND_BNF_PLACEHOLDER   = 19;
+    private static final int KIND_BNF_QUANTIFIER    = 20;
+    private static final int KIND_BNF_SYNTAX        = 21;
+    private static final int KIND_BNF_UNION         = 22;
+    private static final int KIND_EXPR_ARRAY_ACCESS = 23;
+    private static final int KIND_EXPR_COMPOUND     = 24;
+    private static final int KIND_EXPR_FIELD_ACCESS = 25;
+    private static final int KIND_EXPR_CALL         = 26;
+    private static final int KIND_EXPR_IDENTIFIER   = 27;
+    private static final int KIND_EXPR_INCREMENT    = 28;
+    private static final int KIND_EXPR_LAMBDA       = 29;
+    private static final int KIND_EXPR_LIST         = 30;
+    private static final int KIND_EXPR_NEW          = 31;
+    private static final int KIND_EXPR_UNARY        = 32;
+    private static final int KIND_FORMAL_PARAM      = 33;
+    private static final int KIND_FORMAL_PARAM_LIST = 34;
+    private static final int KIND_LITERAL_ARRAY     = 35;
+    private static final int KIND_LITERAL_BOOLEAN   = 36;
+    private static final int KIND_LITERAL_NUMBER    = 37;
+    private static final int KIND_LITERAL_STRING    = 38;
+    private static final int KIND_STRING_FRAGMENT   = 39;
+    private static final int KIND_STMT_BLOCK        = 40;
+    private static final int KIND_STMT_BREAK        = 41;
+    private static final int KIND_STMT_CONTINUE     = 42;
+    private static final int KIND_STMT_LOCAL_VARS   = 43;
+    private static final int KIND_STMT_EMPTY        = 44;
+    private static final int KIND_STMT_EXPRESSION   = 45;
+    private static final int KIND_STMT_FOR          = 46;
+    private static final int KIND_STMT_IF           = 47;
+    private static final int KIND_STMT_LIST         = 48;
+    private static final int KIND_STMT_RETURN       = 49;
+    private static final int KIND_STMT_SWITCH       = 50;
+    private static final int KIND_STMT_TRY          = 51;
+    private static final int KIND_STMT_WHILE        = 52;
+    private static final int KIND_TYPE_ARRAY        = 53;
+    private static final int KIND_TYPE_CLASS        = 54;
+    private static final int KIND_TYPE_OBJECT       = 55;
+
+    // kinds of where-clause entries
+    private static final int ENTRY_ACTION = 0;
+    private static final int ENTRY_LABEL  = 1;
+
+    // types of numbers
+    private static final int NUMBER_NULL    = 0;
+    private static final int NUMBER_INTEGER = 1;
+    private static final int NUMBER_LONG    = 2;
+    private static final int NUMBER_DOUBLE  = 3;
+
+    private static final Map<Class<?>, Integer> KINDS;
+
+    static {
+        Map<Class<?>, Integer> m = new HashMap<Class<?>, Integer>();
+        m.put(AstSourceFile.class,           KIND_SOURCE_FILE);
+        m.put(AstIdentifier.class,           KIND_IDENTIFIER);
+        m.put(ImportList.class,              KIND_IMPORT_LIST);
+        m.put(Reference.class,               KIND_REFERENCE);
+        m.put(DeclClass.class,               KIND_DECL_CLASS);
+        m.put(DeclFunction.class,            KIND_DECL_FUNCTION);
+        m.put(DeclGrammar.class,             KIND_DECL_GRAMMAR);
+        m.put(DeclList.class,                KIND_DECL_LIST);
+        m.put(DeclNonTerminal.class,         KIND_DECL_NTERM);
+        m.put(DeclVariable.class,            KIND_DECL_VARIABLE);
+        m.put(DeclWhereClause.class,         KIND_DECL_WHERE);
+        m.put(BnfAction.class,               KIND_BNF_ACTION);
+        m.put(BnfAlternation.class,          KIND_BNF_ALTERNATION);
+        m.put(BnfConcat.class,               KIND_BNF_CONCAT);
+        m.put(BnfGuard.class,                KIND_BNF_GUARD);
+        m.put(BnfItem.class,                 KIND_BNF_ITEM);
+        m.put(BnfLabel.class,                KIND_BNF_LABEL);
+        m.put(BnfPlaceholder.class,          KIND_BNF_PLACEHOLDER);
+        m.put(BnfQuantifier.class,           KIND_BNF_QUANTIFIER);
+        m.put(BnfSyntax.class,               KIND_BNF_SYNTAX);
+        m.put(BnfUnion.class,                KIND_BNF_UNION);
+        m.put(ExprArrayAccess.class,         KIND_EXPR_ARRAY_ACCESS);
+        m.put(ExprCompound.class,            KIND_EXPR_COMPOUND);
+        m.put(ExprFieldAccess.class,         KIND_EXPR_FIELD_ACCESS);
+        m.put(ExprFunctionCall.class,        KIND_EXPR_CALL);
+        m.put(ExprIdentifier.class,          KIND_EXPR_IDENTIFIER);
+        m.put(ExprIncrement.class,           KIND_EXPR_INCREMENT);
+        m.put(ExprLambda.class,              KIND_EXPR_LAMBDA);
+        m.put(ExprList.class,                KIND_EXPR_LIST);
+        m.put(ExprNew.class,                 KIND_EXPR_NEW);
+        m.put(ExprUnary.class,               KIND_EXPR_UNARY);
+        m.put(FormalParam.class,             KIND_FORMAL_PARAM);
+        m.put(FormalParamList.class,         KIND_FORMAL_PARAM_LIST);
+        m.put(LiteralArray.class,            KIND_LITERAL_ARRAY);
+        m.put(LiteralBoolean.class,          KIND_LITERAL_BOOLEAN);
+        m.put(LiteralNumber.class,           KIND_LITERAL_NUMBER);
+        m.put(LiteralString.class,           KIND_LITERAL_STRING);
+        m.put(LiteralString.Fragment.class,  KIND_STRING_FRAGMENT);
+        m.put(StmtBlock.class,               KIND_STMT_BLOCK);
+        m.put(StmtBreak.class,               KIND_STMT_BREAK);
+        m.put(StmtContinue.class,            KIND_STMT_CONTINUE);
+        m.put(StmtDeclLocalVars.class,       KIND_STMT_LOCAL_VARS);
+        m.put(StmtEmpty.class,               KIND_STMT_EMPTY);
+        m.put(StmtExpression.class,          KIND_STMT_EXPRESSION);
+        m.put(StmtFor.class,                 KIND_STMT_FOR);
+        m.put(StmtIf.class,                  KIND_STMT_IF);
+        m.put(StmtList.class,                KIND_STMT_LIST);
+        m.put(StmtReturn.class,              KIND_STMT_RETURN);
+        m.put(StmtSwitch.class,              KIND_STMT_SWITCH);
+        m.put(StmtTry.class,                 KIND_STMT_TRY);
+        m.put(StmtWhile.class,               KIND_STMT_WHILE);
+        m.put(ArrayTypeExpr.class,           KIND_TYPE_ARRAY);
+        m.put(ClassTypeExpr.class,           KIND_TYPE_CLASS);
+        m.put(ObjectTypeExpr.class,          KIND_TYPE_OBJECT);
+        KINDS = Collections.unmodifiableMap(m);
+    }
+
+    private AstCodec() {}
+
+    /**
+     * Encodes a syntax tree (the header included).
+     *
+     * @throws IllegalArgumentException if the tree contains nodes which
+     *         can't be encoded (i.e. which the parser doesn't create)
+     */
+    public static void write(
+            @Nonnull AstNode root,
+            @Nonnull OutputStream out
+    ) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        new Writer(data).write(root);
+        data.flush();
+    }
+
+    /**
+     * Decodes a syntax tree written by {@link #write}.
+     *
+     * @throws IOException if the input is not a valid encoding of a
+     *         tree, or has been written by another version of the format
+     */
+    @Nonnull
+    public static AstNode read(@Nonnull InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw malformed("not an encoded syntax tree");
+        }
+        int version = data.readInt();
+        if (version != FORMAT_VERSION) {
+            throw malformed("unsupported format version " + version);
+        }
+        return new Reader(data).read();
+    }
+
+    /**
+     * Same as {@link #write}, into an array.
+     */
+    @Nonnull
+    public static byte[] encode(@Nonnull AstNode root) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            write(root, bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Same as {@link #read}, from an array.
+     */
+    @Nonnull
+    public static AstNode decode(@Nonnull byte[] encoded) throws IOException {
+        return read(new ByteArrayInputStream(encoded));
+    }
+
+    private static IOException malformed(String message) {
+        return new IOException("Malformed syntax tree: " + message);
+    }
+
+    private static IOException malformed(RuntimeException cause) {
+        return new IOException(
+                "Malformed syntax tree: " + cause.getMessage(), cause
+        );
+    }
+
+    /**
+     * The positions of the last symbol, relative to which the next one
+     * is stored.
+     */
+    private static abstract class Codec {
+        int prevLine, prevOffset;
+    }
+
+    /**
+     * Writes the records of a tree, in post-order.
+     */
+    @NotThreadSafe
+    static final class Writer extends Codec {
+        private final DataOutput out;
+        private final Map<String, Integer> strings =
+                new HashMap<String, Integer>();
+
+        Writer(@Nonnull DataOutput out) {
+            this.out = out;
+        }
+
+        /**
+         * Writes the records of a tree, followed by an end marker.
+         */
+        void write(@Nonnull AstNode root) throws IOException {
+            // holds nodes (to be expanded), `null` and `Done` markers
+            Deque<Object> stack = new ArrayDeque<Object>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                Object top = stack.pop();
+                if (top == NULL) {
+                    writeVarInt(TAG_NULL);
+                } else if (top instanceof Done) {
+                    writeRecord(((Done) top).node);
+                } else {
+                    AstNode node = (AstNode) top;
+                    AstNode[] operands = operands(kindOf(node), node);
+                    stack.push(new Done(node));
+                    for (int i = operands.length - 1; i >= 0; i--) {
+                        AstNode op = operands[i];
+                        stack.push(op != null ? op : NULL);
+                    }
+                }
+            }
+            writeVarInt(TAG_END);
+        }
+
+        private void writeRecord(AstNode node) throws IOException {
+            int kind = kindOf(node);
+            writeVarInt(kind);
+            writeSymbol(node.getSymbol());
+            writeScalars(kind, node);
+        }
+
+        private void writeSymbol(Symbol sym) throws IOException {
+            if (sym == null) {
+                out.writeByte(0);
+                return;
+            }
+            out.writeByte(1);
+            writeString(sym.getSymbolName());
+            writeSignedVarInt(sym.getSymbolCode());
+            writeSignedVarInt(sym.getLineL() - prevLine);
+            writeSignedVarInt(sym.getColumnL());
+            writeSignedVarInt(sym.getOffsetL() - prevOffset);
+            writeSignedVarInt(sym.getLineR() - sym.getLineL());
+            writeSignedVarInt(sym.getColumnR());
+            writeSignedVarInt(sym.getOffsetR() - sym.getOffsetL());
+            prevLine = sym.getLineL();
+            prevOffset = sym.getOffsetL();
+        }
+
+        /**
+         * The nodes held by a node, in the order in which the decoder
+         * expects them.
+         */
+        private AstNode[] operands(int kind, AstNode n) {
+            List<AstNode> ops = new ArrayList<AstNode>();
+            switch (kind) {
+                case KIND_SOURCE_FILE: {
+                    AstSourceFile f = (AstSourceFile) n;
+                    ops.add(f.getPackageName());
+                    ops.add(f.getImportList());
+                    ops.add(f.getDeclarations());
+                    break;
+                }
+                case KIND_IMPORT_LIST:
+                    for (ImportList.Entry e :
+                            ((ImportList) n).getEntries()) {
+                        ops.add(e.getImportRef());
+                        ops.add(e.getImportAs());
+                    }
+                    break;
+                case KIND_REFERENCE:
+                    ops.addAll(((Reference) n).getPath());
+                    break;
+                case KIND_DECL_CLASS: {
+                    DeclClass d = (DeclClass) n;
+                    ops.add(d.getId());
+                    ops.add(d.getSuperClass());
+                    ops.add(d.getDeclarations());
+                    break;
+                }
+                case KIND_DECL_FUNCTION: {
+                    DeclFunction d = (DeclFunction) n;
+                    ops.add(d.getId());
+                    ops.add(d.getArgs());
+                    ops.add(d.getType());
+                    ops.add(d.getBody());
+                    break;
+                }
+                case KIND_DECL_GRAMMAR: {
+                    DeclGrammar d = (DeclGrammar) n;
+                    ops.add(d.getId());
+                    ops.addAll(d.getExtendedGrammars());
+                    ops.add(d.getDeclarations());
+                    break;
+                }
+                case KIND_DECL_LIST:
+                    ops.addAll(((DeclList) n).getItems());
+                    break;
+                case KIND_DECL_NTERM: {
+                    DeclNonTerminal d = (DeclNonTerminal) n;
+                    ops.add(d.getId());
+                    ops.add(d.getType());
+                    ops.add(d.getSyntax());
+                    ops.add(d.getWhereClause());
+                    break;
+                }
+                case KIND_DECL_VARIABLE: {
+                    DeclVariable d = (DeclVariable) n;
+                    ops.add(d.getId());
+                    ops.add(d.getType());
+                    ops.add(d.getInitializer());
+                    break;
+                }
+                case KIND_DECL_WHERE:
+                    for (DeclWhereClause.Entry e :
+                            ((DeclWhereClause) n).getEntryList()) {
+                        if (e instanceof DeclWhereClause.ActionEntry) {
+                            DeclWhereClause.ActionEntry a;
+                            a = (DeclWhereClause.ActionEntry) e;
+                            ops.add(a.getId());
+                            ops.add(a.getAction());
+                        } else {
+                            DeclWhereClause.LabelTypeEntry l;
+                            l = (DeclWhereClause.LabelTypeEntry) e;
+                            ops.add(l.getLabel());
+                            ops.add(l.getType());
+                        }
+                    }
+                    break;
+                case KIND_BNF_ACTION:
+                    ops.add(((BnfAction) n).getStmtList());
+                    break;
+                case KIND_BNF_ALTERNATION: {
+                    BnfAlternation a = (BnfAlternation) n;
+                    ops.add(a.getElementSyntax());
+                    ops.add(a.getSeparatorSyntax());
+                    break;
+                }
+                case KIND_BNF_CONCAT:
+                    ops.addAll(((BnfConcat) n).getItems());
+                    break;
+                case KIND_BNF_GUARD:
+                    ops.add(((BnfGuard) n).getCondition());
+                    break;
+                case KIND_BNF_ITEM: {
+                    BnfItem i = (BnfItem) n;
+                    ops.add(i.getLabel());
+                    ops.add((AstNode) i.getAtom());
+                    ops.add(i.getQuantifier());
+                    break;
+                }
+                case KIND_BNF_LABEL:
+                    ops.add(((BnfLabel) n).getId());
+                    break;
+                case KIND_BNF_PLACEHOLDER:
+                    ops.add(((BnfPlaceholder) n).getId());
+                    break;
+                case KIND_BNF_SYNTAX:
+                    ops.add(((BnfSyntax) n).getAstRoot());
+                    break;
+                case KIND_BNF_UNION:
+                    ops.addAll(((BnfUnion) n).getItems());
+                    break;
+                case KIND_EXPR_ARRAY_ACCESS: {
+                    ExprArrayAccess e = (ExprArrayAccess) n;
+                    ops.add(e.getArray());
+                    ops.add(e.getIndex());
+                    break;
+                }
+                case KIND_EXPR_COMPOUND:
+                    ops.addAll(((ExprCompound) n).getItems());
+                    break;
+                case KIND_EXPR_FIELD_ACCESS: {
+                    ExprFieldAccess e = (ExprFieldAccess) n;
+                    ops.add(e.getObject());
+                    ops.add(e.getField());
+                    break;
+                }
+                case KIND_EXPR_CALL: {
+                    ExprFunctionCall e = (ExprFunctionCall) n;
+                    ops.add(e.getFunction());
+                    ops.add(e.getParams());
+                    break;
+                }
+                case KIND_EXPR_IDENTIFIER:
+                    ops.add(((ExprIdentifier) n).getId());
+                    break;
+                case KIND_EXPR_INCREMENT:
+                    ops.add(((ExprIncrement) n).getTarget());
+                    break;
+                case KIND_EXPR_LAMBDA: {
+                    ExprLambda e = (ExprLambda) n;
+                    ops.add(e.getParams());
+                    ops.add(e.getCode() != null ? e.getCode() : e.getExpr());
+                    break;
+                }
+                case KIND_EXPR_LIST:
+                    ops.addAll(((ExprList) n).getItems());
+                    break;
+                case KIND_EXPR_NEW: {
+                    ExprNew e = (ExprNew) n;
+                    ops.add(e.getClassRef());
+                    ops.add(e.getCtorParams());
+                    break;
+                }
+                case KIND_EXPR_UNARY:
+                    ops.add(((ExprUnary) n).getTarget());
+                    break;
+                case KIND_FORMAL_PARAM: {
+                    FormalParam p = (FormalParam) n;
+                    ops.add(p.getId());
+                    ops.add(p.getType());
+                    break;
+                }
+                case KIND_FORMAL_PARAM_LIST:
+                    ops.addAll(((FormalParamList) n).getParameterList());
+                    break;
+                case KIND_LITERAL_ARRAY:
+                    ops.add(((LiteralArray) n).getElements());
+                    break;
+                case KIND_LITERAL_STRING:
+                    ops.addAll(((LiteralString) n).getFragments());
+                    break;
+                case KIND_STMT_BLOCK:
+                    ops.add(((StmtBlock) n).getStatementList());
+                    break;
+                case KIND_STMT_BREAK:
+                    ops.add(((StmtBreak) n).getLabel());
+                    break;
+                case KIND_STMT_CONTINUE:
+                    ops.add(((StmtContinue) n).getLabel());
+                    break;
+                case KIND_STMT_LOCAL_VARS:
+                    ops.addAll(((StmtDeclLocalVars) n).getItems());
+                    break;
+                case KIND_STMT_EXPRESSION:
+                    ops.add(((StmtExpression) n).getExpression());
+                    break;
+                case KIND_STMT_FOR: {
+                    StmtFor s = (StmtFor) n;
+                    ops.add(s.getExprInit());
+                    ops.add(s.getExprCond());
+                    ops.add(s.getExprNext());
+                    ops.add(s.getLoopStatement());
+                    ops.add(s.getElseStatement());
+                    break;
+                }
+                case KIND_STMT_IF: {
+                    StmtIf s = (StmtIf) n;
+                    ops.add(s.getCondition());
+                    ops.add(s.getThen());
+                    ops.add(s.getElse());
+                    break;
+                }
+                case KIND_STMT_LIST:
+                    ops.addAll(((StmtList) n).getItems());
+                    break;
+                case KIND_STMT_RETURN:
+                    ops.add(((StmtReturn) n).getExpression());
+                    break;
+                case KIND_STMT_SWITCH: {
+                    StmtSwitch s = (StmtSwitch) n;
+                    ops.add(s.getMatch());
+                    if (s.getNoCase() != null) {
+                        ops.addAll(s.getNoCase());
+                    }
+                    for (StmtSwitch.Case c : s.getCases()) {
+                        ops.add(c.getMatch());
+                        ops.addAll(c.getStatements());
+                    }
+                    break;
+                }
+                case KIND_STMT_TRY: {
+                    StmtTry s = (StmtTry) n;
+                    ops.add(s.getTryBlock());
+                    for (StmtTry.CatchClause c : s.getCatchClauses()) {
+                        ops.add(c.getIdType());
+                        ops.add(c.getIdName());
+                        ops.add(c.getBody());
+                    }
+                    ops.add(s.getFinallyBlock());
+                    break;
+                }
+                case KIND_STMT_WHILE: {
+                    StmtWhile s = (StmtWhile) n;
+                    ops.add(s.getCondition());
+                    ops.add(s.getLoopStatement());
+                    ops.add(s.getElseStatement());
+                    break;
+                }
+                case KIND_TYPE_ARRAY:
+                    ops.add(((ArrayTypeExpr) n).getBaseType());
+                    break;
+                case KIND_TYPE_CLASS:
+                    ops.add(((ClassTypeExpr) n).getReference());
+                    break;
+                case KIND_TYPE_OBJECT:
+                    for (ObjectTypeExpr.Entry e :
+                            ((ObjectTypeExpr) n).getEntries()) {
+                        ops.add(e.getId());
+                        ops.add(e.getType());
+                    }
+                    break;
+                default:
+                    // no operands
+            }
+            return ops.toArray(new AstNode[ops.size()]);
+        }
+
+        /**
+         * Writes the fields of a node which aren't nodes (including the
+         * counts which tell the decoder how many operands to take).
+         */
+        private void writeScalars(int kind, AstNode n) throws IOException {
+            switch (kind) {
+                case KIND_IMPORT_LIST:
+                    writeVarInt(((ImportList) n).getEntries().size());
+                    break;
+                case KIND_IDENTIFIER:
+                    writeString(((AstIdentifier) n).getName());
+                    break;
+                case KIND_REFERENCE:
+                    writeVarInt(((Reference) n).getPath().size());
+                    break;
+                case KIND_DECL_GRAMMAR:
+                    writeVarInt(
+                            ((DeclGrammar) n).getExtendedGrammars().size()
+                    );
+                    break;
+                case KIND_DECL_LIST:
+                    writeVarInt(((DeclList) n).getItems().size());
+                    break;
+                case KIND_DECL_WHERE: {
+                    List<DeclWhereClause.Entry> entries;
+                    entries = ((DeclWhereClause) n).getEntryList();
+                    writeVarInt(entries.size());
+                    for (DeclWhereClause.Entry e : entries) {
+                        out.writeByte(
+                                e instanceof DeclWhereClause.ActionEntry
+                                        ? ENTRY_ACTION
+                                        : ENTRY_LABEL
+                        );
+                    }
+                    break;
+                }
+                case KIND_BNF_CONCAT:
+                    writeVarInt(((BnfConcat) n).getItems().size());
+                    break;
+                case KIND_BNF_QUANTIFIER: {
+                    BnfQuantifier q = (BnfQuantifier) n;
+                    writeString(q.getPattern());
+                    writeNumber(q.getMin());
+                    writeNumber(q.getMax());
+                    break;
+                }
+                case KIND_BNF_UNION:
+                    writeVarInt(((BnfUnion) n).getItems().size());
+                    break;
+                case KIND_EXPR_COMPOUND: {
+                    ExprCompound e = (ExprCompound) n;
+                    writeString(e.getExpressionType().name());
+                    writeVarInt(e.getSeparators().size());
+                    for (BinaryOp op : e.getSeparators()) {
+                        writeString(op.name());
+                    }
+                    break;
+                }
+                case KIND_EXPR_INCREMENT: {
+                    ExprIncrement e = (ExprIncrement) n;
+                    out.writeBoolean(e.isIncrement());
+                    out.writeBoolean(e.isPostfix());
+                    break;
+                }
+                case KIND_EXPR_LAMBDA:
+                    out.writeBoolean(((ExprLambda) n).getCode() != null);
+                    break;
+                case KIND_EXPR_LIST:
+                    writeVarInt(((ExprList) n).getItems().size());
+                    break;
+                case KIND_EXPR_UNARY:
+                    writeString(((ExprUnary) n).getOperator().name());
+                    break;
+                case KIND_FORMAL_PARAM_LIST:
+                    writeVarInt(
+                            ((FormalParamList) n).getParameterList().size()
+                    );
+                    break;
+                case KIND_LITERAL_BOOLEAN:
+                    out.writeBoolean(((LiteralBoolean) n).getValue());
+                    break;
+                case KIND_LITERAL_NUMBER:
+                    writeNumber(((LiteralNumber) n).getValue());
+                    break;
+                case KIND_LITERAL_STRING: {
+                    LiteralString s = (LiteralString) n;
+                    out.writeBoolean(s.isCharLiteral());
+                    writeVarInt(s.getFragments().size());
+                    break;
+                }
+                case KIND_STRING_FRAGMENT: {
+                    LiteralString.Fragment f = (LiteralString.Fragment) n;
+                    writeString(f.getString());
+                    out.writeBoolean(f.isValid());
+                    break;
+                }
+                case KIND_STMT_LOCAL_VARS:
+                    writeVarInt(((StmtDeclLocalVars) n).getItems().size());
+                    break;
+                case KIND_STMT_LIST:
+                    writeVarInt(((StmtList) n).getItems().size());
+                    break;
+                case KIND_STMT_SWITCH: {
+                    StmtSwitch s = (StmtSwitch) n;
+                    List<Statement> noCase = s.getNoCase();
+                    writeVarInt(noCase != null ? noCase.size() : 0);
+                    writeVarInt(s.getCases().size());
+                    for (StmtSwitch.Case c : s.getCases()) {
+                        writeVarInt(c.getStatements().size());
+                    }
+                    break;
+                }
+                case KIND_STMT_TRY:
+                    writeVarInt(((StmtTry) n).getCatchClauses().size());
+                    break;
+                case KIND_STMT_WHILE:
+                    out.writeBoolean(((StmtWhile) n).isDoWhile());
+                    break;
+                case KIND_TYPE_OBJECT:
+                    writeVarInt(((ObjectTypeExpr) n).getEntries().size());
+                    break;
+                default:
+                    // no scalars
+            }
+        }
+
+        private void writeNumber(Number n) throws IOException {
+            if (n == null) {
+                out.writeByte(NUMBER_NULL);
+            } else if (n instanceof Integer) {
+                out.writeByte(NUMBER_INTEGER);
+                writeSignedVarLong(n.intValue());
+            } else if (n instanceof Long) {
+                out.writeByte(NUMBER_LONG);
+                writeSignedVarLong(n.longValue());
+            } else if (n instanceof Double) {
+                out.writeByte(NUMBER_DOUBLE);
+                out.writeLong(Double.doubleToLongBits(n.doubleValue()));
+            } else {
+                throw new IllegalArgumentException(
+                        "Can't encode number of type " + n.getClass()
+                );
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            if (s == null) {
+                writeVarInt(0);
+                return;
+            }
+            Integer index = strings.get(s);
+            if (index != null) {
+                writeVarInt(index + 1);
+                return;
+            }
+            index = strings.size();
+            strings.put(s, index);
+            writeVarInt(index + 1);
+            byte[] bytes = s.getBytes(UTF8);
+            writeVarInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private void writeSignedVarInt(int v) throws IOException {
+            writeSignedVarLong(v);
+        }
+
+        private void writeSignedVarLong(long v) throws IOException {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        private void writeVarInt(int v) throws IOException {
+            writeVarLong(v & 0xffffffffL);
+        }
+
+        private void writeVarLong(long v) throws IOException {
+            while ((v & ~0x7fL) != 0) {
+                out.writeByte((int) (v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            out.writeByte((int) v);
+        }
+    }
+
+    /**
+     * Marks a node whose operands have been written.
+     */
+    private static final class Done {
+        final AstNode node;
+
+        Done(AstNode node) {
+            this.node = node;
+        }
+    }
+
+    private static final Object NULL = new Object();
+
+    private static int kindOf(AstNode node) {
+        Integer kind = KINDS.get(node.getClass());
+        if (kind == null) {
+            throw new IllegalArgumentException(
+                    "Can't encode nodes of type " + node.getClass()
+            );
+        }
+        return kind;
+    }
+
+    /**
+     * Reads the records written by a {@link Writer}, rebuilding the nodes.
+     */
+    @NotThreadSafe
+    static final class Reader extends Codec {
+        private final DataInput in;
+        private final List<String> strings = new ArrayList<String>();
+
+        // the operands of the records which haven't been read yet
+        private final List<AstNode> stack = new ArrayList<AstNode>();
+
+        // the operands of the current record
+        private AstNode[] ops;
+        private int opIndex;
+
+        Reader(@Nonnull DataInput in) {
+            this.in = in;
+        }
+
+        /**
+         * Reads the records of a tree, up to (and including) the end
+         * marker.
+         */
+        @Nonnull
+        AstNode read() throws IOException {
+            for (;;) {
+                int tag = readVarInt();
+                if (tag == TAG_END) {
+                    break;
+                }
+                if (tag == TAG_NULL) {
+                    stack.add(null);
+                    continue;
+                }
+                Symbol sym = readSymbol();
+                AstNode node = readNode(tag);
+                if (opIndex != ops.length) {
+                    throw malformed("unused operands");
+                }
+                if (sym != null) {
+                    sym.value = node;
+                    node.setSymbol(sym);
+                }
+                stack.add(node);
+            }
+            if (stack.size() != 1 || stack.get(0) == null) {
+                throw malformed("expected a single root");
+            }
+            return stack.remove(0);
+        }
+
+        private Symbol readSymbol() throws IOException {
+            switch (in.readByte()) {
+                case 0:
+                    return null;
+                case 1:
+                    break;
+                default:
+                    throw malformed("invalid symbol");
+            }
+            Symbol sym = new Symbol(readString(), readSignedVarInt());
+            int lineL = prevLine + readSignedVarInt();
+            int columnL = readSignedVarInt();
+            int offsetL = prevOffset + readSignedVarInt();
+            int lineR = lineL + readSignedVarInt();
+            int columnR = readSignedVarInt();
+            int offsetR = offsetL + readSignedVarInt();
+            sym.setLeftPos(lineL, columnL, offsetL);
+            sym.setRightPos(lineR, columnR, offsetR);
+            prevLine = lineL;
+            prevOffset = offsetL;
+            return sym;
+        }
+
+        /**
+         * Takes the last {@code count} nodes from the stack, as the
+         * operands of the current record.
+         */
+        private void take(int count) throws IOException {
+            int size = stack.size();
+            if (count < 0 || count > size) {
+                throw malformed("missing operands");
+            }
+            List<AstNode> top = stack.subList(size - count, size);
+            ops = top.toArray(new AstNode[count]);
+            opIndex = 0;
+            top.clear();
+        }
+
+        private <T> T op(Class<T> type) throws IOException {
+            T node = opOrNull(type);
+            if (node == null) {
+                throw malformed("missing " + type.getSimpleName());
+            }
+            return node;
+        }
+
+        @Nullable
+        private <T> T opOrNull(Class<T> type) throws IOException {
+            if (opIndex == ops.length) {
+                throw malformed("missing operands");
+            }
+            AstNode node = ops[opIndex++];
+            if (node != null && !type.isInstance(node)) {
+                throw malformed(
+                        "expected " + type.getSimpleName() +
+                        ", found " + node.getClass().getSimpleName()
+                );
+            }
+            return type.cast(node);
+        }
+
+        private AstNode readNode(int kind) throws IOException {
+            try {
+                return build(kind);
+            } catch (IllegalArgumentException e) {
+                // e.g. unknown enum constants
+                throw malformed(e);
+            } catch (IllegalStateException e) {
+                // e.g. nodes which don't fit their builders
+                throw malformed(e);
+            }
+        }
+
+        private AstNode build(int kind) throws IOException {
+            switch (kind) {
+                case KIND_SOURCE_FILE:
+                    take(3);
+                    return new AstSourceFile(
+                            opOrNull(Reference.class),
+                            op(ImportList.class),
+                            op(DeclList.class)
+                    );
+                case KIND_IMPORT_LIST: {
+                    int count = readCount();
+                    take(2 * count);
+                    ImportList.Builder b = new ImportList.Builder();
+                    for (int i = 0; i < count; i++) {
+                        b.add(
+                                op(Reference.class),
+                                opOrNull(AstIdentifier.class)
+                        );
+                    }
+                    return b.build();
+                }
+                case KIND_IDENTIFIER:
+                    take(0);
+                    return new AstIdentifier(readNonNullString());
+                case KIND_REFERENCE: {
+                    int count = readCount();
+                    take(count);
+                    Reference.Builder b = new Reference.Builder();
+                    for (int i = 0; i < count; i++) {
+                        b.add(op(AstIdentifier.class));
+                    }
+                    return b.build();
+                }
+                case KIND_DECL_CLASS:
+                    take(3);
+                    return new DeclClass(
+                            op(AstIdentifier.class),
+                            opOrNull(Reference.class),
+                            op(DeclList.class)
+                    );
+                case KIND_DECL_FUNCTION:
+                    take(4);
+                    return new DeclFunction(
+                            op(AstIdentifier.class),
+                            op(FormalParamList.class),
+                            opOrNull(TypeExpression.class),
+                            op(StmtBlock.class)
+                    );
+                case KIND_DECL_GRAMMAR: {
+                    int count = readCount();
+                    take(count + 2);
+                    AstIdentifier id = op(AstIdentifier.class);
+                    List<Reference> extended = new ArrayList<Reference>();
+                    for (int i = 0; i < count; i++) {
+                        extended.add(op(Reference.class));
+                    }
+                    return new DeclGrammar(
+                            id, extended, op(DeclList.class)
+                    );
+                }
+                case KIND_DECL_LIST: {
+                    int count = readCount();
+                    take(count);
+                    DeclList.Builder b = new DeclList.Builder();
+                    for (int i = 0; i < count; i++) {
+                        b.add(op(Declaration.class));
+                    }
+                    return b.build();
+                }
+                case KIND_DECL_NTERM:
+                    take(4);
+                    // the type is optional in the grammar
+                    return new DeclNonTerminal(
+                            op(AstIdentifier.class),
+                            opOrNull(TypeExpression.class),
+                            opOrNull(BnfSyntax.class),
+                            opOrNull(DeclWhereClause.class)
+                    );
+                case KIND_DECL_VARIABLE:
+                    take(3);
+                    return new DeclVariable(
+                            op(AstIdentifier.class),
+                            opOrNull(TypeExpression.class),
+                            opOrNull(Expression.class)
+                    );
+                case KIND_DECL_WHERE: {
+                    int count = readCount();
+                    byte[] entries = new byte[count];
+                    in.readFully(entries);
+                    take(2 * count);
+                    DeclWhereClause.Builder b;
+                    b = new DeclWhereClause.Builder();
+                    for (byte e : entries) {
+                        if (e == ENTRY_ACTION) {
+                            b.add(
+                                    op(AstIdentifier.class),
+                                    op(BnfAbstractAction.class)
+                            );
+                        } else if (e == ENTRY_LABEL) {
+                            b.add(
+                                    op(Reference.class),
+                                    op(TypeExpression.class)
+                            );
+                        } else {
+                            throw malformed("invalid where clause");
+                        }
+                    }
+                    return b.build();
+                }
+                case KIND_BNF_ACTION:
+                    take(1);
+                    return new BnfAction(op(StmtList.class));
+                case KIND_BNF_ALTERNATION:
+                    take(2);
+                    return new BnfAlternation(
+                            op(BnfUnion.class), op(BnfUnion.class)
+                    );
+                case KIND_BNF_CONCAT: {
+                    int count = readCount();
+                    take(count);
+                    BnfConcat.Builder b = new BnfConcat.Builder();
+                    for (int i = 0; i < count; i++) {
+                        b.add(op(BnfItem.class));
+                    }
+                    return b.build();
+                }
+                case KIND_BNF_GUARD:
+                    take(1);
+                    return new BnfGuard(op(Expression.class));
+                case KIND_BNF_ITEM:
+                    take(3);
+                    return new BnfItem(
+                            opOrNull(BnfLabel.class),
+                            op(BnfAtom.class),
+                            opOrNull(BnfQuantifier.class)
+                    );
+                case KIND_BNF_LABEL:
+                    take(1);
+                    return new BnfLabel(op(AstIdentifier.class));
+                case KIND_BNF_PLACEHOLDER:
+                    take(1);
+                    return new BnfPlaceholder(op(AstIdentifier.class));
+                case KIND_BNF_QUANTIFIER:
+                    take(0);
+                    return new BnfQuantifier(
+                            readNonNullString(), readNumber(), readNumber()
+                    );
+                case KIND_BNF_SYNTAX:
+                    take(1);
+                    return new BnfSyntax(op(BnfUnion.class));
+                case KIND_BNF_UNION: {
+                    int count = readCount();
+                    take(count);
+                    BnfUnion.Builder b = new BnfUnion.Builder();
+                    for (int i = 0; i < count; i++) {
+                        b.add(op(BnfConcat.class));
+                    }
+                    return b.build();
+                }
+                case KIND_EXPR_ARRAY_ACCESS:
+                    take(2);
+                    return new ExprArrayAccess(
+                            op(Expression.class), op(Expression.class)
+                    );
+                case KIND_EXPR_COMPOUND: {
+                    BinaryOpClass cls = BinaryOpClass.valueOf(
+                            readNonNullString()
+                    );
+                    int count = readCount();
+                    BinaryOp[] separators = new BinaryOp[count];
+                    for (int i = 0; i < count; i++) {
+                        separators[i] = BinaryOp.valueOf(
+                                readNonNullString()
+                        );
+                    }
+                    if (count == 0) {
+                        throw malformed("empty compound expression");
+                    }
+                    take(count + 1);
+                    ExprCompound.Builder b = new ExprCompound.Builder();
+                    b.init(cls, op(Expression.class));
+                    for (BinaryOp separator : separators) {
+                        b.add(separator, op(Expression.class));
+                    }
+                    return b.build();
+                }
+                case KIND_EXPR_FIELD_ACCESS:
+                    take(2);
+                    return new ExprFieldAccess(
+                            op(Expression.class), op(AstIdentifier.class)
+                    );
+                case KIND_EXPR_CALL:
+                    take(2);
+                    return new ExprFunctionCall(
+                            op(Expression.class), op(ExprList.class)
+                    );
+                case KIND_EXPR_IDENTIFIER:
+                    take(1);
+                    return new ExprIdentifier(op(AstIdentifier.class));
+                case KIND_EXPR_INCREMENT: {
+                    boolean increment = in.readBoolean();
+                    boolean postfix = in.readBoolean();
+                    take(1);
+                    return new ExprIncrement(
+                            increment, postfix, op(Expression.class)
+                    );
+                }
+                case KIND_EXPR_LAMBDA: {
+                    boolean hasCode = in.readBoolean();
+                    take(2);
+                    FormalParamList params = op(FormalParamList.class);
+                    return hasCode
+                            ? new ExprLambda(params, op(StmtBlock.class))
+                            : new ExprLambda(params, op(Expression.class));
+                }
+                case KIND_EXPR_LIST: {
+                    int count = readCount();
+                    take(count);
+                    if (count == 0) {
+                        return new ExprList();
+                    }
+                    ExprList.Builder b = new ExprList.Builder();
+                    for (int i = 0; i < count; i++) {
+                        b.add(op(Expression.class));
+                    }
+                    return b.build();
+                }
+                case KIND_EXPR_NEW:
+                    take(2);
+                    return new ExprNew(
+                            op(Reference.class), op(ExprList.class)
+                    );
+                case KIND_EXPR_UNARY: {
+                    UnaryOp op = UnaryOp.valueOf(readNonNullString());
+                    take(1);
+                    return new ExprUnary(op, op(Expression.class));
+                }
+                case KIND_FORMAL_PARAM:
+                    take(2);
+                    return new FormalParam(
+                            op(AstIdentifier.class),
+                            opOrNull(TypeExpression.class)
+                    );
+                case KIND_FORMAL_PARAM_LIST: {
+                    int count = readCount();
+                    take(count);
+                    FormalParamList.Builder b = new FormalParamList.Builder();
+                    for (int i = 0; i < count; i++) {
+                        b.add(op(FormalParam.class));
+                    }
+                    return b.build();
+                }
+                case KIND_LITERAL_ARRAY:
+                    take(1);
+                    return new LiteralArray(op(ExprList.class));
+                case KIND_LITERAL_BOOLEAN:
+                    take(0);
+                    return new LiteralBoolean(in.readBoolean());
+                case KIND_LITERAL_NUMBER: {
+                    take(0);
+                    Number n = readNumber();
+                    if (n == null) {
+                        throw malformed("missing number");
+                    }
+                    return new LiteralNumber(n);
+                }
+                case KIND_LITERAL_STRING: {
+                    boolean isChar = in.readBoolean();
+                    int count = readCount();
+                    take(count);
+                    LiteralString.Builder b = new LiteralString.Builder();
+                    for (int i = 0; i < count; i++) {
+                        b.add(op(LiteralString.Fragment.class));
+                    }
+                    return b.build(isChar);
+                }
+                case KIND_STRING_FRAGMENT:
+                    take(0);
+                    return new LiteralString.Fragment(
+                            readNonNullString(), in.readBoolean()
+                    );
+                case KIND_STMT_BLOCK:
+                    take(1);
+                    return new StmtBlock(op(StmtList.class));
+                case KIND_STMT_BREAK:
+                    take(1);
+                    return new StmtBreak(opOrNull(AstIdentifier.class));
+                case KIND_STMT_CONTINUE:
+                    take(1);
+                    return new StmtContinue(opOrNull(AstIdentifier.class));
+                case KIND_STMT_LOCAL_VARS: {
+                    int count = readCount();
+                    take(count);
+                    StmtDeclLocalVars.Builder b;
+                    b = new StmtDeclLocalVars.Builder();
+                    for (int i = 0; i < count; i++) {
+                        b.add(op(DeclVariable.class));
+                    }
+                    return b.build();
+                }
+                case KIND_STMT_EMPTY:
+                    take(0);
+                    return new StmtEmpty();
+                case KIND_STMT_EXPRESSION:
+                    take(1);
+                    return new StmtExpression(op(Expression.class));
+                case KIND_STMT_FOR:
+                    take(5);
+                    return new StmtFor(
+                            opOrNull(ExprList.class),
+                            opOrNull(Expression.class),
+                            opOrNull(Expression.class),
+                            op(Statement.class),
+                            opOrNull(Statement.class)
+                    );
+                case KIND_STMT_IF:
+                    take(3);
+                    return new StmtIf(
+                            op(Expression.class),
+                            op(Statement.class),
+                            opOrNull(Statement.class)
+                    );
+                case KIND_STMT_LIST: {
+                    int count = readCount();
+                    take(count);
+                    StmtList.Builder b = new StmtList.Builder();
+                    for (int i = 0; i < count; i++) {
+                        b.add(op(Statement.class));
+                    }
+                    return b.build();
+                }
+                case KIND_STMT_RETURN:
+                    take(1);
+                    return new StmtReturn(opOrNull(Expression.class));
+                case KIND_STMT_SWITCH: {
+                    int noCase = readCount();
+                    int[] cases = new int[readCount()];
+                    long total = 1 + noCase + cases.length;
+                    for (int i = 0; i < cases.length; i++) {
+                        cases[i] = readCount();
+                        total += cases[i];
+                    }
+                    take((int) Math.min(total, Integer.MAX_VALUE));
+                    Expression match = op(Expression.class);
+                    StmtSwitch.Builder b = new StmtSwitch.Builder();
+                    for (int i = 0; i < noCase; i++) {
+                        b.addStatement(op(Statement.class));
+                    }
+                    for (int count : cases) {
+                        b.beginCase(opOrNull(Expression.class));
+                        for (int i = 0; i < count; i++) {
+                            b.addStatement(op(Statement.class));
+                        }
+                    }
+                    return b.build(match);
+                }
+                case KIND_STMT_TRY: {
+                    int count = readCount();
+                    take(3 * count + 2);
+                    StmtBlock block = op(StmtBlock.class);
+                    StmtTry.Builder b = new StmtTry.Builder();
+                    for (int i = 0; i < count; i++) {
+                        b.addCatch(
+                                op(TypeExpression.class),
+                                op(AstIdentifier.class),
+                                op(StmtBlock.class)
+                        );
+                    }
+                    return b.build(block, opOrNull(StmtBlock.class));
+                }
+                case KIND_STMT_WHILE: {
+                    boolean doWhile = in.readBoolean();
+                    take(3);
+                    return new StmtWhile(
+                            doWhile,
+                            op(Expression.class),
+                            op(Statement.class),
+                            opOrNull(Statement.class)
+                    );
+                }
+                case KIND_TYPE_ARRAY:
+                    take(1);
+                    return new ArrayTypeExpr(op(TypeExpression.class));
+                case KIND_TYPE_CLASS:
+                    take(1);
+                    return new ClassTypeExpr(op(Reference.class));
+                case KIND_TYPE_OBJECT: {
+                    int count = readCount();
+                    take(2 * count);
+                    ObjectTypeExpr.Builder b = new ObjectTypeExpr.Builder();
+                    for (int i = 0; i < count; i++) {
+                        b.add(
+                                op(AstIdentifier.class),
+                                op(TypeExpression.class)
+                        );
+                    }
+                    return b.build();
+                }
+                default:
+                    throw malformed("unknown node kind " + kind);
+            }
+        }
+
+        @Nullable
+        private Number readNumber() throws IOException {
+            switch (in.readByte()) {
+                case NUMBER_NULL:
+                    return null;
+                case NUMBER_INTEGER: {
+                    long v = readSignedVarLong();
+                    if (v != (int) v) {
+                        throw malformed("integer out of range");
+                    }
+                    return (int) v;
+                }
+                case NUMBER_LONG:
+                    return readSignedVarLong();
+                case NUMBER_DOUBLE:
+                    return Double.longBitsToDouble(in.readLong());
+                default:
+                    throw malformed("invalid number");
+            }
+        }
+
+        @Nonnull
+        private String readNonNullString() throws IOException {
+            String s = readString();
+            if (s == null) {
+                throw malformed("missing string");
+            }
+            return s;
+        }
+
+        @Nullable
+        private String readString() throws IOException {
+            int ref = readVarInt();
+            if (ref == 0) {
+                return null;
+            }
+            if (ref <= strings.size()) {
+                return strings.get(ref - 1);
+            }
+            if (ref != strings.size() + 1) {
+                throw malformed("invalid string reference");
+            }
+            int length = readVarInt();
+            if (length < 0) {
+                throw malformed("invalid string");
+            }
+
+            // the length isn't trusted for allocating the buffer
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                    Math.min(length, 8192)
+            );
+            byte[] buf = new byte[Math.min(length, 8192)];
+            while (length > 0) {
+                int n = Math.min(length, buf.length);
+                in.readFully(buf, 0, n);
+                bytes.write(buf, 0, n);
+                length -= n;
+            }
+            String s = new String(bytes.toByteArray(), UTF8);
+            strings.add(s);
+            return s;
+        }
+
+        /**
+         * Reads a number of operands (which can't be more than the nodes
+         * on the stack, so it's safe to allocate arrays of that size).
+         */
+        private int readCount() throws IOException {
+            int v = readVarInt();
+            if (v < 0 || v > stack.size()) {
+                throw malformed("missing operands");
+            }
+            return v;
+        }
+
+        private int readSignedVarInt() throws IOException {
+            long v = readSignedVarLong();
+            if (v != (int) v) {
+                throw malformed("integer out of range");
+            }
+            return (int) v;
+        }
+
+        private long readSignedVarLong() throws IOException {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        private int readVarInt() throws IOException {
+            long v = readVarLong();
+            if ((v & ~0xffffffffL) != 0) {
+                throw malformed("integer out of range");
+            }
+            return (int) v;
+        }
+
+        private long readVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                v |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw malformed("integer out of range");
+        }
+    }
+
+}
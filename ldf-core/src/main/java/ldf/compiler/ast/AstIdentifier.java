@@ -1,6 +1,7 @@
 package ldf.compiler.ast;
 
 import ldf.compiler.ast.expr.Expression;
+import ldf.compiler.semantics.symbols.InternedName;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.ThreadSafe;
@@ -12,20 +13,37 @@ import javax.annotation.concurrent.ThreadSafe;
  */
 @ThreadSafe
 public final class AstIdentifier extends Expression {
+    // (keeps the id of the name valid, see `InternedName`)
     @Nonnull
-    private String name;
+    private final InternedName name;
 
-    public AstIdentifier(@Nonnull String name) {
+    public AstIdentifier(@Nonnull InternedName name) {
         this.name = name;
     }
 
+    public AstIdentifier(@Nonnull String name) {
+        this(InternedName.of(name));
+    }
+
     @Nonnull
     public String getName() {
+        return name.getName();
+    }
+
+    @Nonnull
+    public InternedName getInternedName() {
         return name;
     }
 
+    /**
+     * The id of the name (see {@link InternedName}).
+     */
+    public int getId() {
+        return name.getId();
+    }
+
     @Override
     public String toString() {
-        return name;
+        return name.getName();
     }
 }
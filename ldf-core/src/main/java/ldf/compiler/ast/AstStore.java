@@ -0,0 +1,315 @@
+package ldf.compiler.ast;
+
+import com.google.common.collect.UnmodifiableIterator;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.*;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <p>Compact storage for the AST of a source file, meant for keeping the
+ * syntax trees of many files (e.g. of whole grammar libraries) in memory
+ * without keeping their {@link AstNode} objects.
+ * </p>
+ * <p>The structure of the tree (the type and parent of each node, in
+ * DFS order) and the positions of the nodes are stored in arrays of
+ * integers, which can be searched without creating any node; the nodes
+ * themselves are kept encoded by {@link AstCodec} (and compressed), and
+ * are only created (all of them at once) when one of them is accessed.
+ * The nodes only have syntactic information.
+ * </p>
+ * <p>The nodes are identified by their indices in DFS order ({@code 0}
+ * being the root), with -1 standing for "no node".
+ * </p>
+ *
+ * @author Cristian Harja
+ */
+@ThreadSafe
+public final class AstStore {
+
+    private final int size;
+
+    // structure, indexed by node
+    private final int[] types;
+    private final int[] parents;
+    private final int[] ends;
+
+    // positions, indexed by node
+    private final int[] offsetsL;
+    private final int[] offsetsR;
+    private final int[] linesL;
+    private final int[] columnsL;
+
+    // the classes of the nodes, indexed by the values in `types`
+    private final Class<?>[] classes;
+
+    private final byte[] encoded;
+
+    // the nodes, in DFS order, while they exist
+    private AstNode[] nodes;
+
+    private AstStore(AstSourceFile tree) {
+        List<AstNode> list = new ArrayList<AstNode>();
+        Iterator<AstNode> it = tree.findAllByDFS();
+        while (it.hasNext()) {
+            list.add(it.next());
+        }
+        size = list.size();
+
+        Map<AstNode, Integer> index = new IdentityHashMap<AstNode, Integer>(
+                size
+        );
+        Map<Class<?>, Integer> typeIds = new HashMap<Class<?>, Integer>();
+        List<Class<?>> typeList = new ArrayList<Class<?>>();
+
+        types = new int[size];
+        parents = new int[size];
+        ends = new int[size];
+        offsetsL = new int[size];
+        offsetsR = new int[size];
+        linesL = new int[size];
+        columnsL = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            AstNode node = list.get(i);
+            index.put(node, i);
+
+            Integer type = typeIds.get(node.getClass());
+            if (type == null) {
+                type = typeList.size();
+                typeIds.put(node.getClass(), type);
+                typeList.add(node.getClass());
+            }
+            types[i] = type;
+
+            AstNode parent = i == 0 ? null : node.getAstParent();
+            parents[i] = parent != null ? index.get(parent) : -1;
+            ends[i] = i + 1;
+
+            if (node.getSymbol() != null) {
+                offsetsL[i] = node.getOffsetL();
+                offsetsR[i] = node.getOffsetR();
+                linesL[i] = node.getLineL();
+                columnsL[i] = node.getColumnL();
+            } else {
+                offsetsL[i] = offsetsR[i] = -1;
+                linesL[i] = columnsL[i] = -1;
+            }
+        }
+        for (int i = size - 1; i > 0; i--) {
+            int p = parents[i];
+            ends[p] = Math.max(ends[p], ends[i]);
+        }
+        classes = typeList.toArray(new Class<?>[typeList.size()]);
+        encoded = encode(tree);
+    }
+
+    /**
+     * Stores a syntax tree. Must be called before the tree goes through
+     * semantic analysis (like {@link ldf.compiler.ParseCache#store}); the
+     * store doesn't keep any reference to the given nodes.
+     */
+    @Nonnull
+    public static AstStore of(@Nonnull AstSourceFile tree) {
+        return new AstStore(tree);
+    }
+
+    private static byte[] encode(AstSourceFile tree) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            OutputStream out = new DeflaterOutputStream(bytes);
+            try {
+                AstCodec.write(tree, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static AstSourceFile decode(byte[] encoded) {
+        try {
+            InputStream in = new InflaterInputStream(
+                    new ByteArrayInputStream(encoded)
+            );
+            try {
+                return (AstSourceFile) AstCodec.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private synchronized AstNode[] nodes() {
+        if (nodes == null) {
+            AstNode[] result = new AstNode[size];
+            Iterator<AstNode> it = decode(encoded).findAllByDFS();
+            for (int i = 0; i < size; i++) {
+                result[i] = it.next();
+            }
+            nodes = result;
+        }
+        return nodes;
+    }
+
+    /**
+     * The number of nodes in the tree.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The size (in bytes) of the encoded nodes.
+     */
+    public int getEncodedSize() {
+        return encoded.length;
+    }
+
+    /**
+     * Whether the nodes currently exist as objects (see {@link #release}).
+     */
+    public synchronized boolean isMaterialized() {
+        return nodes != null;
+    }
+
+    /**
+     * Drops the node objects (if they have been created), keeping only
+     * the compact form of the tree. Nodes obtained afterwards will be new
+     * objects (any information attached to the previous ones is lost).
+     */
+    public synchronized void release() {
+        nodes = null;
+    }
+
+    /**
+     * The root of the tree (creating all the nodes, if needed).
+     */
+    @Nonnull
+    public AstSourceFile getRoot() {
+        return (AstSourceFile) nodes()[0];
+    }
+
+    /**
+     * The node with the given index (creating all the nodes, if needed).
+     */
+    @Nonnull
+    public AstNode getNode(int node) {
+        return nodes()[node];
+    }
+
+    @Nonnull
+    public Class<?> getType(int node) {
+        return classes[types[node]];
+    }
+
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    /**
+     * The index following the last descendant of the node; the sub-tree
+     * of the node consists of the nodes from {@code node} to {@code
+     * getSubtreeEnd(node) - 1}.
+     */
+    public int getSubtreeEnd(int node) {
+        return ends[node];
+    }
+
+    public int getOffsetL(int node) {
+        return offsetsL[node];
+    }
+
+    public int getOffsetR(int node) {
+        return offsetsR[node];
+    }
+
+    public int getLineL(int node) {
+        return linesL[node];
+    }
+
+    public int getColumnL(int node) {
+        return columnsL[node];
+    }
+
+    /**
+     * Marks which of the node types (indices in {@code classes}) are
+     * sub-types of the given class.
+     */
+    private boolean[] typesMatching(Class<?> clazz) {
+        boolean[] matching = new boolean[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            matching[i] = clazz.isAssignableFrom(classes[i]);
+        }
+        return matching;
+    }
+
+    /**
+     * Same as {@link AstNode#findAllOfType}, but returns the indices of
+     * the nodes (in DFS order), without creating any node.
+     */
+    @Nonnull
+    public int[] indicesOfType(@Nonnull Class<?> clazz) {
+        boolean[] matching = typesMatching(clazz);
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (matching[types[i]]) {
+                count++;
+            }
+        }
+        int[] result = new int[count];
+        count = 0;
+        for (int i = 0; i < size; i++) {
+            if (matching[types[i]]) {
+                result[count++] = i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link AstNode#findAllByDFS()}, on the root. Creates all
+     * the nodes, if needed.
+     */
+    @Nonnull
+    public Iterator<AstNode> findAllByDFS() {
+        return Arrays.asList(nodes()).iterator();
+    }
+
+    /**
+     * Same as {@link AstNode#findAllOfType}, on the root. The nodes are
+     * searched for in the compact form of the tree, and are only created
+     * if there's at least one match.
+     */
+    @Nonnull
+    public <T extends AstNode> Iterator<T> findAllOfType(
+            final @Nonnull Class<? extends T> clazz
+    ) {
+        final int[] found = indicesOfType(clazz);
+        return new UnmodifiableIterator<T>() {
+            int i;
+
+            @Override
+            public boolean hasNext() {
+                return i < found.length;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (i == found.length) {
+                    throw new NoSuchElementException();
+                }
+                return (T) getNode(found[i++]);
+            }
+        };
+    }
+
+}
@@ -23,6 +23,11 @@ public final class StmtBlock extends Statement {
 
     private StmtBlock() {}
 
+    @Nonnull
+    public StmtList getStatementList() {
+        return list;
+    }
+
     @Nonnull
     public List<Statement> getStatements() {
         return list.getItems();
@@ -47,6 +47,24 @@ public abstract class Inspection<ContextT, TargetT> {
         }
     }
 
+    /**
+     * Same as {@link #run}, for an object whose class has already been
+     * checked (see {@link InspectionEngine}).
+     */
+    @SuppressWarnings("unchecked")
+    final boolean runChecked(ContextT ctx, @Nonnull Object obj) {
+        TargetT checked = (TargetT) obj;
+        return filter(ctx, checked) && inspect(ctx, checked);
+    }
+
+    /**
+     * @return the type of objects targeted by this inspection
+     */
+    @Nonnull
+    public final Class<TargetT> getTargetClass() {
+        return clazz;
+    }
+
     /**
      * Having checked the object's class, this method filters out
      * objects which are irrelevant to this inspection. By returning
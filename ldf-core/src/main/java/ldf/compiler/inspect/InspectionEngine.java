@@ -0,0 +1,112 @@
+package ldf.compiler.inspect;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Runs a fixed list of {@link Inspection}s over many objects (e.g. all
+ * the nodes of an AST), in a single pass.
+ * </p>
+ * <p>Unlike {@link InspectionSet#runAllOnIterator}, it doesn't offer each
+ * object to every inspection: the inspections applicable to a class of
+ * objects (those targeting the class, or one of its super-types) are
+ * found once, the first time an object of that class is seen, and then
+ * looked up by the object's class. The cost of running the inspections
+ * grows with the number of objects, and the number of inspections which
+ * actually apply to them.
+ * </p>
+ * <p>Instances are immutable (except for the lookup table, which can be
+ * updated concurrently), so they can be created once and shared.
+ * </p>
+ *
+ * @param <ContextT> the type of the context variable that gets passed
+ * @param <TargetT> the type of objects passed to the inspections
+ *
+ * @author Cristian Harja
+ */
+@ThreadSafe
+public final class InspectionEngine<ContextT, TargetT> {
+
+    private final List<Inspection<? super ContextT, ?>> inspections;
+
+    private final ConcurrentMap<Class<?>, Inspection<? super ContextT, ?>[]>
+            dispatch = new ConcurrentHashMap<
+                    Class<?>, Inspection<? super ContextT, ?>[]
+            >();
+
+    /**
+     * @param inspections the inspections to run (in this order, on each
+     *                    object)
+     */
+    public InspectionEngine(
+            @Nonnull Collection<? extends Inspection<
+                    ? super ContextT, ? extends TargetT
+            >> inspections
+    ) {
+        this.inspections = new ArrayList<Inspection<? super ContextT, ?>>(
+                inspections
+        );
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Inspection<? super ContextT, ?>[] inspectionsFor(
+            Class<?> clazz
+    ) {
+        Inspection<? super ContextT, ?>[] result = dispatch.get(clazz);
+        if (result != null) {
+            return result;
+        }
+        List<Inspection<? super ContextT, ?>> applicable;
+        applicable = new ArrayList<Inspection<? super ContextT, ?>>();
+        for (Inspection<? super ContextT, ?> i : inspections) {
+            if (i.getTargetClass().isAssignableFrom(clazz)) {
+                applicable.add(i);
+            }
+        }
+        result = applicable.toArray(new Inspection[applicable.size()]);
+        Inspection<? super ContextT, ?>[] prev;
+        prev = dispatch.putIfAbsent(clazz, result);
+        return prev != null ? prev : result;
+    }
+
+    /**
+     * Runs the inspections applicable to the given object.
+     */
+    public void run(@Nullable ContextT ctx, @Nonnull TargetT obj) {
+        for (Inspection<? super ContextT, ?> i :
+                inspectionsFor(obj.getClass())) {
+            i.runChecked(ctx, obj);
+        }
+    }
+
+    /**
+     * Runs the inspections over all the elements available through the
+     * iterator (same as {@link InspectionSet#runAllOnIterator}).
+     */
+    public void runAllOnIterator(
+            @Nullable ContextT ctx,
+            @Nonnull Iterator<? extends TargetT> it
+    ) {
+        Class<?> lastClass = null;
+        Inspection<? super ContextT, ?>[] last = null;
+        while (it.hasNext()) {
+            TargetT obj = it.next();
+            Class<?> clazz = obj.getClass();
+            if (clazz != lastClass) {
+                last = inspectionsFor(clazz);
+                lastClass = clazz;
+            }
+            for (Inspection<? super ContextT, ?> i : last) {
+                i.runChecked(ctx, obj);
+            }
+        }
+    }
+
+}
@@ -69,7 +69,7 @@ public final class AgsNodeUnion extends AgsNode {
             return it;
         }
         return new Iterator<AgsNode>() {
-            Iterator<AgsNode> sub = it.next().iterateAs(Type.UNION);
+            Iterator<AgsNode> sub = branchesOf(it.next());
             AgsNode next;
             boolean consumed = true;
 
@@ -80,7 +80,7 @@ public final class AgsNodeUnion extends AgsNode {
                         next = null;
                         return;
                     }
-                    sub = it.next().iterateAs(Type.UNION);
+                    sub = branchesOf(it.next());
                 }
                 next = sub.next();
                 consumed = false;
@@ -108,6 +108,19 @@ public final class AgsNodeUnion extends AgsNode {
         };
     }
 
+    /**
+     * Lists the branches of one of the declarations. A quantified union
+     * (e.g. {@code nterm x ::= (a | b)*;}) is a single branch, since the
+     * quantifier applies to all of it.
+     */
+    @Nonnull
+    private static Iterator<AgsNode> branchesOf(@Nonnull AgsNode root) {
+        if (root.hasQuantifiers()) {
+            return Iterators.singletonIterator(root);
+        }
+        return root.iterateAs(Type.UNION);
+    }
+
     /**
      * {@inheritDoc}
      */
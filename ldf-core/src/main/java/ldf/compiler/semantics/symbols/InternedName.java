@@ -0,0 +1,102 @@
+package ldf.compiler.semantics.symbols;
+
+import com.google.common.collect.MapMaker;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>An identifier, interned: there's only one instance for each distinct
+ * name, and each one gets an integer id. The ids are used (instead of the
+ * names) as keys in the tables of symbols, so that looking up a symbol
+ * doesn't have to hash or compare strings.
+ * </p>
+ * <p>The names are interned by the lexer, as identifiers are read. The
+ * table of names is shared by the whole process, but only holds on to
+ * the names weakly: a name nobody refers to any more (e.g. one typed and
+ * deleted in an editor) is dropped, and gets a new id if it's interned
+ * again (ids are never reused). Whoever keys a table by id has to keep
+ * the {@code InternedName} reachable (syntax trees do, through their
+ * {@link ldf.compiler.ast.AstIdentifier}s). Syntax trees stored by {@link
+ * ldf.compiler.ast.AstCodec} keep the names, and get ids when decoded.
+ * </p>
+ *
+ * @author Cristian Harja
+ */
+@Immutable
+public final class InternedName {
+
+    private static final ConcurrentMap<String, InternedName> names
+            = new MapMaker().weakValues().makeMap();
+
+    private static final ConcurrentMap<Integer, InternedName> byId
+            = new MapMaker().weakValues().makeMap();
+
+    // guarded by the class lock
+    private static int nextId;
+
+    private final String name;
+    private final int id;
+
+    private InternedName(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    /**
+     * The interned form of the given name (created, if needed).
+     */
+    @Nonnull
+    public static InternedName of(@Nonnull String name) {
+        InternedName result = names.get(name);
+        return result != null ? result : add(name);
+    }
+
+    private static synchronized InternedName add(String name) {
+        InternedName result = names.get(name);
+        if (result != null) {
+            return result;
+        }
+        result = new InternedName(name, nextId++);
+        byId.put(result.id, result);
+        // published last: whoever sees the name can also find it by id
+        names.put(name, result);
+        return result;
+    }
+
+    /**
+     * The id of the given name (interning it, if needed). The id can only
+     * be relied on while the name is referenced (see above).
+     */
+    public static int idOf(@Nonnull String name) {
+        return of(name).id;
+    }
+
+    /**
+     * The name with the given id (which must have been obtained from
+     * this class, and still be referenced).
+     */
+    @Nonnull
+    public static InternedName forId(int id) {
+        InternedName result = byId.get(id);
+        if (result == null) {
+            throw new IllegalArgumentException("Unknown name id: " + id);
+        }
+        return result;
+    }
+
+    @Nonnull
+    public String getName() {
+        return name;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -6,12 +6,14 @@ import ldf.compiler.ast.AstIdentifier;
 import ldf.compiler.ast.AstNode;
 import ldf.compiler.ast.Reference;
 import ldf.compiler.context.ParserContext;
+import ldf.compiler.util.IntHashMap;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.collect.Iterables.getOnlyElement;
 import static java.util.Collections.*;
@@ -37,6 +39,12 @@ public final class NsNode {
     private Map<String, Multimap<NsNodeType, NsNode>> children2;
     private Map<String, Multimap<NsNodeType, NsNode>> readOnlyChildren;
 
+    // read-only children, by name id (see `InternedName`)
+    private IntHashMap<Multimap<NsNodeType, NsNode>> childrenById;
+
+    // the names of `childrenById` (which keep their ids valid)
+    private List<InternedName> childNames;
+
     //TODO: group children by name ?
     //TODO: group children by type ?
 
@@ -46,6 +54,13 @@ public final class NsNode {
     private AstIdentifier astIdentifier;
     private AstNode astNode;
 
+    /**
+     * Incremented on every change which might affect the resolution of
+     * symbols in this tree (shared by all of its nodes, i.e. there is one
+     * per global namespace); see {@link Scope}.
+     */
+    final AtomicLong version;
+
     protected NsNode(
             NsNodeType type,
             NsNode parent,
@@ -54,6 +69,7 @@ public final class NsNode {
         this.parent = parent;
         this.type = type;
         this.name = name;
+        this.version = parent != null ? parent.version : new AtomicLong();
     }
 
     public static NsNode initGlobalNS() {
@@ -76,7 +92,6 @@ public final class NsNode {
         assertValidNsNodeTypes(pathTypes, targetTypes);
 
         AstIdentifier id;
-        String idName;
         boolean isLastId;
         NsNodeType[] types;
         Multimap<NsNodeType, NsNode> mm;
@@ -86,10 +101,9 @@ public final class NsNode {
 
         do {
             id = it.next();
-            idName = id.getName();
             isLastId = !it.hasNext();
 
-            if (idName.equals("_")) {
+            if (id.getId() == Scope.WILDCARD_ID) {
                 ParserContext ctx = id.getParserContext();
                 if (!allowWildcard) {
                     if (!testResolve) {
@@ -116,7 +130,7 @@ public final class NsNode {
             }
 
             types = isLastId ? targetTypes : pathTypes;
-            mm = current.getChildren().get(idName);
+            mm = current.getChildren(id.getId());
 
             int matchingSymbols = 0;
             NsNodeType matchingType = null;
@@ -226,7 +240,16 @@ public final class NsNode {
         return name;
     }
 
-    public boolean hasChild(
+    public synchronized boolean hasChildren() {
+        if (!readOnlyAnonChildren.isEmpty()) return true;
+        if (children == null) return false;
+        for (Multimap<NsNodeType, NsNode> mm : children.values()) {
+            if (!mm.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean hasChild(
             @Nonnull String name,
             @Nonnull NsNodeType type
     ) {
@@ -235,6 +258,12 @@ public final class NsNode {
         return symbols != null && symbols.containsKey(name);
     }
 
+    /**
+     * Returns a read-only view of this node's children, grouped by name
+     * and type. Individual lookups are thread-safe; iterating over the
+     * view while other threads might declare new children must be done
+     * while holding the lock on this {@code NsNode}.
+     */
     public synchronized Map<String, Multimap<NsNodeType, NsNode>>
     getChildren() {
         if (children == null) {
@@ -243,6 +272,18 @@ public final class NsNode {
         return readOnlyChildren;
     }
 
+    /**
+     * Returns a read-only view of this node's children with the given
+     * name (by its {@link InternedName} id), grouped by type; or {@code
+     * null} if there are no such children.
+     */
+    @Nullable
+    public synchronized Multimap<NsNodeType, NsNode> getChildren(
+            int nameId
+    ) {
+        return childrenById != null ? childrenById.get(nameId) : null;
+    }
+
     public synchronized Collection<NsNode> getChildren(
             @Nonnull NsNodeType type
     ) {
@@ -279,19 +320,29 @@ public final class NsNode {
             @Nonnull NsNodeType type,
             @Nullable AstNode astNode
     ) {
+        version.incrementAndGet();
         String name = id.getName();
         if (children == null) {
-            children = new LinkedHashMap<String,
-                    Multimap<NsNodeType, NsNode>>();
-            children2 = new LinkedHashMap<String,
-                    Multimap<NsNodeType, NsNode>>();
+            // synchronized, for the benefit of concurrent readers
+            children = synchronizedMap(new LinkedHashMap<String,
+                    Multimap<NsNodeType, NsNode>>());
+            children2 = synchronizedMap(new LinkedHashMap<String,
+                    Multimap<NsNodeType, NsNode>>());
             readOnlyChildren = Collections.unmodifiableMap(children2);
+            childrenById = new IntHashMap<Multimap<NsNodeType, NsNode>>();
+            childNames = new ArrayList<InternedName>();
         }
         Multimap<NsNodeType, NsNode> symbols = children.get(name);
         if (symbols == null) {
-            symbols = ArrayListMultimap.create();
+            symbols = Multimaps.synchronizedListMultimap(
+                    ArrayListMultimap.<NsNodeType, NsNode>create()
+            );
+            Multimap<NsNodeType, NsNode> readOnly;
+            readOnly = Multimaps.unmodifiableMultimap(symbols);
             children.put(name, symbols);
-            children2.put(name, Multimaps.unmodifiableMultimap(symbols));
+            children2.put(name, readOnly);
+            childrenById.put(id.getId(), readOnly);
+            childNames.add(id.getInternedName());
         }
         Collection<NsNode> nodes = symbols.get(type);
         NsNode result;
@@ -314,6 +365,20 @@ public final class NsNode {
         return result;
     }
 
+    /**
+     * Removes a previously declared child (e.g. when the file declaring
+     * it gets recompiled). Its name is kept in the index, so that the
+     * scopes which imported it see the change.
+     *
+     * @return {@code true} if {@code child} was found and removed
+     */
+    public synchronized boolean removeChild(@Nonnull NsNode child) {
+        if (children == null) return false;
+        version.incrementAndGet();
+        Multimap<NsNodeType, NsNode> symbols = children.get(child.name);
+        return symbols != null && symbols.remove(child.type, child);
+    }
+
     @Nonnull
     public synchronized NsNode newAnonymousChild(
             @Nonnull NsNodeType type,
@@ -363,10 +428,12 @@ public final class NsNode {
             @Override
             public NsNode next() {
                 NsNode n = q.pop();
-                if (n.children != null) {
-                    for (Multimap<NsNodeType, NsNode> mm :
-                            n.children.values()) {
-                        q.addAll(mm.values());
+                synchronized (n) {
+                    if (n.children != null) {
+                        for (Multimap<NsNodeType, NsNode> mm :
+                                n.children.values()) {
+                            q.addAll(mm.values());
+                        }
                     }
                 }
                 return n;
@@ -44,5 +44,16 @@ public enum NsNodeType {
     public boolean isSealed() {
         return sealed;
     }
+
+    /**
+     * A bit set of the given types.
+     */
+    static int maskOf(@Nonnull NsNodeType[] types) {
+        int result = 0;
+        for (NsNodeType t : types) {
+            result |= t.mask;
+        }
+        return result;
+    }
 }
 
@@ -5,13 +5,19 @@ import com.google.common.collect.Multimap;
 import ldf.compiler.ast.AstIdentifier;
 import ldf.compiler.ast.Reference;
 import ldf.compiler.context.ParserContext;
+import ldf.compiler.util.IntHashMap;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.collect.Iterables.getOnlyElement;
 import static ldf.compiler.semantics.symbols.NsNodeType.*;
@@ -25,43 +31,79 @@ import static ldf.compiler.semantics.symbols.NsNodeType.*;
  * location in a package, class or grammar), this class indexes symbols
  * by their visibility according to <em>syntactic</em> rules.
  * </p>
+ * <p>Successful resolutions are cached (by path and expected types), so
+ * that resolving the same name many times (e.g. the non-terminals used
+ * throughout a grammar) only walks the scopes and namespaces once. The
+ * caches of all the scopes are discarded whenever a scope imports a
+ * symbol, or a symbol gets declared or removed (in the same global
+ * namespace).
+ * </p>
  *
  * @author Cristian Harja
  */
 @ThreadSafe
 public final class Scope {
 
-    private Map<String, Multimap<NsNodeType, NsNode>> currentNs;
+    // symbols by name id (see `InternedName`)
+    private final IntHashMap<Multimap<NsNodeType, NsNode>> currentNs;
+
+    // the names symbols were imported as (which keep their ids valid)
+    private final List<InternedName> aliases = new ArrayList<InternedName>();
+
+    private final Scope parentTbl;
+
+    /**
+     * The version of the global namespace (see {@link NsNode#version});
+     * cached resolutions made before a change aren't used after it.
+     */
+    private final AtomicLong version;
+
+    private static final InternedName WILDCARD = InternedName.of("_");
+
+    static final int WILDCARD_ID = WILDCARD.getId();
 
-    private Scope parentTbl;
+    private volatile Cache cache = new Cache(-1);
 
-    public Scope() {
-        this(null);
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * @param globalNS the namespace of the symbols which will be imported
+     *                 into this scope (and its forks)
+     */
+    public Scope(@Nonnull NsNode globalNS) {
+        this(null, globalNS.version);
     }
 
-    private Scope(Scope parent) {
+    private Scope(Scope parent, AtomicLong version) {
         parentTbl = parent;
-        currentNs = new LinkedHashMap<String, Multimap<NsNodeType, NsNode>>();
+        currentNs = new IntHashMap<Multimap<NsNodeType, NsNode>>();
+        this.version = version;
     }
 
     public Scope fork() {
-        return new Scope(this);
+        return new Scope(this, version);
     }
 
-    public void importAll(NsNode nameSpace) {
+    public synchronized void importAll(NsNode nameSpace) {
+        version.incrementAndGet();
         Map<String, Multimap<NsNodeType, NsNode>> children;
         children = nameSpace.getChildren();
-        for (Map.Entry<String, Multimap<NsNodeType, NsNode>> e :
-                children.entrySet()) {
-            String name = e.getKey();
-            Multimap<NsNodeType, NsNode> mm = children.get(name);
-            if (mm != null) {
-                currentNs.put(name, mm);
+
+        // keep other threads from declaring symbols while iterating
+        synchronized (nameSpace) {
+            for (Map.Entry<String, Multimap<NsNodeType, NsNode>> e :
+                    children.entrySet()) {
+                String name = e.getKey();
+                Multimap<NsNodeType, NsNode> mm = children.get(name);
+                if (mm != null) {
+                    currentNs.put(InternedName.idOf(name), mm);
+                }
             }
         }
     }
 
-    public void importOne(
+    public synchronized void importOne(
             @Nonnull NsNode nsNode,
             @Nullable String asName
     ) {
@@ -73,10 +115,14 @@ public final class Scope {
                 );
             }
         }
-        Multimap<NsNodeType, NsNode> mm = currentNs.get(asName);
+        version.incrementAndGet();
+        InternedName name = InternedName.of(asName);
+        int nameId = name.getId();
+        Multimap<NsNodeType, NsNode> mm = currentNs.get(nameId);
         if (mm == null) {
             mm = ArrayListMultimap.create();
-            currentNs.put(asName, mm);
+            currentNs.put(nameId, mm);
+            aliases.add(name);
         }
         mm.put(nsNode.getType(), nsNode);
     }
@@ -95,27 +141,78 @@ public final class Scope {
     ) {
         NsNode.assertValidNsNodeTypes(pathTypes, targetTypes);
 
+        long v = version.get();
+        Cache c = cache;
+        if (c.version != v) {
+            c = new Cache(v);
+            cache = c;
+        }
+
+        CacheKey key = new CacheKey(
+                ref, pathTypes, targetTypes, allowWildcard
+        );
+        CacheEntry hit = c.entries.get(key);
+        if (hit != null) {
+            cacheHits.incrementAndGet();
+            if (hit.usedWildcard) {
+                out_usedWildcard[0] = true;
+            }
+            if (!testResolve) {
+                ref.setReferencedNsNode(hit.result);
+            }
+            return hit.result;
+        }
+        cacheMisses.incrementAndGet();
+
+        boolean[] usedWildcard = new boolean[1];
+        NsNode result = resolveUncached(
+                testResolve, ref, pathTypes, targetTypes,
+                allowWildcard, usedWildcard
+        );
+        if (usedWildcard[0]) {
+            out_usedWildcard[0] = true;
+        }
+
+        // failures aren't cached, so their errors get reported each time
+        if (result != null) {
+            c.entries.putIfAbsent(key, new CacheEntry(
+                    result, usedWildcard[0]
+            ));
+        }
+        return result;
+    }
+
+    @Nullable
+    private NsNode resolveUncached(
+            boolean testResolve,
+            @Nonnull Reference ref,
+            @Nonnull NsNodeType[] pathTypes,
+            @Nonnull NsNodeType[] targetTypes,
+            boolean allowWildcard,
+            boolean[] out_usedWildcard
+    ) {
+
         Iterator<AstIdentifier> it;
         AstIdentifier id;
-        String idName;
+        int nameId;
         boolean isLastId;
         NsNodeType[] types;
         Multimap<NsNodeType, NsNode> mm;
 
         it = ref.getPath().iterator();
         id = it.next();
-        idName = id.getName();
+        nameId = id.getId();
 
         Scope s = this;
 
-        if (idName.equals("_")) {
+        if (nameId == WILDCARD_ID) {
             // jump to the global scope
             while (s.parentTbl != null) {
                 s = s.parentTbl;
             }
 
             id = it.next();
-            idName = id.getName();
+            nameId = id.getId();
             isLastId = !it.hasNext();
             types = isLastId ? targetTypes : pathTypes;
 
@@ -127,7 +224,7 @@ public final class Scope {
         do {
 
             // look for symbols with the correct name in this scope
-            mm = s.currentNs.get(idName);
+            mm = s.lookup(nameId);
             s = s.parentTbl;
 
             // if none found, continue with the parent scope
@@ -191,6 +288,96 @@ public final class Scope {
         return null;
     }
 
+    @Nullable
+    private synchronized Multimap<NsNodeType, NsNode> lookup(int nameId) {
+        return currentNs.get(nameId);
+    }
+
+    /**
+     * The number of resolutions answered from this scope's cache.
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * The number of resolutions which weren't found in this scope's cache
+     * (and had to be done by walking the scopes).
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    private static final class Cache {
+        final long version;
+        final ConcurrentMap<CacheKey, CacheEntry> entries
+                = new ConcurrentHashMap<CacheKey, CacheEntry>();
+
+        Cache(long version) {
+            this.version = version;
+        }
+    }
+
+    private static final class CacheEntry {
+        final NsNode result;
+        final boolean usedWildcard;
+
+        CacheEntry(NsNode result, boolean usedWildcard) {
+            this.result = result;
+            this.usedWildcard = usedWildcard;
+        }
+    }
+
+    /**
+     * A reference's path, and the types of symbols it's expected to
+     * refer to (the order of the types doesn't matter).
+     */
+    private static final class CacheKey {
+        final int[] path;
+        final int pathTypes;
+        final int targetTypes;
+        final boolean allowWildcard;
+        final int hash;
+
+        CacheKey(
+                Reference ref,
+                NsNodeType[] pathTypes,
+                NsNodeType[] targetTypes,
+                boolean allowWildcard
+        ) {
+            List<AstIdentifier> ids = ref.getPath();
+            path = new int[ids.size()];
+            for (int i = 0; i < path.length; i++) {
+                path[i] = ids.get(i).getId();
+            }
+            this.pathTypes = NsNodeType.maskOf(pathTypes);
+            this.targetTypes = NsNodeType.maskOf(targetTypes);
+            this.allowWildcard = allowWildcard;
+
+            int h = Arrays.hashCode(path);
+            h = 31 * h + this.pathTypes;
+            h = 31 * h + this.targetTypes;
+            hash = 31 * h + (allowWildcard ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof CacheKey)) return false;
+            CacheKey k = (CacheKey) obj;
+            return hash == k.hash &&
+                    pathTypes == k.pathTypes &&
+                    targetTypes == k.targetTypes &&
+                    allowWildcard == k.allowWildcard &&
+                    Arrays.equals(path, k.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
     private static final NsNodeType[]
             STATICS = new NsNodeType[]{GRAMMAR, PACKAGE, CLASS},
             GRAMMAR_ = new NsNodeType[]{GRAMMAR},
@@ -5,18 +5,20 @@ import ldf.compiler.ast.type.ClassTypeExpr;
 import ldf.compiler.ast.type.ObjectTypeExpr;
 import ldf.compiler.ast.type.TypeExpression;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author Cristian Harja
  */
 public abstract class AbstractTypeEnv implements TypeEnv {
 
-    protected Map<String, AggregateType> cacheObjTypes;
+    // shared by all the files being analyzed (possibly in parallel)
+    protected ConcurrentMap<String, AggregateType> cacheObjTypes;
 
     protected AbstractTypeEnv() {
-        cacheObjTypes = new HashMap<String, AggregateType>();
+        cacheObjTypes = new ConcurrentHashMap<String, AggregateType>();
     }
 
     public DataType resolveType(TypeExpression type) {
@@ -0,0 +1,270 @@
+package ldf.compiler.syntax.tree;
+
+import ldf.java_cup.runtime.Symbol;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Builds the syntax tree of the input into flat arrays, instead of a
+ * tree of {@link StNode} objects (see {@link StCompactTree}). The parser
+ * still gets a {@code Symbol} for each token and non-terminal, but these
+ * are plain symbols, which are garbage as soon as they are reduced (if
+ * no AST node refers to them).
+ * </p>
+ * <p>While parsing, the nodes which don't have a parent yet (those on
+ * the parse stack, followed by the lookahead) are kept in a list, in the
+ * order of their position, linked through their sibling indices: each
+ * reduction replaces a range of this list with a new node, and the range
+ * becomes the list of its children.
+ * </p>
+ *
+ * @author Cristian Harja
+ */
+@NotThreadSafe
+public class StCompactNodeFactory extends LdfTokenFactory {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int size;
+    private int[] symbols  = new int[INITIAL_CAPACITY];
+    private int[] parents  = new int[INITIAL_CAPACITY];
+    private int[] children = new int[INITIAL_CAPACITY];
+    private int[] siblings = new int[INITIAL_CAPACITY];
+    private int[] offsetsL = new int[INITIAL_CAPACITY];
+    private int[] offsetsR = new int[INITIAL_CAPACITY];
+
+    // the list of nodes without a parent (`siblings` links it forward)
+    private int[] prevRoots = new int[INITIAL_CAPACITY];
+    private int firstRoot = -1;
+    private int lastRoot = -1;
+
+    // symbol names (and the codes and kinds of the symbols) seen so far
+    private final Map<String, Integer> nameIds =
+            new HashMap<String, Integer>();
+    private String[] names = new String[64];
+    private int[] codes = new int[64];
+    private boolean[] tokens = new boolean[64];
+
+    /**
+     * Symbol which knows the index of its node.
+     */
+    private static final class Node extends Symbol {
+        int index = -1;
+
+        Node(String symName, int symCode, int parse_state) {
+            super(symName, symCode, parse_state);
+        }
+    }
+
+    private static int indexOf(Symbol s) {
+        return s instanceof Node ? ((Node) s).index : -1;
+    }
+
+    private int symbolId(String name, int code, boolean token) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = nameIds.size();
+            if (id == names.length) {
+                names = Arrays.copyOf(names, id * 2);
+                codes = Arrays.copyOf(codes, id * 2);
+                tokens = Arrays.copyOf(tokens, id * 2);
+            }
+            names[id] = name;
+            codes[id] = code;
+            tokens[id] = token;
+            nameIds.put(name, id);
+        }
+        return id;
+    }
+
+    private int addNode(Symbol s, boolean token) {
+        if (size == symbols.length) {
+            int capacity = size * 2;
+            symbols  = Arrays.copyOf(symbols,  capacity);
+            parents  = Arrays.copyOf(parents,  capacity);
+            children = Arrays.copyOf(children, capacity);
+            siblings = Arrays.copyOf(siblings, capacity);
+            offsetsL = Arrays.copyOf(offsetsL, capacity);
+            offsetsR = Arrays.copyOf(offsetsR, capacity);
+            prevRoots = Arrays.copyOf(prevRoots, capacity);
+        }
+        int n = size++;
+        symbols[n] = symbolId(
+                s.getSymbolName(), s.getSymbolCode(), token
+        );
+        parents[n] = -1;
+        children[n] = -1;
+        siblings[n] = -1;
+        prevRoots[n] = -1;
+        offsetsL[n] = s.getOffsetL();
+        offsetsR[n] = s.getOffsetR();
+        ((Node) s).index = n;
+        return n;
+    }
+
+    /**
+     * Inserts a node into the list of nodes without a parent, after the
+     * given one (or at the start, if {@code prev} is -1).
+     */
+    private void insertRoot(int prev, int n) {
+        int next = prev >= 0 ? siblings[prev] : firstRoot;
+        prevRoots[n] = prev;
+        siblings[n] = next;
+        if (prev >= 0) {
+            siblings[prev] = n;
+        } else {
+            firstRoot = n;
+        }
+        if (next >= 0) {
+            prevRoots[next] = n;
+        } else {
+            lastRoot = n;
+        }
+    }
+
+    /**
+     * Makes the nodes from {@code first} to {@code last} (in the list of
+     * nodes without a parent) the children of {@code n}, which takes
+     * their place in the list.
+     */
+    private void adoptRoots(int n, int first, int last) {
+        int prev = prevRoots[first];
+        int next = siblings[last];
+        for (int c = first; c >= 0; c = siblings[c]) {
+            parents[c] = n;
+            if (c == last) {
+                break;
+            }
+        }
+        siblings[last] = -1;
+        children[n] = first;
+
+        prevRoots[n] = prev;
+        siblings[n] = next;
+        if (prev >= 0) {
+            siblings[prev] = n;
+        } else {
+            firstRoot = n;
+        }
+        if (next >= 0) {
+            prevRoots[next] = n;
+        } else {
+            lastRoot = n;
+        }
+    }
+
+    @Override
+    protected Symbol newSymbol(
+            String symName, int symCode, int parse_state
+    ) {
+        return new Node(symName, symCode, parse_state);
+    }
+
+    @Override
+    public Symbol newSymbol(
+            String name, int id,
+            Symbol left, Symbol right
+    ) {
+        Symbol s = super.newSymbol(name, id, left, right);
+        int n = addNode(s, false);
+        int first = indexOf(left);
+        int last = indexOf(right);
+        // (the error recovery may create a symbol "covering" another one
+        // which stays on the stack, and already has a parent afterwards)
+        if (first >= 0 && last >= 0 &&
+                parents[first] < 0 && parents[last] < 0) {
+            adoptRoots(n, first, last);
+        }
+        return s;
+    }
+
+    @Override
+    public Symbol newEmptySymbol(
+            String name, int id, Symbol prevSymbol
+    ) {
+        Symbol s = super.newEmptySymbol(name, id, prevSymbol);
+        insertRoot(indexOf(prevSymbol), addNode(s, false));
+        return s;
+    }
+
+    @Override
+    public Symbol newToken(
+            String symName, int symCode,
+            int lineL, int columnL, int offsetL
+    ) {
+        Symbol tok = super.newToken(
+                symName, symCode,
+                lineL, columnL, offsetL
+        );
+        insertRoot(lastRoot, addNode(tok, true));
+        return tok;
+    }
+
+    @Override
+    public Symbol newEOF(
+            String symName, int symCode,
+            int lineL, int columnL, int offsetL
+    ) {
+        Symbol eof = super.newEOF(
+                symName, symCode,
+                lineL, columnL, offsetL
+        );
+        offsetsR[indexOf(eof)] = eof.getOffsetR();
+        return eof;
+    }
+
+    @Override
+    protected void markRightPos(int line, int column, int offset) {
+        if (!lastRightPosWasSet && lastComment == null) {
+            int n = indexOf(lastSymbol);
+            if (n >= 0) {
+                offsetsR[n] = offset;
+            }
+        }
+        super.markRightPos(line, column, offset);
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        size = 0;
+        firstRoot = -1;
+        lastRoot = -1;
+    }
+
+    /**
+     * Returns the tree built so far, with the given symbol (normally the
+     * result of the parser) as its root. The factory keeps its arrays,
+     * but it should be reset before being used again.
+     */
+    @Nonnull
+    public StCompactTree buildTree(@Nonnull Symbol root) {
+        // nodes left without a parent (the root, and tokens which have
+        // been discarded by the error recovery) have no siblings
+        for (int n = firstRoot; n >= 0; ) {
+            int next = siblings[n];
+            siblings[n] = -1;
+            n = next;
+        }
+        firstRoot = -1;
+        lastRoot = -1;
+
+        int count = nameIds.size();
+        return new StCompactTree(
+                indexOf(root), size,
+                Arrays.copyOf(symbols, size),
+                Arrays.copyOf(parents, size),
+                Arrays.copyOf(children, size),
+                Arrays.copyOf(siblings, size),
+                Arrays.copyOf(offsetsL, size),
+                Arrays.copyOf(offsetsR, size),
+                Arrays.copyOf(names, count),
+                Arrays.copyOf(codes, count),
+                Arrays.copyOf(tokens, count)
+        );
+    }
+}
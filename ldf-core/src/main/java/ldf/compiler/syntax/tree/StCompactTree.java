@@ -0,0 +1,125 @@
+package ldf.compiler.syntax.tree;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * <p>A syntax tree stored in flat arrays of integers (built by the
+ * {@link StCompactNodeFactory}), as an alternative to a tree of {@link
+ * StNode} objects, which takes several times less memory.
+ * </p>
+ * <p>The nodes are identified by their indices ({@code 0} to {@code
+ * size() - 1}), with -1 standing for "no node"; for each of them the
+ * tree only keeps its symbol, its links to its parent, its first child
+ * and next sibling, and its start/end offsets (but not the line and
+ * column numbers, nor the comments). It can be walked either through
+ * these indices or with a {@link StCursor}.
+ * </p>
+ *
+ * @author Cristian Harja
+ */
+@Immutable
+public final class StCompactTree {
+
+    private final int root;
+    private final int size;
+
+    private final int[] symbols;
+    private final int[] parents;
+    private final int[] children;
+    private final int[] siblings;
+    private final int[] offsetsL;
+    private final int[] offsetsR;
+
+    // indexed by the values in `symbols`
+    private final String[] names;
+    private final int[] codes;
+    private final boolean[] tokens;
+
+    StCompactTree(
+            int root, int size,
+            int[] symbols, int[] parents, int[] children, int[] siblings,
+            int[] offsetsL, int[] offsetsR,
+            String[] names, int[] codes, boolean[] tokens
+    ) {
+        this.root = root;
+        this.size = size;
+        this.symbols = symbols;
+        this.parents = parents;
+        this.children = children;
+        this.siblings = siblings;
+        this.offsetsL = offsetsL;
+        this.offsetsR = offsetsR;
+        this.names = names;
+        this.codes = codes;
+        this.tokens = tokens;
+    }
+
+    /**
+     * The number of nodes (including tokens which may have been discarded
+     * by the error recovery, and are not part of the tree).
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The index of the root node (the parser's start symbol).
+     */
+    public int getRoot() {
+        return root;
+    }
+
+    /**
+     * A new cursor, positioned on the root node.
+     */
+    @Nonnull
+    public StCursor cursor() {
+        return new StCursor(this, root);
+    }
+
+    /**
+     * A new cursor, positioned on the given node.
+     */
+    @Nonnull
+    public StCursor cursor(int node) {
+        return new StCursor(this, node);
+    }
+
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    public int getChildL(int node) {
+        return children[node];
+    }
+
+    public int getSiblingR(int node) {
+        return siblings[node];
+    }
+
+    public int getOffsetL(int node) {
+        return offsetsL[node];
+    }
+
+    public int getOffsetR(int node) {
+        return offsetsR[node];
+    }
+
+    public int getSymbolCode(int node) {
+        return codes[symbols[node]];
+    }
+
+    public String getSymbolName(int node) {
+        return names[symbols[node]];
+    }
+
+    /**
+     * Whether the node is a token returned by the lexer (as opposed to a
+     * non-terminal, even an empty one).
+     */
+    public boolean isToken(int node) {
+        return tokens[symbols[node]];
+    }
+
+}
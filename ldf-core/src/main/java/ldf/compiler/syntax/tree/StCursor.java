@@ -0,0 +1,128 @@
+package ldf.compiler.syntax.tree;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * <p>Moves over the nodes of a {@link StCompactTree}, giving access to
+ * the node it's positioned on. It's meant to be used instead of creating
+ * an object for each node: the same cursor can walk the whole tree.
+ * </p>
+ * <p>The {@code to...} methods move the cursor and return {@code true},
+ * if there's a node to move to; otherwise, they return {@code false} and
+ * the cursor stays where it was.
+ * </p>
+ *
+ * @author Cristian Harja
+ */
+@NotThreadSafe
+public final class StCursor {
+
+    private final StCompactTree tree;
+    private int node;
+
+    StCursor(StCompactTree tree, int node) {
+        this.tree = tree;
+        this.node = node;
+    }
+
+    @Nonnull
+    public StCompactTree getTree() {
+        return tree;
+    }
+
+    /**
+     * The index of the current node.
+     */
+    public int getNode() {
+        return node;
+    }
+
+    public void moveTo(int node) {
+        if (node < 0 || node >= tree.size()) {
+            throw new IndexOutOfBoundsException("No node " + node);
+        }
+        this.node = node;
+    }
+
+    public boolean toParent() {
+        return move(tree.getParent(node));
+    }
+
+    public boolean toChildL() {
+        return move(tree.getChildL(node));
+    }
+
+    public boolean toSiblingR() {
+        return move(tree.getSiblingR(node));
+    }
+
+    /**
+     * Moves to the next node in depth-first order (pre-order), without
+     * leaving the sub-tree of the given node.
+     */
+    public boolean toNext(int subtree) {
+        int n = tree.getChildL(node);
+        if (n >= 0) {
+            node = n;
+            return true;
+        }
+        for (n = node; n >= 0 && n != subtree; n = tree.getParent(n)) {
+            int s = tree.getSiblingR(n);
+            if (s >= 0) {
+                node = s;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves to the next node in depth-first order (pre-order).
+     */
+    public boolean toNext() {
+        return toNext(-1);
+    }
+
+    private boolean move(int n) {
+        if (n < 0) {
+            return false;
+        }
+        node = n;
+        return true;
+    }
+
+    public boolean hasParent() {
+        return tree.getParent(node) >= 0;
+    }
+
+    public boolean isLeafNode() {
+        return tree.getChildL(node) < 0;
+    }
+
+    public boolean isToken() {
+        return tree.isToken(node);
+    }
+
+    public int getSymbolCode() {
+        return tree.getSymbolCode(node);
+    }
+
+    public String getSymbolName() {
+        return tree.getSymbolName(node);
+    }
+
+    public int getOffsetL() {
+        return tree.getOffsetL(node);
+    }
+
+    public int getOffsetR() {
+        return tree.getOffsetR(node);
+    }
+
+    @Override
+    public String toString() {
+        return getSymbolName();
+    }
+
+}
@@ -0,0 +1,503 @@
+package ldf.compiler.syntax.tree;
+
+import ldf.compiler.gen.Lexer;
+import ldf.compiler.gen.parser;
+import ldf.compiler.gen.sym;
+import ldf.compiler.util.CharBufferReader;
+import ldf.java_cup.runtime.Comment;
+import ldf.java_cup.runtime.CommentEnumeration;
+import ldf.java_cup.runtime.LocationAwareEntityImpl;
+import ldf.java_cup.runtime.Scanner;
+import ldf.java_cup.runtime.SubtreeSource;
+import ldf.java_cup.runtime.Symbol;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * <p>Keeps the syntax tree of a source text up to date while the text is
+ * being edited, without parsing all of it again after each edit.
+ * </p>
+ * <p>After an edit, only the tokens around the edited region are lexed
+ * again, until the lexer reaches a token which was also there before the
+ * edit (at the same place, relative to the end of the edit). The parser
+ * then resumes from the state it had before the first token that changed
+ * (rebuilt from the sub-trees preceding it), and shifts whole sub-trees
+ * from the earlier parse whenever it gets to them in the same state they
+ * were started in. The part of the tree following the edit only needs to
+ * have its positions shifted.
+ * </p>
+ * <p>The trees are built by the parser without running its actions (see
+ * {@link ldf.java_cup.runtime.lr_parser#parse_syntax}), so they hold no
+ * AST. If an edit leaves the text with syntax errors, it is parsed again
+ * from the start (with error recovery), and so is the next edit.
+ * </p>
+ *
+ * @author Cristian Harja
+ */
+@NotThreadSafe
+public final class StIncrementalParser {
+
+    /**
+     * How far (in characters) the lexer may have looked ahead past the
+     * end of a token; tokens ending closer than this to an edit are lexed
+     * again.
+     */
+    private static final int LOOKAHEAD = 8;
+
+    private final StNodeFactory factory = new StNodeFactory();
+    private final Lexer lexer = new Lexer(null, factory);
+    private final parser parser = new parser(lexer, factory);
+
+    private String text = "";
+    private StNode root;
+    private boolean hasErrors;
+
+    private int relexedTokens;
+    private int reusedSubtrees;
+
+    /**
+     * Parses the given text from the start, discarding the current tree.
+     *
+     * @return the new syntax tree, or {@code null} if the parser couldn't
+     *         recover from an error
+     */
+    @Nullable
+    public StNode parse(@Nonnull String text) {
+        factory.reset();
+        try {
+            lexer.yyreset(new StringReader(text));
+            parser.setScanner(lexer);
+            root = (StNode) parser.parse_syntax(null, null);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        this.text = text;
+        hasErrors = parser.error_count() > 0 || parser.failed;
+        if (parser.failed) {
+            root = null;
+        }
+        relexedTokens = -1;
+        reusedSubtrees = 0;
+        return root;
+    }
+
+    /**
+     * Replaces a region of the text and updates the syntax tree.
+     *
+     * @param offset   where the region starts
+     * @param length   the length of the region
+     * @param inserted the text replacing it
+     * @return the new syntax tree, or {@code null} if the parser couldn't
+     *         recover from an error
+     */
+    @Nullable
+    public StNode edit(int offset, int length, @Nonnull String inserted) {
+        if (offset < 0 || length < 0 || offset + length > text.length()) {
+            throw new IndexOutOfBoundsException(
+                    "Edit [" + offset + ", " + (offset + length) +
+                    ") outside of text of length " + text.length()
+            );
+        }
+        String newText = text.substring(0, offset) + inserted +
+                text.substring(offset + length);
+
+        if (root == null || hasErrors) {
+            return parse(newText);
+        }
+
+        StNode result;
+        try {
+            result = reparse(
+                    newText, offset, offset + length,
+                    inserted.length() - length
+            );
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        if (result == null) {
+            // syntax error; start over, with error recovery
+            return parse(newText);
+        }
+        text = newText;
+        root = result;
+        return root;
+    }
+
+    @Nullable
+    private StNode reparse(
+            String newText, int start, int end, int delta
+    ) throws Exception {
+        StNode startSym = root.getLeafL();
+        while (startSym.getTokenL() != null) {
+            startSym = startSym.getTokenL();
+        }
+
+        // the last token kept, and the first one to lex again
+        StNode q = startSym;
+        StNode r = nextToken(startSym);
+        while (r.getSymbolCode() != sym.EOF &&
+                r.getOffsetR() + LOOKAHEAD <= start) {
+            q = r;
+            r = nextToken(r);
+        }
+        // the lexer must restart in its initial state
+        while (q != startSym && !initialAfter(q)) {
+            q = prevToken(q);
+        }
+
+        // the parse stack, as it was after shifting q
+        List<StNode> prefix = new ArrayList<StNode>();
+        if (q != startSym) {
+            prefix.add(q);
+            for (StNode n = q; n.getParent() != null; n = n.getParent()) {
+                for (StNode s = n.getSiblingL(); s != null;
+                     s = s.getSiblingL()) {
+                    prefix.add(s);
+                }
+            }
+        }
+        prefix.add(startSym);
+        Collections.reverse(prefix);
+        for (StNode s : prefix) {
+            s.detach();
+        }
+
+        // lex until getting back in sync with the old tokens
+        factory.reset();
+        int restart = q == startSym ? 0 : q.getOffsetR();
+        lexer.yyreset(
+                new CharBufferReader(CharBuffer.wrap(
+                        newText, restart, newText.length()
+                )),
+                q == startSym ? 1 : q.getLineR(),
+                q == startSym ? 1 : q.getColumnR(),
+                restart
+        );
+
+        List<StNode> fresh = new ArrayList<StNode>();
+        StNode o = r;
+        while (o.getOffsetL() < end) {
+            o = nextToken(o);
+        }
+        StNode sync = null;
+        StNode tok;
+        for (;;) {
+            boolean initial = lexer.yystate() == Lexer.YYINITIAL;
+            tok = (StNode) lexer.next_token();
+            fresh.add(tok);
+            while (o.getOffsetL() + delta < tok.getOffsetL()) {
+                o = nextToken(o);
+            }
+            if (initial && o.getOffsetL() + delta == tok.getOffsetL() &&
+                    o.getSymbolCode() == tok.getSymbolCode() &&
+                    initialAfter(prevToken(o))) {
+                sync = o;
+                break;
+            }
+            if (tok.getSymbolCode() == sym.EOF) {
+                break;
+            }
+        }
+        relexedTokens = fresh.size();
+        reusedSubtrees = 0;
+
+        Shift shift = null;
+        if (sync != null) {
+            shift = new Shift(sync, tok);
+            if (tok.getSymbolCode() != sym.EOF) {
+                tok.setRightPos(
+                        shift.line(sync.getLineR()),
+                        shift.column(sync.getLineR(), sync.getColumnR()),
+                        shift.offset(sync.getOffsetR())
+                );
+            }
+        }
+
+        Suffix suffix = new Suffix(
+                startSym, fresh, prefix.get(prefix.size() - 1), sync, shift
+        );
+        Symbol result;
+        try {
+            parser.setScanner(suffix);
+            result = parser.parse_syntax(
+                    prefix.toArray(new Symbol[prefix.size()]), suffix
+            );
+        } finally {
+            parser.setScanner(lexer);
+        }
+        return (StNode) result;
+    }
+
+    /**
+     * Whether the lexer is in its initial state after the given token
+     * (which is the case unless it's inside a string or character).
+     */
+    private static boolean initialAfter(StNode tok) {
+        switch (tok.getSymbolCode()) {
+            case sym.STRING_BEGIN:
+            case sym.CHAR_BEGIN:
+            case sym.STRING_FRAGMENT:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * The token after the given leaf, or {@code null} after EOF.
+     */
+    @Nullable
+    private static StNode nextToken(StNode leaf) {
+        for (StNode t = leaf.getTokenR(); t != null; t = t.getTokenR()) {
+            if (t.isToken()) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The token before the given leaf, or the start symbol (the first
+     * leaf) if there isn't one.
+     */
+    private static StNode prevToken(StNode leaf) {
+        StNode t = leaf.getTokenL();
+        while (!t.isToken() && t.getTokenL() != null) {
+            t = t.getTokenL();
+        }
+        return t;
+    }
+
+    /**
+     * Maps the positions following the point where the lexer got back in
+     * sync to the corresponding positions in the new text.
+     */
+    private static final class Shift {
+        private final int lineOld;
+        private final int columnOld;
+        private final int lines;
+        private final int columns;
+        private final int offsets;
+
+        Shift(StNode oldToken, StNode newToken) {
+            lineOld = oldToken.getLineL();
+            columnOld = oldToken.getColumnL();
+            lines = newToken.getLineL() - lineOld;
+            columns = newToken.getColumnL() - columnOld;
+            offsets = newToken.getOffsetL() - oldToken.getOffsetL();
+        }
+
+        int line(int line) {
+            return line + lines;
+        }
+
+        int column(int line, int column) {
+            return line == lineOld ? column + columns : column;
+        }
+
+        int offset(int offset) {
+            return offset + offsets;
+        }
+
+        // (positions which haven't been set, having an offset of -1,
+        // are left alone)
+        void apply(LocationAwareEntityImpl e) {
+            if (e.getOffsetL() >= 0) {
+                e.setLeftPos(
+                        line(e.getLineL()),
+                        column(e.getLineL(), e.getColumnL()),
+                        offset(e.getOffsetL())
+                );
+            }
+            if (e.getOffsetR() >= 0) {
+                e.setRightPos(
+                        line(e.getLineR()),
+                        column(e.getLineR(), e.getColumnR()),
+                        offset(e.getOffsetR())
+                );
+            }
+        }
+
+        void applyToken(StNode tok) {
+            apply(tok);
+            CommentEnumeration comments = tok.getCommentsReverse();
+            while (comments.hasMoreElements()) {
+                Comment c = comments.nextElement();
+                apply(c);
+            }
+        }
+    }
+
+    /**
+     * The tokens seen by the parser after the prefix: the ones lexed
+     * again, followed by the old ones (or whole sub-trees of them).
+     */
+    private final class Suffix implements Scanner, SubtreeSource {
+        private final StNode startSym;
+        private final List<StNode> fresh;
+        private final Shift shift;
+        private int index;
+
+        // the last leaf given to the parser
+        private StNode last;
+
+        // the next old token, with the largest sub-tree starting with it
+        // and the state it was started in (computed before the parser
+        // gets to change the states of the old nodes preceding it)
+        private StNode next;
+        private StNode nextTop;
+        private int nextState;
+
+        // the old token which is the current lookahead, if it can still
+        // be replaced by a sub-tree
+        private StNode pending;
+        private StNode pendingTop;
+        private int pendingState;
+
+        private final Deque<StNode> stack = new ArrayDeque<StNode>();
+
+        Suffix(
+                StNode startSym, List<StNode> fresh, StNode last,
+                @Nullable StNode sync, @Nullable Shift shift
+        ) {
+            this.startSym = startSym;
+            this.fresh = fresh;
+            this.last = last;
+            this.shift = shift;
+            if (sync != null) {
+                advance(sync);
+            }
+        }
+
+        private void advance(StNode leaf) {
+            next = nextToken(leaf);
+            nextTop = null;
+            if (next == null) {
+                return;
+            }
+            StNode top = next;
+            while (top.getParent() != null &&
+                    top.getParent() != root &&
+                    top.getParent().getLeafL() == next) {
+                top = top.getParent();
+            }
+            if (top != next) {
+                StNode left = top.getSiblingL();
+                nextTop = top;
+                nextState = left != null
+                        ? left.getParseState()
+                        : startSym.getParseState();
+            }
+        }
+
+        private void settle() {
+            if (pending != null) {
+                pending.detach();
+                shift.applyToken(pending);
+                pending = null;
+                pendingTop = null;
+            }
+        }
+
+        @Override
+        public Symbol next_token() {
+            settle();
+            StNode tok;
+            if (index < fresh.size()) {
+                tok = fresh.get(index++);
+            } else if (next != null) {
+                tok = next;
+                StNode top = nextTop;
+                int state = nextState;
+                advance(tok);
+                if (top == null) {
+                    tok.detach();
+                    shift.applyToken(tok);
+                } else {
+                    pending = tok;
+                    pendingTop = top;
+                    pendingState = state;
+                }
+            } else {
+                // the parser reads once more after EOF
+                return last;
+            }
+            StNode.relinkTokens(last, tok);
+            last = tok;
+            return tok;
+        }
+
+        @Override
+        public Symbol subtree(int state, Symbol lookahead) {
+            if (lookahead != pending || state != pendingState) {
+                return null;
+            }
+            StNode top = pendingTop;
+            pending = null;
+            pendingTop = null;
+
+            top.detach();
+            stack.push(top);
+            while (!stack.isEmpty()) {
+                StNode n = stack.pop();
+                if (n.isToken()) {
+                    shift.applyToken(n);
+                } else {
+                    shift.apply(n);
+                }
+                for (StNode c = n.getChildL(); c != null;
+                     c = c.getSiblingR()) {
+                    stack.push(c);
+                }
+            }
+            // (its first token has already been linked to the last leaf)
+            last = top.getLeafR();
+            advance(last);
+            reusedSubtrees++;
+            return top;
+        }
+    }
+
+    @Nullable
+    public StNode getSyntaxTree() {
+        return root;
+    }
+
+    @Nonnull
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Whether the text had syntax errors when last parsed.
+     */
+    public boolean hasErrors() {
+        return hasErrors;
+    }
+
+    /**
+     * The number of tokens lexed during the last edit (or -1, if the text
+     * had to be parsed from the start).
+     */
+    public int getRelexedTokens() {
+        return relexedTokens;
+    }
+
+    /**
+     * The number of sub-trees reused during the last edit.
+     */
+    public int getReusedSubtrees() {
+        return reusedSubtrees;
+    }
+
+}
@@ -57,6 +57,7 @@ public class StNode extends Symbol implements Iterable<StNode> {
 
     private StNode tokenL;
     private StNode tokenR;
+    private boolean token; // whether this leaf came from the lexer
 
     // Some shortcuts through the syntax tree:
 
@@ -100,6 +101,16 @@ public class StNode extends Symbol implements Iterable<StNode> {
         t2.tokenL = t1;
     }
 
+    /**
+     * Same as {@link #linkTokens}, but the two leaves may be linked to
+     * other ones already (an incremental parse puts together leaves from
+     * different places of the old list of tokens).
+     */
+    static void relinkTokens(StNode t1, StNode t2) {
+        t1.tokenR = t2;
+        t2.tokenL = t1;
+    }
+
     protected static void insertEmptySymbol(StNode prev, StNode s) {
         StNode next = prev.tokenR;
         prev.tokenR = s;
@@ -171,6 +182,56 @@ public class StNode extends Symbol implements Iterable<StNode> {
         return childL == null && childR == null;
     }
 
+    /**
+     * Whether this node is a token returned by the lexer (as opposed to
+     * a non-terminal, even an empty one, which is also a leaf).
+     */
+    public boolean isToken() {
+        return token;
+    }
+
+    void markToken() {
+        token = true;
+    }
+
+    /**
+     * The leaf before this one in the list of all the leaves (the tokens,
+     * and the empty non-terminals between them).
+     */
+    @Nullable
+    public StNode getTokenL() {
+        return tokenL;
+    }
+
+    /**
+     * The leaf after this one in the list of all the leaves (the tokens,
+     * and the empty non-terminals between them).
+     */
+    @Nullable
+    public StNode getTokenR() {
+        return tokenR;
+    }
+
+    int getParseState() {
+        return parse_state;
+    }
+
+    /**
+     * Turns this node into the root of a sub-tree of its own, so that it
+     * can be shifted again (by an incremental parse) and get a new parent.
+     */
+    void detach() {
+        parent = null;
+        siblingL = null;
+        siblingR = null;
+        if (isLeafNode()) {
+            root = null;
+        } else {
+            leafL.root = this;
+            leafR.root = this;
+        }
+    }
+
     public boolean hasParent() {
         return parent != null;
     }
@@ -58,6 +58,7 @@ public class StNodeFactory extends LdfTokenFactory {
                 symName, symCode,
                 lineL, columnL, offsetL
         );
+        tok.markToken();
         if (lastToken != null) {
             StNode.linkTokens(lastToken, tok);
         }
@@ -66,6 +67,12 @@ public class StNodeFactory extends LdfTokenFactory {
         return tok;
     }
 
+    @Override
+    public void reset() {
+        super.reset();
+        lastToken = null;
+    }
+
     @Override
     public Symbol newEOF(
             String symName, int symCode,
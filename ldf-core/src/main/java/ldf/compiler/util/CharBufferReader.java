@@ -0,0 +1,46 @@
+package ldf.compiler.util;
+
+import javax.annotation.Nonnull;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * A {@link Reader} which consumes the contents of a {@link CharBuffer}
+ * (between its position and its limit), without copying them upfront.
+ * The buffer's position is advanced as characters are read, so callers
+ * who need to keep the original should pass a {@link
+ * CharBuffer#duplicate duplicate} instead.
+ *
+ * @author Cristian Harja
+ */
+public final class CharBufferReader extends Reader {
+
+    private CharBuffer buffer;
+
+    public CharBufferReader(@Nonnull CharBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read(@Nonnull char[] cbuf, int off, int len) {
+        if (buffer == null || !buffer.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(cbuf, off, n);
+        return n;
+    }
+
+    @Override
+    public int read() {
+        if (buffer == null || !buffer.hasRemaining()) {
+            return -1;
+        }
+        return buffer.get();
+    }
+
+    @Override
+    public void close() {
+        buffer = null;
+    }
+}
@@ -0,0 +1,73 @@
+package ldf.compiler.util;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.*;
+
+/**
+ * <p>Keeps track of which items (e.g. source files) depend on which
+ * other items, and answers the reverse question: which items are
+ * affected when some of them change.
+ * </p>
+ *
+ * @param <T> item type
+ * @author Cristian Harja
+ */
+@NotThreadSafe
+public final class DependencyGraph<T> {
+
+    private final Multimap<T, T> dependencies = HashMultimap.create();
+    private final Multimap<T, T> dependents = HashMultimap.create();
+
+    /**
+     * Replaces the list of items that {@code item} depends on.
+     */
+    public void setDependencies(
+            @Nonnull T item,
+            @Nonnull Collection<T> dependsOn
+    ) {
+        remove(item);
+        for (T d : dependsOn) {
+            if (d.equals(item)) continue;
+            dependencies.put(item, d);
+            dependents.put(d, item);
+        }
+    }
+
+    /**
+     * Forgets about the dependencies of the given item (but not about
+     * the items which depend on it).
+     */
+    public void remove(@Nonnull T item) {
+        for (T d : dependencies.removeAll(item)) {
+            dependents.remove(d, item);
+        }
+    }
+
+    @Nonnull
+    public Collection<T> getDependencies(@Nonnull T item) {
+        return Collections.unmodifiableCollection(dependencies.get(item));
+    }
+
+    /**
+     * Returns the given items, along with all the items which depend on
+     * them (directly or indirectly).
+     */
+    @Nonnull
+    public Set<T> getAffectedItems(@Nonnull Collection<T> changed) {
+        Set<T> result = new LinkedHashSet<T>(changed);
+        Deque<T> queue = new ArrayDeque<T>(changed);
+        while (!queue.isEmpty()) {
+            for (T d : dependents.get(queue.poll())) {
+                if (result.add(d)) {
+                    queue.add(d);
+                }
+            }
+        }
+        return result;
+    }
+
+}
@@ -5,20 +5,29 @@ package ldf.compiler.util;
  */
 class FunctionBuilder {
     final String name;
+    final int id;
     StringBuilder sb = new StringBuilder();
     int indent = 4;
     boolean built;
 
-    FunctionBuilder(String name) {
+    FunctionBuilder(String name, int id) {
         this.name = name;
+        this.id = id;
         putIndent(sb);
-        beginParseDecl(name);
     }
 
     String makeReference() {
         return "parse_" + name;
     }
 
+    /**
+     * Name of the constant holding the id of the rule (which selects its
+     * memoization column).
+     */
+    String makeRuleConstant() {
+        return "RULE_" + name;
+    }
+
     void add(CharSequence cs) {
         sb.append(cs);
     }
@@ -46,7 +55,6 @@ class FunctionBuilder {
     }
 
     String build() {
-        endParseDecl();
         built = true;
         return sb.toString();
     }
@@ -55,29 +63,28 @@ class FunctionBuilder {
         return built;
     }
 
-    void beginParseDecl(String name) {
-        //  ParseResult parse_???(int index) {
-        //      //  memoization
-        //      ParseResult result = get(index, ???);
-        //      if (result != null) return result;
-        //
-        add("ParseResult parse_");
-        add(name);
+    void beginParseDecl(String methodName) {
+        //  int parse_???(int index) {
+        add("int ");
+        add(methodName);
         add("(int index) {");
         newLine(+4);
+    }
 
+    void addMemoGet() {
+        //      //  memoization
+        //      int result = memoGet(RULE_???, index);
+        //      if (result != MEMO_UNKNOWN) return result;
+        //
         add("// memoization");
         newLine();
-        add("ParseResult result = get(index, \"");
-        add(name);
-        add("\");");
+        add("int result = memoGet(");
+        add(makeRuleConstant());
+        add(", index);");
         newLine();
-        add("if (result != null) return result;");
+        add("if (result != MEMO_UNKNOWN) return result;");
         newLine();
         newLine();
-        add("// parse");
-        newLine();
-
     }
 
     void declareValues() {
@@ -91,7 +98,7 @@ class FunctionBuilder {
         newLine();
     }
 
-    private void endParseDecl() {
+    void endParseDecl() {
         //  }
         newLine(-4);
         sb.append("}");
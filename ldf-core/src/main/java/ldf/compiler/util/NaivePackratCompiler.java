@@ -6,17 +6,45 @@ import ldf.compiler.ast.bnf.BnfQuantifier;
 import ldf.compiler.ast.expr.LiteralString;
 import ldf.compiler.semantics.ags.AgsNode;
 import ldf.compiler.semantics.ags.AgsNodeUnion;
+import ldf.compiler.util.PackratClassWriter.Dispatch;
+import ldf.compiler.util.PackratClassWriter.Item;
+import ldf.compiler.util.PackratClassWriter.Rule;
 
+import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import static com.google.common.collect.Iterables.getOnlyElement;
+import static com.google.common.collect.Iterators.singletonIterator;
 
 /**
+ * <p>Generates a packrat parser: one method per non-terminal (and per
+ * quantified or parenthesized sub-expression), each returning the input
+ * position where its match ends (or {@code FAIL}).
+ * </p>
+ * <p>Every such rule gets a small integer id, which selects a column of
+ * the {@code int[]} memoization table of the generated runtime. Both
+ * matches and failures are memoized, which makes the parser run in linear
+ * time, without allocating anything besides the table itself.
+ * </p>
+ * <p>Left recursive rules (e.g. {@code expr ::= expr "+" term | term})
+ * are handled by growing the match from a failed seed.
+ * </p>
+ * <p>The parser is generated as Java source code (printed to {@code
+ * System.out}, unless disabled by {@link #setPrintSource}), and can also
+ * be generated directly as bytecode, and loaded (see {@link
+ * #defineParser}), which doesn't involve {@code javac}.
+ * </p>
+ *
  * @author Cristian Harja
  */
 public final class NaivePackratCompiler extends ParserGeneratorBase {
@@ -28,16 +56,73 @@ public final class NaivePackratCompiler extends ParserGeneratorBase {
 
     Map<String, NtermCompiler> functions;
 
+    private boolean printSource = true;
+
     public NaivePackratCompiler() {
         functions = new LinkedHashMap<String, NtermCompiler>();
     }
 
+    /**
+     * Whether to print the generated source code (the default).
+     */
+    public void setPrintSource(boolean printSource) {
+        this.printSource = printSource;
+    }
+
+    /**
+     * Generates the parser as bytecode and loads it (in a class loader of
+     * its own). Can only be called after a successful {@link #compile}.
+     *
+     * @return a factory for parsers of the compiled grammar
+     */
+    @Nonnull
+    public PackratParser.Factory defineParser() {
+        if (getGrammarName() == null || functions.isEmpty()) {
+            throw new IllegalStateException("No grammar has been compiled");
+        }
+        List<Rule> rules = new ArrayList<Rule>(functions.size());
+        Map<String, Integer> ruleIds = new LinkedHashMap<String, Integer>();
+        for (NtermCompiler nc : functions.values()) {
+            rules.add(nc.rule);
+            ruleIds.put(nc.name, nc.id);
+        }
+        String className = PackratParser.class.getPackage().getName() +
+                ".gen." + getGrammarName().replace('.', '_');
+        byte[] b = new PackratClassWriter(className, rules).toByteArray();
+        Class<? extends PackratParser> c = new ParserClassLoader()
+                .define(className, b).asSubclass(PackratParser.class);
+        return new PackratParser.Factory(c, ruleIds);
+    }
+
+    /**
+     * Loads one generated parser class.
+     */
+    private static final class ParserClassLoader extends ClassLoader {
+        ParserClassLoader() {
+            super(PackratParser.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+
     private NtermCompiler getFunctionBuilder(
             String name, AgsNode node
+    ) {
+        return getFunctionBuilder(name, node, false);
+    }
+
+    /**
+     * @param bodyOnly whether to ignore the quantifiers of {@code node}
+     *                 (i.e. to generate a single iteration of it)
+     */
+    private NtermCompiler getFunctionBuilder(
+            String name, AgsNode node, boolean bodyOnly
     ) {
         NtermCompiler nc = functions.get(name);
         if (nc != null) return nc;
-        nc = new NtermCompiler(name, node);
+        nc = new NtermCompiler(name, functions.size(), node, bodyOnly);
         functions.put(name, nc);
         return nc;
     }
@@ -57,11 +142,33 @@ public final class NaivePackratCompiler extends ParserGeneratorBase {
         for (Map.Entry<String, AgsNodeUnion> e :
                 getNtermSyntax().entrySet()) {
             NtermCompiler nc = getFunctionBuilder(e.getKey(), e.getValue());
-            if (!nc.isBuilt()) {
+            if (!nc.isCompiled()) {
                 nc.compile();
             }
         }
 
+        // sub-expressions (compiling them may add more)
+        boolean pending = true;
+        while (pending) {
+            pending = false;
+            for (NtermCompiler nc : new ArrayList<NtermCompiler>(
+                    functions.values()
+            )) {
+                if (!nc.isCompiled()) {
+                    nc.compile();
+                    pending = true;
+                }
+            }
+        }
+
+        List<Rule> rules = new ArrayList<Rule>(functions.size());
+        for (NtermCompiler nc : functions.values()) {
+            rules.add(nc.rule);
+        }
+        boolean[] nullable = findNullable(rules);
+        findLeftRecursion(rules, nullable);
+        findFirstSets(rules, nullable);
+
         StringBuilder sb = new StringBuilder();
 
         transferBytes(sb, new InputStreamReader(
@@ -73,9 +180,19 @@ public final class NaivePackratCompiler extends ParserGeneratorBase {
         sb.append("public class ");
         sb.append(getGrammarName());
         sb.append(" extends PackratRuntime {\n");
+        for (NtermCompiler nterm : functions.values()) {
+            sb.append("    static final int ");
+            sb.append(nterm.makeRuleConstant());
+            sb.append(" = ");
+            sb.append(nterm.id);
+            sb.append(";\n");
+        }
+        sb.append("    static final int RULE_COUNT = ");
+        sb.append(functions.size());
+        sb.append(";\n\n");
         sb.append("    public ");
         sb.append(getGrammarName());
-        sb.append("(String input) { super(input); }\n");
+        sb.append("(String input) { super(input, RULE_COUNT); }\n");
 
 
         for (NtermCompiler nterm : functions.values()) {
@@ -86,137 +203,301 @@ public final class NaivePackratCompiler extends ParserGeneratorBase {
         sb.append("\n");
         sb.append("}\n");
 
-        System.out.println(sb.toString());
+        if (printSource) {
+            System.out.println(sb.toString());
+        }
+
+    }
+
+    /**
+     * @return which rules can match the empty string (by rule id)
+     */
+    private static boolean[] findNullable(List<Rule> rules) {
+        boolean[] nullable = new boolean[rules.size()];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Rule r : rules) {
+                if (nullable[r.id]) continue;
+                for (List<Item> branch : r.branches) {
+                    if (leftCalls(branch, nullable, null)) {
+                        nullable[r.id] = true;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return nullable;
+    }
+
+    /**
+     * Computes the FIRST set of each branch: the characters its matches
+     * can start with (after skipping whitespace, like {@code matchString}
+     * does). Branches which can't start with the next character are then
+     * skipped by the generated code.
+     */
+    private static void findFirstSets(List<Rule> rules, boolean[] nullable) {
+        int n = rules.size();
+        List<BitSet> first = new ArrayList<BitSet>(n);
+        for (int i = 0; i < n; i++) {
+            first.add(new BitSet());
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Rule r : rules) {
+                BitSet f = first.get(r.id);
+                int before = f.cardinality();
+                for (List<Item> branch : r.branches) {
+                    addFirst(branch, nullable, first, f);
+                }
+                changed |= f.cardinality() != before;
+            }
+        }
+
+        for (Rule r : rules) {
+            r.first = new ArrayList<BitSet>(r.branches.size());
+            for (List<Item> branch : r.branches) {
+                BitSet f = new BitSet();
+                boolean empty = addFirst(branch, nullable, first, f);
+                r.first.add(empty ? null : f);
+            }
+        }
+    }
+
+    /**
+     * Adds the FIRST set of a concatenation to {@code result}.
+     *
+     * @return whether the concatenation can match the empty string
+     */
+    private static boolean addFirst(
+            List<Item> branch, boolean[] nullable,
+            List<BitSet> first, BitSet result
+    ) {
+        for (Item item : branch) {
+            switch (item.kind) {
+                case Item.STRING:
+                    if (!item.str.isEmpty()) {
+                        result.set(item.str.charAt(0));
+                        return false;
+                    }
+                    break;
+                case Item.CALL:
+                case Item.REPEAT:
+                    result.or(first.get(item.rule.id));
+                    if (!nullable[item.rule.id] &&
+                            !(item.kind == Item.REPEAT && item.min == 0)) {
+                        return false;
+                    }
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the rules which can invoke themselves at the same position
+     * (directly or not), and decides how each of them is evaluated. In
+     * each such cycle, one rule (the "leader") grows its match: it starts
+     * from a memoized failure, and is evaluated again and again, for as
+     * long as the match gets longer (each time using the previous match
+     * for its recursive invocations). The other rules in the cycle aren't
+     * memoized, since their results depend on the leader's iteration.
+     * Removing the leaders must break all the cycles, so more leaders are
+     * chosen until that happens; the leaders chosen later (nested in the
+     * cycle of an earlier one) are memoized, so the earlier leader has to
+     * forget their results before each of its iterations.
+     */
+    private static void findLeftRecursion(
+            List<Rule> rules, boolean[] nullable
+    ) {
+        int n = rules.size();
+
+        // rules invoked by each rule at its own position
+        List<BitSet> calls = new ArrayList<BitSet>(n);
+        for (Rule r : rules) {
+            BitSet c = new BitSet(n);
+            for (List<Item> branch : r.branches) {
+                leftCalls(branch, nullable, c);
+            }
+            calls.add(c);
+        }
+
+        BitSet removed = new BitSet(n);
+        Map<Integer, BitSet> cycles = new LinkedHashMap<Integer, BitSet>();
+        while (true) {
+            List<BitSet> reach = new ArrayList<BitSet>(n);
+            for (int v = 0; v < n; v++) {
+                reach.add(reachable(v, calls, removed));
+            }
+            int leader = -1;
+            for (int v = 0; v < n && leader < 0; v++) {
+                if (!removed.get(v) && reach.get(v).get(v)) leader = v;
+            }
+            if (leader < 0) break;
+
+            BitSet cycle = new BitSet(n);
+            for (int v = 0; v < n; v++) {
+                if (reach.get(leader).get(v) && reach.get(v).get(leader)) {
+                    rules.get(v).mode = Rule.PLAIN;
+                    cycle.set(v);
+                }
+            }
+            rules.get(leader).mode = Rule.GROW;
+            removed.set(leader);
+            cycles.put(leader, cycle);
+        }
+
+        for (Map.Entry<Integer, BitSet> e : cycles.entrySet()) {
+            BitSet nested = (BitSet) e.getValue().clone();
+            nested.and(removed);
+            nested.clear(e.getKey());
+            int[] involved = new int[nested.cardinality()];
+            int i = 0;
+            for (int v = nested.nextSetBit(0); v >= 0;
+                 v = nested.nextSetBit(v + 1)) {
+                involved[i++] = v;
+            }
+            rules.get(e.getKey()).involved = involved;
+        }
+    }
+
+    /**
+     * Goes through the items of a concatenation, for as long as they can
+     * match the empty string.
+     *
+     * @param calls receives the rules invoked along the way (if not null)
+     * @return whether the whole concatenation can match the empty string
+     */
+    private static boolean leftCalls(
+            List<Item> branch, boolean[] nullable, BitSet calls
+    ) {
+        for (Item item : branch) {
+            switch (item.kind) {
+                case Item.STRING:
+                    if (!item.str.isEmpty()) return false;
+                    break;
+                case Item.CALL:
+                case Item.REPEAT:
+                    if (calls != null) calls.set(item.rule.id);
+                    if (!nullable[item.rule.id] &&
+                            !(item.kind == Item.REPEAT && item.min == 0)) {
+                        return false;
+                    }
+                    break;
+            }
+        }
+        return true;
+    }
 
+    private static BitSet reachable(
+            int start, List<BitSet> calls, BitSet removed
+    ) {
+        BitSet result = new BitSet();
+        Deque<Integer> queue = new ArrayDeque<Integer>();
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            BitSet c = calls.get(queue.poll());
+            for (int w = c.nextSetBit(0); w >= 0; w = c.nextSetBit(w + 1)) {
+                if (!removed.get(w) && !result.get(w)) {
+                    result.set(w);
+                    queue.add(w);
+                }
+            }
+        }
+        return result;
     }
 
     private class NtermCompiler extends FunctionBuilder {
 
         private AgsNode node;
+        private boolean bodyOnly;
+        private boolean compiled;
 
-        NtermCompiler(String name, AgsNode node) {
-            super(name);
+        final Rule rule;
+
+        NtermCompiler(String name, int id, AgsNode node, boolean bodyOnly) {
+            super(name, id);
             this.node = node;
+            this.bodyOnly = bodyOnly;
+            this.rule = new Rule(name, id);
+        }
+
+        boolean isCompiled() {
+            return compiled;
         }
 
+        /**
+         * Translates the syntax into branches and items of the rule (from
+         * which both the source code and the bytecode are generated).
+         */
         void compile() {
             int branchNo = 0, itemNo;
             Iterator<AgsNode> union, concat;
-            union = node.iterateAs(AgsNode.Type.UNION);
+            compiled = true;
 
-            add("boolean isOK = true;");newLine();
-            add("int lastIndex = 0;");newLine();
-            newLine();
+            if (node == null) {
+                // not defined in the grammar (reported elsewhere)
+                return;
+            }
 
+            // a quantified node is a single item (repeating a sub-rule),
+            // even if it's the whole rule, or a whole branch
+            union = isIteration(node) ? singletonIterator(node) :
+                    node.iterateAs(AgsNode.Type.UNION);
             while (union.hasNext()) {
                 AgsNode branch = union.next();
+                List<Item> items = new ArrayList<Item>();
+                rule.branches.add(items);
                 branchNo++;
 
-                add("//branch " + branchNo);newLine();
-                add("{"); newLine(+4);
-
                 itemNo = 0;
-                concat = branch.iterateAs(AgsNode.Type.CONCAT);
+                concat = isIteration(branch) ? singletonIterator(branch) :
+                        branch.iterateAs(AgsNode.Type.CONCAT);
                 while (concat.hasNext()) {
                     AgsNode item = concat.next();
                     itemNo++;
-                    boolean iteration = item.hasQuantifiers();
 
-                    if (iteration) {
+                    if (isIteration(item)) {
                         BnfQuantifier q = item.quantifiers().iterator().next();
                         Number n = q.getMin();
                         Number m = q.getMax();
 
-                        add("while(true) {");newLine(+4);
-                        add("int iterations = 0;");newLine(+4);
-
-                        if (n != null) {
-                            add("int min = ");
-                            add(n.toString());
-                            add(";"); newLine();
-                        } else {
-                            add("int min = 0;");
-                        }
-
-                        if (m != null) {
-                            add("int max = ");
-                            add(m.toString());
-                            add(";"); newLine();
-                        } else {
-                            add("int max = Integer.MAX_VALUE;");
-                            newLine();
-                        }
+                        NtermCompiler nc = getFunctionBuilder(
+                                name + "$B" + branchNo + "I" + itemNo,
+                                item, true
+                        );
+                        items.add(Item.repeat(
+                                nc.rule,
+                                n != null ? n.intValue() : 0,
+                                m != null ? m.intValue() : -1
+                        ));
 
+                    } else if (item.getType() != AgsNode.Type.ITEM) {
                         NtermCompiler nc = getFunctionBuilder(
                                 name + "$B" + branchNo + "I" + itemNo,
                                 item
                         );
-
-                        add("ParseResult res = ");
-                        add(nc.makeReference());
-                        add("(lastIndex);"); newLine();
-
-                        add("if (res.isError()) {"); newLine(+4);
-                        add("if (min > iterations) isOK = false;"); newLine();
-                        add("break;");
-                        newLine(-4); add("}"); newLine();
-                        add("iterations++;"); newLine();
-                        add("if (iterations == max) break;");
-
-                        newLine(-4);add("}");
-
+                        items.add(Item.call(nc.rule));
                     } else {
-
-                        if (itemNo == 1) {
-                            add("{"); newLine(+4);
-                            add("lastIndex = index;"); newLine();
-                        } else {
-                            add("if (isOK) {"); newLine(+4);
-                            add("lastIndex = result.nextIndex;"); newLine();
-                        }
-
-                        if (item.getType() != AgsNode.Type.ITEM) {
-                            NtermCompiler nc = getFunctionBuilder(
-                                    name + "$B" + branchNo + "I" + itemNo,
-                                    item
-                            );
-                            add("result = ");
-                            add(nc.makeReference());
-                            add("(lastIndex);");
-                            newLine();
-                            addErrorCheck();
-                        } else {
-                            compileItem(item);
-                        }
-
-                        newLine(-4); add("}");
-
+                        compileItem(item, items);
                     }
 
                     // TODO: labels?
-
-                    newLine();
                 }
-
-                add("// epilogue"); newLine();
-                add("if (isOK)  return put(index, \"");
-                add(name);
-                add("\", lastIndex);");
-                newLine(-4); add("}");
-                newLine();
             }
-
-            newLine();
-            add("return PARSE_ERROR;");
-            newLine();
         }
 
-        private void addErrorCheck() {
-            add("if (isOK && result.isError()) isOK = false;");
-            newLine();
+        /**
+         * @return whether the node is to be matched by a repetition (of a
+         *         sub-rule which matches its body)
+         */
+        private boolean isIteration(AgsNode n) {
+            return n.hasQuantifiers() && !(bodyOnly && n == node);
         }
 
-        private void compileItem(AgsNode node) {
+        private void compileItem(AgsNode node, List<Item> items) {
             BnfAtom atom = node.getAtom();
             assert atom != null;
 
@@ -226,39 +507,266 @@ public final class NaivePackratCompiler extends ParserGeneratorBase {
                     String id = getOnlyElement(ref.getPath()).getName();
                     AgsNodeUnion n = getNtermSyntax().get(id);
                     NtermCompiler nc = getFunctionBuilder(id, n);
-
-                    add("result = ");
-                    add(nc.makeReference());
-                    add("(lastIndex)");
-                    newLine();
-                    addErrorCheck();
+                    items.add(Item.call(nc.rule));
                     break;
 
                 case LITERAL_CHAR:
                 case LITERAL_STRING:
                     LiteralString str = (LiteralString) atom;
-                    add("result = matchString(lastIndex, \"");
-                    add(escapeStringValue(str.getFullString()));
-                    add("\");");
-                    newLine();
-                    addErrorCheck();
+                    items.add(Item.string(str.getFullString()));
                     break;
 
                 case ITEM:
-                    add("/* huh? impossibru! */");
-                    newLine();
+                    // huh? impossibru!
                     break;
 
                 case ACTION:
                 case GUARD:
                 case PLACEHOLDER:
-                    add("/* TODO (actions) */");
+                    // TODO (actions)
+            }
+
+        }
+
+        @Override
+        String build() {
+            switch (rule.mode) {
+                case Rule.GROW:
+                    beginParseDecl(makeReference());
+                    addMemoGet();
+                    add("// left recursion: start from a failure, then let");
+                    newLine();
+                    add("// the match grow, for as long as it gets longer");
                     newLine();
+                    add("int last = FAIL;"); newLine();
+                    addMemoSeed("FAIL"); newLine();
+                    add("while (true) {"); newLine(+4);
+                    addMemoForget();
+                    add("result = ");
+                    add(makeReference());
+                    add("$grow(index);"); newLine();
+                    add("if (result <= last) break;"); newLine();
+                    add("last = result;"); newLine();
+                    addMemoSeed("last");
+                    newLine(-4); add("}"); newLine();
+                    add("return memoPut(");
+                    add(makeRuleConstant());
+                    add(", index, last);");
+                    endParseDecl();
+                    add('\n');
+                    newLine();
+
+                    beginParseDecl(makeReference() + "$grow");
+                    addBranches(false);
+                    break;
+
+                case Rule.PLAIN:
+                    // part of a left recursive cycle
+                    beginParseDecl(makeReference());
+                    addBranches(false);
+                    break;
+
+                default:
+                    beginParseDecl(makeReference());
+                    addBranches(true);
             }
+            endParseDecl();
+            return super.build();
+        }
+
+        private void addBranches(boolean memoize) {
+            int branchNo = 0;
 
+            Dispatch dispatch = Dispatch.of(rule);
+            if (dispatch != null) {
+                addDispatch(dispatch);
+            }
+            if (memoize) {
+                addMemoGet();
+            } else {
+                add("int result;"); newLine();
+                newLine();
+            }
+            add("// parse"); newLine();
+            add("int lastIndex;");newLine();
+            newLine();
+
+            for (List<Item> items : rule.branches) {
+                branchNo++;
+
+                add("//branch " + branchNo);newLine();
+                if (dispatch != null && dispatch.isGuarded(branchNo - 1)) {
+                    add("if ((candidates & ");
+                    add(longLiteral(Dispatch.bit(branchNo - 1)));
+                    add(") != 0) {");
+                } else {
+                    add("{");
+                }
+                newLine(+4);
+                add("boolean isOK = true;"); newLine();
+                add("lastIndex = index;"); newLine();
+
+                for (Item item : items) {
+                    add("if (isOK) {"); newLine(+4);
+                    switch (item.kind) {
+                        case Item.STRING:
+                            add("result = matchString(lastIndex, \"");
+                            add(escapeStringValue(item.str));
+                            add("\");");
+                            newLine();
+                            addErrorCheck();
+                            break;
+                        case Item.CALL:
+                            add("result = ");
+                            add(PackratClassWriter.methodName(item.rule));
+                            add("(lastIndex);");
+                            newLine();
+                            addErrorCheck();
+                            break;
+                        case Item.REPEAT:
+                            addRepeat(item);
+                            break;
+                    }
+                    newLine(-4); add("}");
+                    newLine();
+                }
+
+                add("// epilogue"); newLine();
+                add("if (isOK) ");
+                addReturn(memoize, "lastIndex");
+                newLine(-4); add("}");
+                newLine();
+            }
+
+            newLine();
+            addReturn(memoize, "FAIL");
         }
 
+        private void addDispatch(Dispatch dispatch) {
+            //  long candidates;
+            //  switch (peek(index)) {
+            //      case '?':
+            //          candidates = 0x???L;
+            //          break;
+            //      default:
+            //          candidates = 0x???L;
+            //  }
+            //  if (candidates == 0) return FAIL;
+            //
+            add("// branches which can match at this position"); newLine();
+            add("long candidates;"); newLine();
+            add("switch (peek(index)) {"); newLine(+4);
+            for (Map.Entry<Long, List<Character>> e :
+                    dispatch.groups().entrySet()) {
+                List<Character> chars = e.getValue();
+                for (int i = 0; i < chars.size(); i++) {
+                    if (i > 0) newLine();
+                    add("case ");
+                    add(charLiteral(chars.get(i)));
+                    add(":");
+                }
+                newLine(+4);
+                add("candidates = ");
+                add(longLiteral(e.getKey()));
+                add(";"); newLine();
+                add("break;"); newLine(-4);
+            }
+            add("default:"); newLine(+4);
+            add("candidates = ");
+            add(longLiteral(dispatch.otherwise));
+            add(";");
+            newLine(-8); add("}"); newLine();
+            if (dispatch.isComplete()) {
+                add("if (candidates == 0) return FAIL;"); newLine();
+            }
+            newLine();
+        }
 
+        private void addRepeat(Item item) {
+            add("int iterations = 0;"); newLine();
+            add("int min = ");
+            add(Integer.toString(item.min));
+            add(";"); newLine();
+            add("int max = ");
+            add(item.max >= 0 ? Integer.toString(item.max) :
+                    "Integer.MAX_VALUE");
+            add(";"); newLine();
+
+            add("while (iterations < max) {"); newLine(+4);
+            add("result = ");
+            add(PackratClassWriter.methodName(item.rule));
+            add("(lastIndex);"); newLine();
+            add("if (result == FAIL) break;"); newLine();
+            add("iterations++;"); newLine();
+            add("if (result == lastIndex) {"); newLine(+4);
+            add("// matched nothing (and could do so forever)");
+            newLine();
+            add("iterations = Math.max(iterations, min);");
+            newLine();
+            add("break;");
+            newLine(-4); add("}"); newLine();
+            add("lastIndex = result;");
+            newLine(-4); add("}"); newLine();
+            add("if (iterations < min) isOK = false;");
+        }
+
+        private void addReturn(boolean memoize, String result) {
+            if (memoize) {
+                add("return memoPut(");
+                add(makeRuleConstant());
+                add(", index, ");
+                add(result);
+                add(");");
+            } else {
+                add("return ");
+                add(result);
+                add(";");
+            }
+        }
+
+        // forgets the results of the rules nested in the cycle
+        private void addMemoForget() {
+            List<NtermCompiler> all = new ArrayList<NtermCompiler>(
+                    functions.values()
+            );
+            for (int other : rule.involved) {
+                add("memoForget(");
+                add(all.get(other).makeRuleConstant());
+                add(", index);");
+                newLine();
+            }
+        }
+
+        private void addMemoSeed(String result) {
+            add("memoSeed(");
+            add(makeRuleConstant());
+            add(", index, ");
+            add(result);
+            add(");");
+        }
+
+        private void addErrorCheck() {
+            add("if (result == FAIL) isOK = false;");
+            newLine();
+            add("else lastIndex = result;");
+        }
+
+    }
+
+    private static String longLiteral(long value) {
+        return "0x" + Long.toHexString(value) + "L";
+    }
+
+    private static String charLiteral(char c) {
+        switch (c) {
+            case '\'': return "'\\''";
+            case '\\': return "'\\\\'";
+        }
+        if (c < 0x20 || c >= 0x7f) {
+            // (not as a unicode escape, which could be a line break)
+            return Integer.toString(c);
+        }
+        return "'" + c + "'";
     }
 
     private String escapeStringValue(String str) {
@@ -0,0 +1,848 @@
+package ldf.compiler.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * <p>Writes the class file of a packrat parser (a subclass of {@link
+ * PackratParser}), given its rules. The generated code is the same as the
+ * source code produced by {@link NaivePackratCompiler}: one method per
+ * rule (plus a {@code parseRule} method dispatching on the rule id, and
+ * a {@code $grow} method for each left recursive rule).
+ * </p>
+ * <p>Class files are written in version 49 (Java 5), which doesn't need
+ * stack map frames; this keeps the writer simple.
+ * </p>
+ *
+ * @author Cristian Harja
+ */
+@NotThreadSafe
+final class PackratClassWriter {
+
+    /** A rule: a union of concatenations of items. */
+    static final class Rule {
+        /** Memoized (the default). */
+        static final int MEMO = 0;
+        /** Left recursive; the match is grown, starting from a failure. */
+        static final int GROW = 1;
+        /** Part of a left recursive cycle (but not its leader). */
+        static final int PLAIN = 2;
+
+        final String name;
+        final int id;
+        final List<List<Item>> branches = new ArrayList<List<Item>>();
+        int mode = MEMO;
+        /**
+         * For {@code GROW} rules: the other {@code GROW} rules in the same
+         * cycle. Their results at the leader's position depend on its
+         * current match, so they are forgotten before each iteration.
+         */
+        int[] involved = new int[0];
+        /**
+         * The FIRST set of each branch (the characters it can start with),
+         * or {@code null} for the branches which can match nothing; when
+         * not known, all the branches are tried.
+         */
+        List<BitSet> first;
+
+        Rule(String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Which branches of a rule are worth trying, depending on the next
+     * character (after whitespace). Bit {@code i} of a mask stands for
+     * branch {@code i}; branches past the 64th are always tried.
+     */
+    static final class Dispatch {
+        /** Candidates for the characters which start some branch. */
+        final SortedMap<Character, Long> byChar;
+        /** Candidates for the other characters (and the end of input). */
+        final long otherwise;
+        private final int branchCount;
+        private final boolean complete;
+
+        private Dispatch(
+                SortedMap<Character, Long> byChar, long otherwise,
+                int branchCount, boolean complete
+        ) {
+            this.byChar = byChar;
+            this.otherwise = otherwise;
+            this.branchCount = branchCount;
+            this.complete = complete;
+        }
+
+        /**
+         * @return the dispatch of a rule, or {@code null} if all of its
+         *         branches are always tried anyway
+         */
+        static Dispatch of(Rule rule) {
+            if (rule.first == null) return null;
+            int n = Math.min(rule.first.size(), 64);
+            long all = n == 64 ? -1L : (1L << n) - 1;
+
+            long otherwise = 0;
+            SortedMap<Character, Long> byChar = new TreeMap<Character, Long>();
+            for (int i = 0; i < n; i++) {
+                BitSet f = rule.first.get(i);
+                if (f == null) {
+                    otherwise |= bit(i);
+                    continue;
+                }
+                int c = f.nextSetBit(0);
+                while (c >= 0) {
+                    Long mask = byChar.get((char) c);
+                    byChar.put((char) c, (mask != null ? mask : 0) | bit(i));
+                    c = f.nextSetBit(c + 1);
+                }
+            }
+            boolean complete = rule.first.size() == n;
+            if (otherwise == all && complete) {
+                return null;
+            }
+            for (Map.Entry<Character, Long> e : byChar.entrySet()) {
+                e.setValue(e.getValue() | otherwise);
+            }
+            return new Dispatch(byChar, otherwise, n, complete);
+        }
+
+        static long bit(int branch) {
+            return 1L << branch;
+        }
+
+        /** @return whether the branch is only tried if it's a candidate */
+        boolean isGuarded(int branch) {
+            return branch < branchCount && (otherwise & bit(branch)) == 0;
+        }
+
+        /**
+         * @return whether all the branches are covered (so that the rule
+         *         fails when there are no candidates)
+         */
+        boolean isComplete() {
+            return complete;
+        }
+
+        /** @return the characters, grouped by their candidates */
+        Map<Long, List<Character>> groups() {
+            Map<Long, List<Character>> groups =
+                    new LinkedHashMap<Long, List<Character>>();
+            for (Map.Entry<Character, Long> e : byChar.entrySet()) {
+                List<Character> chars = groups.get(e.getValue());
+                if (chars == null) {
+                    chars = new ArrayList<Character>();
+                    groups.put(e.getValue(), chars);
+                }
+                chars.add(e.getKey());
+            }
+            return groups;
+        }
+    }
+
+    /** An item in a concatenation. */
+    static final class Item {
+        static final int STRING = 0;
+        static final int CALL = 1;
+        static final int REPEAT = 2;
+
+        final int kind;
+        final String str;
+        final Rule rule;
+        final int min, max;
+
+        private Item(int kind, String str, Rule rule, int min, int max) {
+            this.kind = kind;
+            this.str = str;
+            this.rule = rule;
+            this.min = min;
+            this.max = max;
+        }
+
+        static Item string(String str) {
+            return new Item(STRING, str, null, 0, 0);
+        }
+
+        static Item call(Rule rule) {
+            return new Item(CALL, null, rule, 0, 0);
+        }
+
+        /** @param max upper bound, or -1 if there isn't one */
+        static Item repeat(Rule rule, int min, int max) {
+            return new Item(REPEAT, null, rule, min, max);
+        }
+    }
+
+    private static final String SUPER = PackratParser.class.getName()
+            .replace('.', '/');
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    // opcodes
+    private static final int ICONST_M1 = 0x02;
+    private static final int ICONST_0 = 0x03;
+    private static final int LCONST_0 = 0x09;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int ILOAD = 0x15;
+    private static final int LLOAD = 0x16;
+    private static final int ALOAD = 0x19;
+    private static final int ISTORE = 0x36;
+    private static final int LSTORE = 0x37;
+    private static final int LAND = 0x7f;
+    private static final int IINC = 0x84;
+    private static final int LCMP = 0x94;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IFLT = 0x9b;
+    private static final int IF_ICMPEQ = 0x9f;
+    private static final int IF_ICMPNE = 0xa0;
+    private static final int IF_ICMPLT = 0xa1;
+    private static final int IF_ICMPGE = 0xa2;
+    private static final int IF_ICMPLE = 0xa4;
+    private static final int GOTO = 0xa7;
+    private static final int LOOKUPSWITCH = 0xab;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    // local variables of the rule methods
+    private static final int THIS = 0;
+    private static final int INDEX = 1;
+    private static final int RESULT = 2;
+    private static final int LAST_INDEX = 3;
+    private static final int ITERATIONS = 4;
+    private static final int LAST = 5;
+    private static final int CANDIDATES = 6; // (long, 2 slots)
+
+    private final String className;
+    private final List<Rule> rules;
+
+    private final ByteArrayOutputStream poolBytes =
+            new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex =
+            new HashMap<String, Integer>();
+    private int poolCount = 1;
+
+    /**
+     * @param className binary name of the class (e.g. {@code a.b.C})
+     * @param rules     the rules, in the order of their ids
+     */
+    PackratClassWriter(@Nonnull String className, @Nonnull List<Rule> rules) {
+        this.className = className.replace('.', '/');
+        this.rules = rules;
+    }
+
+    static String methodName(Rule rule) {
+        return "parse_" + rule.name;
+    }
+
+    @Nonnull
+    byte[] toByteArray() {
+        try {
+            // methods first, so that the constant pool is complete
+            ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+            DataOutputStream methods = new DataOutputStream(methodBytes);
+            writeConstructor(methods, "Ljava/lang/String;");
+            writeConstructor(methods, "Ljava/io/Reader;");
+            writeDispatch(methods);
+            for (Rule rule : rules) {
+                writeRule(methods, rule);
+            }
+
+            int thisClass = classRef(className);
+            int superClass = classRef(SUPER);
+
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buf);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(rules.size() + 3 + growCount());
+            methods.flush();
+            methodBytes.writeTo(out);
+            out.writeShort(0); // attributes
+            out.flush();
+            return buf.toByteArray();
+        } catch (IOException e) {
+            // can't happen (in-memory streams)
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int growCount() {
+        int n = 0;
+        for (Rule rule : rules) {
+            if (rule.mode == Rule.GROW) n++;
+        }
+        return n;
+    }
+
+    // public <init>(String/Reader input) { super(input, RULE_COUNT); }
+    private void writeConstructor(DataOutputStream out, String inputType)
+            throws IOException {
+        Code c = new Code();
+        c.var(ALOAD, THIS);
+        c.var(ALOAD, 1);
+        c.pushInt(rules.size());
+        c.invoke(INVOKESPECIAL, SUPER, "<init>", "(" + inputType + "I)V");
+        c.op(RETURN);
+        writeMethod(out, ACC_PUBLIC, "<init>", "(" + inputType + ")V",
+                c, 4, 2);
+    }
+
+    // public int parseRule(int rule, int index) {
+    //     if (rule == 0) return parse_???(index);
+    //     ...
+    //     return FAIL;
+    // }
+    private void writeDispatch(DataOutputStream out) throws IOException {
+        Code c = new Code();
+        for (Rule rule : rules) {
+            int next = c.newLabel();
+            c.var(ILOAD, 1);
+            c.pushInt(rule.id);
+            c.jump(IF_ICMPNE, next);
+            c.var(ALOAD, THIS);
+            c.var(ILOAD, 2);
+            c.invoke(INVOKEVIRTUAL, className, methodName(rule), "(I)I");
+            c.op(IRETURN);
+            c.mark(next);
+        }
+        c.op(ICONST_M1);
+        c.op(IRETURN);
+        writeMethod(out, ACC_PUBLIC, "parseRule", "(II)I", c, 3, 3);
+    }
+
+    private void writeRule(DataOutputStream out, Rule rule)
+            throws IOException {
+        Code c = new Code();
+        switch (rule.mode) {
+            case Rule.GROW:
+                writeMemoGet(c, rule);
+                writeGrow(c, rule);
+                writeMethod(out, ACC_PUBLIC, methodName(rule), "(I)I",
+                        c, 4, 6);
+
+                c = new Code();
+                writeBranches(c, rule, false);
+                writeMethod(out, ACC_PUBLIC, growMethodName(rule), "(I)I",
+                        c, 4, 8);
+                break;
+
+            case Rule.PLAIN:
+                writeBranches(c, rule, false);
+                writeMethod(out, ACC_PUBLIC, methodName(rule), "(I)I",
+                        c, 4, 8);
+                break;
+
+            default:
+                writeBranches(c, rule, true);
+                writeMethod(out, ACC_PUBLIC, methodName(rule), "(I)I",
+                        c, 4, 8);
+        }
+    }
+
+    private static String growMethodName(Rule rule) {
+        return methodName(rule) + "$grow";
+    }
+
+    // result = memoGet(id, index);
+    // if (result != MEMO_UNKNOWN) return result;
+    private void writeMemoGet(Code c, Rule rule) {
+        int parse = c.newLabel();
+        c.var(ALOAD, THIS);
+        c.pushInt(rule.id);
+        c.var(ILOAD, INDEX);
+        c.invoke(INVOKEVIRTUAL, SUPER, "memoGet", "(II)I");
+        c.var(ISTORE, RESULT);
+        c.var(ILOAD, RESULT);
+        c.pushInt(-2); // MEMO_UNKNOWN
+        c.jump(IF_ICMPEQ, parse);
+        c.var(ILOAD, RESULT);
+        c.op(IRETURN);
+        c.mark(parse);
+    }
+
+    // last = FAIL; memoSeed(id, index, last);
+    // while ((result = parse_???$grow(index)) > last) {
+    //     last = result; memoSeed(id, index, last);
+    // }
+    // return memoPut(id, index, last);
+    // (with memoForget(involved, index) before each parse_???$grow)
+    private void writeGrow(Code c, Rule rule) {
+        int loop = c.newLabel();
+        int done = c.newLabel();
+
+        c.op(ICONST_M1);
+        c.var(ISTORE, LAST);
+        c.mark(loop);
+        c.var(ALOAD, THIS);
+        c.pushInt(rule.id);
+        c.var(ILOAD, INDEX);
+        c.var(ILOAD, LAST);
+        c.invoke(INVOKEVIRTUAL, SUPER, "memoSeed", "(III)V");
+        for (int other : rule.involved) {
+            c.var(ALOAD, THIS);
+            c.pushInt(other);
+            c.var(ILOAD, INDEX);
+            c.invoke(INVOKEVIRTUAL, SUPER, "memoForget", "(II)V");
+        }
+        c.var(ALOAD, THIS);
+        c.var(ILOAD, INDEX);
+        c.invoke(INVOKEVIRTUAL, className, growMethodName(rule), "(I)I");
+        c.var(ISTORE, RESULT);
+        c.var(ILOAD, RESULT);
+        c.var(ILOAD, LAST);
+        c.jump(IF_ICMPLE, done);
+        c.var(ILOAD, RESULT);
+        c.var(ISTORE, LAST);
+        c.jump(GOTO, loop);
+        c.mark(done);
+        writeReturn(c, rule, LAST, true);
+    }
+
+    private void writeBranches(Code c, Rule rule, boolean memoize)
+            throws IOException {
+        Dispatch dispatch = Dispatch.of(rule);
+        if (dispatch != null) {
+            writeDispatch(c, dispatch);
+        }
+        if (memoize) {
+            writeMemoGet(c, rule);
+        }
+
+        int branchNo = 0;
+        for (List<Item> branch : rule.branches) {
+            int nextBranch = c.newLabel();
+            if (dispatch != null && dispatch.isGuarded(branchNo)) {
+                // if ((candidates & bit) == 0) goto nextBranch;
+                c.var(LLOAD, CANDIDATES);
+                c.ldc2(longConst(Dispatch.bit(branchNo)));
+                c.op(LAND);
+                c.op(LCONST_0);
+                c.op(LCMP);
+                c.jump(IFEQ, nextBranch);
+            }
+            branchNo++;
+            c.var(ILOAD, INDEX);
+            c.var(ISTORE, LAST_INDEX);
+            for (Item item : branch) {
+                switch (item.kind) {
+                    case Item.STRING:
+                        c.var(ALOAD, THIS);
+                        c.var(ILOAD, LAST_INDEX);
+                        c.ldc(stringConst(item.str));
+                        c.invoke(INVOKEVIRTUAL, SUPER, "matchString",
+                                "(ILjava/lang/String;)I");
+                        writeAdvance(c, nextBranch);
+                        break;
+                    case Item.CALL:
+                        c.var(ALOAD, THIS);
+                        c.var(ILOAD, LAST_INDEX);
+                        c.invoke(INVOKEVIRTUAL, className,
+                                methodName(item.rule), "(I)I");
+                        writeAdvance(c, nextBranch);
+                        break;
+                    case Item.REPEAT:
+                        writeRepeat(c, item, nextBranch);
+                        break;
+                }
+            }
+            // epilogue
+            writeReturn(c, rule, LAST_INDEX, memoize);
+            c.mark(nextBranch);
+        }
+        writeReturn(c, rule, -1, memoize);
+    }
+
+    // result = <value on stack>; if (result < 0) goto fail;
+    // lastIndex = result;
+    private void writeAdvance(Code c, int fail) {
+        c.var(ISTORE, RESULT);
+        c.var(ILOAD, RESULT);
+        c.jump(IFLT, fail);
+        c.var(ILOAD, RESULT);
+        c.var(ISTORE, LAST_INDEX);
+    }
+
+    private void writeRepeat(Code c, Item item, int fail) {
+        int loop = c.newLabel();
+        int done = c.newLabel();
+        int advance = c.newLabel();
+
+        c.op(ICONST_0);
+        c.var(ISTORE, ITERATIONS);
+        c.mark(loop);
+        if (item.max >= 0) {
+            c.var(ILOAD, ITERATIONS);
+            c.pushInt(item.max);
+            c.jump(IF_ICMPGE, done);
+        }
+        c.var(ALOAD, THIS);
+        c.var(ILOAD, LAST_INDEX);
+        c.invoke(INVOKEVIRTUAL, className, methodName(item.rule), "(I)I");
+        c.var(ISTORE, RESULT);
+        c.var(ILOAD, RESULT);
+        c.jump(IFLT, done);
+        c.iinc(ITERATIONS, 1);
+        c.var(ILOAD, RESULT);
+        c.var(ILOAD, LAST_INDEX);
+        c.jump(IF_ICMPNE, advance);
+        // matched nothing (and could do so forever)
+        c.var(ILOAD, ITERATIONS);
+        c.pushInt(item.min);
+        c.invoke(INVOKESTATIC, "java/lang/Math", "max", "(II)I");
+        c.var(ISTORE, ITERATIONS);
+        c.jump(GOTO, done);
+        c.mark(advance);
+        c.var(ILOAD, RESULT);
+        c.var(ISTORE, LAST_INDEX);
+        c.jump(GOTO, loop);
+        c.mark(done);
+        if (item.min > 0) {
+            c.var(ILOAD, ITERATIONS);
+            c.pushInt(item.min);
+            c.jump(IF_ICMPLT, fail);
+        }
+    }
+
+    // switch (peek(index)) {
+    //     case ...: candidates = ...; break;
+    //     default: candidates = ...;
+    // }
+    // if (candidates == 0) return FAIL;
+    private void writeDispatch(Code c, Dispatch dispatch)
+            throws IOException {
+        Map<Long, Integer> targets = new LinkedHashMap<Long, Integer>();
+        int[] keys = new int[dispatch.byChar.size()];
+        int[] labels = new int[keys.length];
+        int i = 0;
+        for (Map.Entry<Character, Long> e : dispatch.byChar.entrySet()) {
+            Integer label = targets.get(e.getValue());
+            if (label == null) {
+                label = c.newLabel();
+                targets.put(e.getValue(), label);
+            }
+            keys[i] = e.getKey();
+            labels[i] = label;
+            i++;
+        }
+        int otherwise = c.newLabel();
+        int done = c.newLabel();
+
+        c.var(ALOAD, THIS);
+        c.var(ILOAD, INDEX);
+        c.invoke(INVOKEVIRTUAL, SUPER, "peek", "(I)I");
+        c.lookupSwitch(keys, labels, otherwise);
+        for (Map.Entry<Long, Integer> e : targets.entrySet()) {
+            c.mark(e.getValue());
+            c.ldc2(longConst(e.getKey()));
+            c.jump(GOTO, done);
+        }
+        c.mark(otherwise);
+        c.ldc2(longConst(dispatch.otherwise));
+        c.mark(done);
+        c.var(LSTORE, CANDIDATES);
+
+        if (dispatch.isComplete()) {
+            int parse = c.newLabel();
+            c.var(LLOAD, CANDIDATES);
+            c.op(LCONST_0);
+            c.op(LCMP);
+            c.jump(IFNE, parse);
+            c.op(ICONST_M1); // FAIL
+            c.op(IRETURN);
+            c.mark(parse);
+        }
+    }
+
+    // return memoPut(id, index, <local or constant>);
+    // (or just return it, if not memoized)
+    private void writeReturn(Code c, Rule rule, int local, boolean memoize) {
+        if (memoize) {
+            c.var(ALOAD, THIS);
+            c.pushInt(rule.id);
+            c.var(ILOAD, INDEX);
+        }
+        if (local >= 0) {
+            c.var(ILOAD, local);
+        } else {
+            c.op(ICONST_M1); // FAIL
+        }
+        if (memoize) {
+            c.invoke(INVOKEVIRTUAL, SUPER, "memoPut", "(III)I");
+        }
+        c.op(IRETURN);
+    }
+
+    private void writeMethod(
+            DataOutputStream out, int access, String name, String desc,
+            Code code, int maxStack, int maxLocals
+    ) throws IOException {
+        byte[] bytes = code.toByteArray();
+        out.writeShort(access);
+        out.writeShort(utf8(name));
+        out.writeShort(utf8(desc));
+        out.writeShort(1); // attributes
+        out.writeShort(utf8("Code"));
+        out.writeInt(12 + bytes.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    // constant pool
+
+    private int utf8(String s) throws IOException {
+        Integer i = poolIndex.get("U" + s);
+        if (i != null) return i;
+        pool.writeByte(1);
+        pool.writeUTF(s);
+        return newConstant("U" + s);
+    }
+
+    private int classRef(String internalName) throws IOException {
+        Integer i = poolIndex.get("C" + internalName);
+        if (i != null) return i;
+        int name = utf8(internalName);
+        pool.writeByte(7);
+        pool.writeShort(name);
+        return newConstant("C" + internalName);
+    }
+
+    private int stringConst(String s) throws IOException {
+        Integer i = poolIndex.get("S" + s);
+        if (i != null) return i;
+        int value = utf8(s);
+        pool.writeByte(8);
+        pool.writeShort(value);
+        return newConstant("S" + s);
+    }
+
+    private int intConst(int value) throws IOException {
+        Integer i = poolIndex.get("I" + value);
+        if (i != null) return i;
+        pool.writeByte(3);
+        pool.writeInt(value);
+        return newConstant("I" + value);
+    }
+
+    private int longConst(long value) throws IOException {
+        Integer i = poolIndex.get("J" + value);
+        if (i != null) return i;
+        pool.writeByte(5);
+        pool.writeLong(value);
+        i = newConstant("J" + value);
+        newConstant("J" + value + "+"); // longs take two entries
+        return i;
+    }
+
+    private int methodRef(String owner, String name, String desc)
+            throws IOException {
+        String key = "M" + owner + '.' + name + desc;
+        Integer i = poolIndex.get(key);
+        if (i != null) return i;
+        int cls = classRef(owner);
+        int nameAndType = nameAndType(name, desc);
+        pool.writeByte(10);
+        pool.writeShort(cls);
+        pool.writeShort(nameAndType);
+        return newConstant(key);
+    }
+
+    private int nameAndType(String name, String desc) throws IOException {
+        String key = "N" + name + ' ' + desc;
+        Integer i = poolIndex.get(key);
+        if (i != null) return i;
+        int n = utf8(name);
+        int d = utf8(desc);
+        pool.writeByte(12);
+        pool.writeShort(n);
+        pool.writeShort(d);
+        return newConstant(key);
+    }
+
+    private int newConstant(String key) {
+        int i = poolCount++;
+        if (i > 0xFFFF) {
+            throw new IllegalStateException("Constant pool too large");
+        }
+        poolIndex.put(key, i);
+        return i;
+    }
+
+    /**
+     * The code of a method, with forward jumps resolved when done.
+     */
+    private final class Code {
+        private byte[] code = new byte[256];
+        private int length;
+        private int[] labels = new int[16];
+        private int labelCount;
+        private final List<int[]> jumps = new ArrayList<int[]>();
+
+        void op(int opcode) {
+            put(opcode);
+        }
+
+        void var(int opcode, int local) {
+            if (local <= 3) {
+                // short forms (xLOAD_n, xSTORE_n)
+                switch (opcode) {
+                    case ILOAD:  put(0x1a + local); return;
+                    case ALOAD:  put(0x2a + local); return;
+                    case ISTORE: put(0x3b + local); return;
+                }
+            }
+            put(opcode);
+            put(local);
+        }
+
+        void iinc(int local, int delta) {
+            put(IINC);
+            put(local);
+            put(delta);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                put(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                put(BIPUSH);
+                put(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                put(SIPUSH);
+                put(value >> 8);
+                put(value);
+            } else {
+                try {
+                    ldc(intConst(value));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        void ldc(int constant) {
+            put(LDC_W);
+            put(constant >> 8);
+            put(constant);
+        }
+
+        void ldc2(int constant) {
+            put(LDC2_W);
+            put(constant >> 8);
+            put(constant);
+        }
+
+        void invoke(int opcode, String owner, String name, String desc) {
+            int ref;
+            try {
+                ref = methodRef(owner, name, desc);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            put(opcode);
+            put(ref >> 8);
+            put(ref);
+        }
+
+        int newLabel() {
+            if (labelCount == labels.length) {
+                labels = Arrays.copyOf(labels, labelCount * 2);
+            }
+            labels[labelCount] = -1;
+            return labelCount++;
+        }
+
+        void mark(int label) {
+            labels[label] = length;
+        }
+
+        void jump(int opcode, int label) {
+            // {instruction, label, offset position, offset size}
+            jumps.add(new int[] {length, label, length + 1, 2});
+            put(opcode);
+            put(0);
+            put(0);
+        }
+
+        /** @param keys sorted, with the label of each in {@code targets} */
+        void lookupSwitch(int[] keys, int[] targets, int otherwise) {
+            int start = length;
+            put(LOOKUPSWITCH);
+            while (length % 4 != 0) put(0);
+            jumps.add(new int[] {start, otherwise, length, 4});
+            putInt(0);
+            putInt(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                putInt(keys[i]);
+                jumps.add(new int[] {start, targets[i], length, 4});
+                putInt(0);
+            }
+        }
+
+        byte[] toByteArray() {
+            for (int[] j : jumps) {
+                int offset = labels[j[1]] - j[0];
+                int pos = j[2];
+                if (j[3] == 4) {
+                    code[pos++] = (byte) (offset >> 24);
+                    code[pos++] = (byte) (offset >> 16);
+                } else if (offset != (short) offset) {
+                    throw new IllegalStateException("Method too large");
+                }
+                code[pos++] = (byte) (offset >> 8);
+                code[pos] = (byte) offset;
+            }
+            return Arrays.copyOf(code, length);
+        }
+
+        private void putInt(int value) {
+            put(value >> 24);
+            put(value >> 16);
+            put(value >> 8);
+            put(value);
+        }
+
+        private void put(int b) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = (byte) b;
+        }
+    }
+
+}
@@ -0,0 +1,385 @@
+package ldf.compiler.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * <p>Base class of the packrat parsers which {@link NaivePackratCompiler}
+ * generates in memory (as bytecode). It has the same memoization scheme
+ * as the runtime included in the generated source code: one {@code int}
+ * column per rule, indexed by position in the input.
+ * </p>
+ * <p>Each instance parses a single input; instances are created through a
+ * {@link Factory}. The input is either a string, or a {@link Reader}, in
+ * which case only a window of it is kept in memory, along with the part
+ * of the memoization table which covers it (see {@link #commit}).
+ * </p>
+ *
+ * @author Cristian Harja
+ */
+@NotThreadSafe
+public abstract class PackratParser {
+
+    /** Returned by the parse methods (and memoized) when there's no match */
+    public static final int FAIL = -1;
+
+    /** Returned by {@link #memoGet} for rules which weren't tried yet */
+    protected static final int MEMO_UNKNOWN = -2;
+
+    /** Returned by {@link #charAt} past the end of the input */
+    protected static final int EOF = -1;
+
+    private static final int INITIAL_CAPACITY = 8192;
+
+    /** The input, unless reading from a {@link Reader} */
+    @Nullable
+    protected final String input;
+
+    @Nullable
+    private final Reader reader;
+
+    /*
+        The part of the input which is still needed, starting at position
+        `windowStart`, up to `windowEnd`; for string inputs, all of it.
+    */
+    private char[] window;
+    private int windowStart;
+    private int windowEnd;
+    private boolean eof;
+
+    /*
+        One column per rule, indexed by position - `memoStart`. Entries
+        hold the result + 2, so that 0 (the initial value) means "unknown"
+        and 1 means FAIL.
+    */
+    private final int[][] memo;
+    private int memoStart;
+
+    /*
+        Nothing before this position will be looked at again. Rules which
+        are being evaluated could backtrack to where they started; since a
+        rule only invokes others at (or after) its own position, the lowest
+        such point is the position of the outermost one.
+    */
+    private int commitPoint;
+    private int depth;
+    private int outermost;
+
+    protected PackratParser(@Nonnull String input, int ruleCount) {
+        this.input = input;
+        this.reader = null;
+        this.window = input.toCharArray();
+        this.windowEnd = window.length;
+        this.eof = true;
+        this.memo = new int[ruleCount][];
+    }
+
+    /**
+     * Streaming mode: the input is read as needed, and only the part of
+     * it (and of the memoization table) after the commit point is kept in
+     * memory (see {@link #commit}).
+     */
+    protected PackratParser(@Nonnull Reader reader, int ruleCount) {
+        this.input = null;
+        this.reader = reader;
+        this.window = new char[INITIAL_CAPACITY];
+        this.memo = new int[ruleCount][];
+    }
+
+    /**
+     * @return the input, or {@code null} when reading from a {@link Reader}
+     */
+    @Nullable
+    public final String getInput() {
+        return input;
+    }
+
+    /**
+     * Tries to match a rule at the given position.
+     *
+     * @param rule  rule id (see {@link Factory#getRuleId})
+     * @param index position in the input
+     * @return the position where the match ends, or {@link #FAIL}
+     */
+    public abstract int parseRule(int rule, int index);
+
+    /**
+     * Matches a rule repeatedly, starting at the given position, and
+     * commits after each match; this parses a sequence of items (e.g. the
+     * lines of a log file) in constant memory.
+     *
+     * @return the position after the last match
+     */
+    public final int parseEach(int rule, int index) {
+        int result;
+        while ((result = parseRule(rule, index)) > index) {
+            index = result;
+            commit(index);
+        }
+        return index;
+    }
+
+    /**
+     * Tells the parser that it won't have to go back before the given
+     * position, so that it can discard the input and the memoization
+     * entries before it. While rules are being evaluated, the commit point
+     * can't go past the position of the outermost one.
+     */
+    public final void commit(int index) {
+        if (depth > 0) {
+            index = Math.min(index, outermost);
+        }
+        commitPoint = Math.max(commitPoint, index);
+    }
+
+    /**
+     * @return whether the whole input has been consumed, up to the given
+     *         position (skipping trailing whitespace)
+     */
+    public final boolean isAtEnd(int index) {
+        return charAt(skipWhitespace(index)) == EOF;
+    }
+
+    protected final int memoGet(int rule, int index) {
+        int[] column = memo[rule];
+        int i = index - memoStart;
+        if (i < 0) {
+            throw new IllegalStateException(
+                    "Position " + index + " is before the commit point"
+            );
+        }
+        if (column == null || i >= column.length || column[i] == 0) {
+            // the rule is about to be evaluated
+            if (depth++ == 0) outermost = index;
+            return MEMO_UNKNOWN;
+        }
+        return column[i] - 2;
+    }
+
+    protected final int memoPut(int rule, int index, int result) {
+        depth--;
+        return store(rule, index, result);
+    }
+
+    /**
+     * Memoizes an intermediate result of a left recursive rule, which is
+     * still being evaluated (its recursive invocations will see it).
+     */
+    protected final void memoSeed(int rule, int index, int result) {
+        store(rule, index, result);
+    }
+
+    /**
+     * Forgets the memoized result of a rule (which depended on the match
+     * of a left recursive rule, which is still growing).
+     */
+    protected final void memoForget(int rule, int index) {
+        int[] column = memo[rule];
+        int i = index - memoStart;
+        if (column != null && i >= 0 && i < column.length) {
+            column[i] = 0;
+        }
+    }
+
+    private int store(int rule, int index, int result) {
+        int[] column = memo[rule];
+        int i = index - memoStart;
+        if (column == null || i >= column.length) {
+            if (memoStart < commitPoint) {
+                discardMemo();
+                column = memo[rule];
+                i = index - memoStart;
+            }
+            if (column == null || i >= column.length) {
+                int size = input != null ? input.length() + 1 :
+                        INITIAL_CAPACITY;
+                if (column != null) {
+                    size = Math.max(column.length * 2, size);
+                }
+                column = Arrays.copyOf(
+                        column != null ? column : new int[0],
+                        Math.max(size, i + 1)
+                );
+                memo[rule] = column;
+            }
+        }
+        column[i] = result + 2;
+        return result;
+    }
+
+    private void discardMemo() {
+        int shift = commitPoint - memoStart;
+        for (int r = 0; r < memo.length; r++) {
+            int[] column = memo[r];
+            if (column == null) continue;
+            if (shift >= column.length) {
+                Arrays.fill(column, 0);
+            } else {
+                int n = column.length - shift;
+                System.arraycopy(column, shift, column, 0, n);
+                Arrays.fill(column, n, column.length, 0);
+            }
+        }
+        memoStart = commitPoint;
+    }
+
+    /**
+     * @return the character at the given position, or {@link #EOF}
+     */
+    protected final int charAt(int index) {
+        while (index >= windowEnd) {
+            if (eof || !fill()) return EOF;
+        }
+        int i = index - windowStart;
+        if (i < 0) {
+            throw new IllegalStateException(
+                    "Position " + index + " is before the commit point"
+            );
+        }
+        return window[i];
+    }
+
+    private boolean fill() {
+        int length = windowEnd - windowStart;
+        if (length == window.length) {
+            int keep = windowEnd - Math.max(commitPoint, windowStart);
+            if (keep < window.length / 2) {
+                // slide the window
+                System.arraycopy(window, length - keep, window, 0, keep);
+                windowStart = windowEnd - keep;
+                length = keep;
+            } else {
+                window = Arrays.copyOf(window, window.length * 2);
+            }
+        }
+        int n;
+        try {
+            n = reader.read(window, length, window.length - length);
+        } catch (IOException e) {
+            throw new ReadException(e);
+        }
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        windowEnd += n;
+        return true;
+    }
+
+    private int skipWhitespace(int index) {
+        int c;
+        while ((c = charAt(index)) == ' ' || c == '\n' ||
+                c == '\t' || c == '\r') {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * @return the next character which isn't whitespace, or {@link #EOF}
+     */
+    protected final int peek(int index) {
+        return charAt(skipWhitespace(index));
+    }
+
+    protected final int matchString(int index, String str) {
+        index = skipWhitespace(index);
+        for (int i = 0, n = str.length(); i < n; i++) {
+            if (charAt(index + i) != str.charAt(i)) {
+                return FAIL;
+            }
+        }
+        return index + str.length();
+    }
+
+    /**
+     * Thrown by the parse methods when the {@link Reader} fails.
+     */
+    public static class ReadException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public ReadException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * Creates parsers of a generated class (one for each input).
+     */
+    @ThreadSafe
+    public static final class Factory {
+
+        private final Constructor<? extends PackratParser> constructor;
+        private final Constructor<? extends PackratParser> readerConstructor;
+        private final Map<String, Integer> ruleIds;
+
+        Factory(
+                @Nonnull Class<? extends PackratParser> parserClass,
+                @Nonnull Map<String, Integer> ruleIds
+        ) {
+            try {
+                constructor = parserClass.getConstructor(String.class);
+                readerConstructor = parserClass.getConstructor(Reader.class);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(e);
+            }
+            this.ruleIds = Collections.unmodifiableMap(ruleIds);
+        }
+
+        @Nonnull
+        public Class<? extends PackratParser> getParserClass() {
+            return constructor.getDeclaringClass();
+        }
+
+        /**
+         * @return the id of the given non-terminal, or -1 if there's no
+         *         such rule
+         */
+        public int getRuleId(@Nonnull String nterm) {
+            Integer id = ruleIds.get(nterm);
+            return id != null ? id : -1;
+        }
+
+        @Nonnull
+        public PackratParser newParser(@Nonnull String input) {
+            return newInstance(constructor, input);
+        }
+
+        /**
+         * Creates a parser in streaming mode.
+         */
+        @Nonnull
+        public PackratParser newParser(@Nonnull Reader input) {
+            return newInstance(readerConstructor, input);
+        }
+
+        private static PackratParser newInstance(
+                Constructor<? extends PackratParser> c, Object input
+        ) {
+            try {
+                return c.newInstance(input);
+            } catch (InstantiationException e) {
+                throw new IllegalStateException(e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            } catch (InvocationTargetException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+}
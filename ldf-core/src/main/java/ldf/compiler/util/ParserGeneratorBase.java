@@ -11,6 +11,7 @@ import ldf.compiler.ast.decl.DeclNonTerminal;
 import ldf.compiler.ast.type.TypeExpression;
 import ldf.compiler.context.CompilerContext;
 import ldf.compiler.semantics.ags.AgsNodeUnion;
+import ldf.compiler.semantics.symbols.InternedName;
 import ldf.compiler.semantics.symbols.NsNode;
 import ldf.compiler.semantics.symbols.NsNodeType;
 import ldf.compiler.semantics.types.DataType;
@@ -102,7 +103,8 @@ public abstract class ParserGeneratorBase {
         NsNode ns = ctx.getGlobalNamespace();
         for (int i = 0, n = path.length; i < n; i++) {
             String s = path[i];
-            Multimap<NsNodeType, NsNode> mm = ns.getChildren().get(s);
+            Multimap<NsNodeType, NsNode> mm;
+            mm = ns.getChildren(InternedName.idOf(s));
             if (mm == null) return null;
             boolean isLast = i == n - 1;
             ns = getOnlyElement(mm.get(
@@ -1,8 +1,17 @@
 package ldf.compiler;
 
 import ldf.compiler.util.NaivePackratCompiler;
+import ldf.compiler.util.PackratParser;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Cristian Harja
@@ -10,6 +19,11 @@ import java.io.File;
 public abstract class AbstractCompilerTest {
 
     protected LdfCompiler initCompiler(String name) throws Exception {
+        LdfCompilerSettings settings = initSettings(name);
+        return settings == null ? null : new LdfCompiler(settings);
+    }
+
+    protected LdfCompilerSettings initSettings(String name) {
         LdfCompilerSettings settings = new LdfCompilerSettings();
         File root = new File("ldf-core/src/test/ldf");
         if (!root.exists()) {
@@ -29,7 +43,58 @@ public abstract class AbstractCompilerTest {
             }
         }
         settings.setParserGen(new NaivePackratCompiler());
-        return new LdfCompiler(settings);
+        return settings;
+    }
+
+    /**
+     * Generates a packrat parser for one of the grammars in the given
+     * source files, and loads it.
+     */
+    protected static PackratParser.Factory definePackratParser(
+            LdfCompilerSettings settings, String grammar
+    ) throws Exception {
+        NaivePackratCompiler gen = new NaivePackratCompiler();
+        gen.setPrintSource(false);
+        settings.setParserGen(gen);
+        LdfCompiler compiler = new LdfCompiler(settings);
+        compiler.generateParser(grammar);
+        assertFalse(compiler.getLogger().hasErrors());
+        return gen.defineParser();
+    }
+
+    /**
+     * Generates a packrat parser for a grammar given as source code, and
+     * loads it.
+     */
+    protected static PackratParser.Factory definePackratParser(
+            String grammar, String source
+    ) throws Exception {
+        File file = File.createTempFile("ldf", ".ldf");
+        try {
+            write(file, source);
+            LdfCompilerSettings settings = new LdfCompilerSettings();
+            settings.addSourceFile(file);
+            return definePackratParser(settings, grammar);
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    protected static void write(File f, String text) throws IOException {
+        Writer w = new FileWriter(f);
+        try {
+            w.write(text);
+        } finally {
+            w.close();
+        }
+    }
+
+    protected static List<String> messagesOf(CompilerLog log) {
+        List<String> result = new ArrayList<String>();
+        for (CompilerLog.Entry e : log.getMessages()) {
+            result.add(e.toString());
+        }
+        return result;
     }
 
 }
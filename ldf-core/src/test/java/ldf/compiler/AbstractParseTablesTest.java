@@ -0,0 +1,194 @@
+package ldf.compiler;
+
+import ldf.java_cup.CupGenerator;
+import ldf.java_cup.runtime.comb_table;
+import ldf.java_cup.runtime.lr_parser;
+import ldf.java_cup.runtime.packed_tables;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Helpers for the tests of the LALR parser generator, which run it on
+ * LDF's own grammar, and for comparing the tables it generates.
+ *
+ * @author Cristian Harja
+ */
+public abstract class AbstractParseTablesTest {
+
+    private static File grammarFile() {
+        File f = new File("ldf-core/src/main/cup/parser.cup");
+        if (!f.isFile()) {
+            f = new File("src/main/cup/parser.cup");
+        }
+        return f;
+    }
+
+    /**
+     * Generates LDF's parser (with the options used by the build, plus
+     * the given ones) into a new temporary directory.
+     */
+    protected static File generate(String... options) throws Exception {
+        return generate(grammarFile(), options);
+    }
+
+    /**
+     * Generates the parser of the given grammar, like {@link
+     * #generate(String...)}.
+     */
+    protected static File generate(File grammar, String... options)
+            throws Exception {
+        File dir = File.createTempFile("ldf-cup", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        dir.deleteOnExit();
+
+        List<String> argv = new ArrayList<String>(Arrays.asList(options));
+        argv.addAll(Arrays.asList(
+                "-interface", "-parser", "parser", "-symbols", "sym",
+                "-nosummary", "-destdir", dir.getPath(),
+                grammar.getPath()
+        ));
+        assertEquals(0, new CupGenerator(argv).generate());
+
+        for (File f : dir.listFiles()) {
+            f.deleteOnExit();
+        }
+        return dir;
+    }
+
+    /**
+     * Compiles a generated parser (of a grammar in the default package)
+     * next to its sources, and returns a class loader which loads it,
+     * along with its binary tables, if any.
+     */
+    protected static ClassLoader compile(File dir) throws Exception {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        assertNotNull("A JDK is needed for compiling parsers", javac);
+        String runtime = new File(
+                lr_parser.class.getProtectionDomain()
+                        .getCodeSource().getLocation().toURI()
+        ).getPath();
+        int status = javac.run(null, null, null,
+                "-nowarn", "-classpath", runtime, "-d", dir.getPath(),
+                new File(dir, "parser.java").getPath(),
+                new File(dir, "sym.java").getPath()
+        );
+        assertEquals(0, status);
+        for (File f : dir.listFiles()) {
+            f.deleteOnExit();
+        }
+        return new URLClassLoader(
+                new URL[]{dir.toURI().toURL()},
+                lr_parser.class.getClassLoader()
+        );
+    }
+
+    protected static byte[] readFile(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] b = new byte[(int) raf.length()];
+            raf.readFully(b);
+            return b;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads a generated source file, without the lines which contain the
+     * time of the generation.
+     */
+    protected static String readSource(File f) throws IOException {
+        String source = new String(readFile(f), "UTF-8");
+        return source.replaceAll(
+                "(?m)^.*\\w{3} \\w{3} [ \\d]\\d \\d\\d:\\d\\d:\\d\\d .*$", ""
+        );
+    }
+
+    protected static short[][][] readTables(File dir) throws IOException {
+        return packed_tables.read(ByteBuffer.wrap(
+                readFile(new File(dir, "parser.tables"))
+        ));
+    }
+
+    /**
+     * Looks up an entry in a row table, like {@code lr_parser} does.
+     */
+    protected static short rowLookup(short[][] table, int state, int sym) {
+        short[] row = table[state];
+        if (row == null) {
+            return -1;
+        }
+        for (int i = 0; i < row.length; i += 2) {
+            if (row[i] == sym || row[i] == -1) {
+                return row[i + 1];
+            }
+        }
+        return 0;
+    }
+
+    protected static int numSymbols(short[][] table) {
+        int n = 0;
+        for (short[] row : table) {
+            for (int i = 0; row != null && i < row.length; i += 2) {
+                n = Math.max(n, row[i] + 1);
+            }
+        }
+        return n;
+    }
+
+    protected static void assertSameLookups(
+            short[][] rows, comb_table comb, int numSymbols
+    ) {
+        for (int state = 0; state < rows.length; state++) {
+            for (int sym = 0; sym < numSymbols; sym++) {
+                assertEquals(
+                        "state " + state + ", symbol " + sym,
+                        rowLookup(rows, state, sym),
+                        comb.get(state, sym)
+                );
+            }
+        }
+    }
+
+    protected static void assertSameLookups(
+            short[][] expected, short[][] actual, int numSymbols
+    ) {
+        assertEquals(expected.length, actual.length);
+        for (int state = 0; state < expected.length; state++) {
+            for (int sym = 0; sym < numSymbols; sym++) {
+                assertEquals(
+                        rowLookup(expected, state, sym),
+                        rowLookup(actual, state, sym)
+                );
+            }
+        }
+    }
+
+    /**
+     * Checks that two directories contain the same generated parser.
+     */
+    protected static void assertSameParser(File expected, File actual)
+            throws IOException {
+        for (String name : new String[]{"parser.java", "sym.java"}) {
+            assertEquals(
+                    name,
+                    readSource(new File(expected, name)),
+                    readSource(new File(actual, name))
+            );
+        }
+    }
+}
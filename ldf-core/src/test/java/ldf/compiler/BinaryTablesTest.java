@@ -0,0 +1,49 @@
+package ldf.compiler;
+
+import ldf.compiler.gen.parser;
+import ldf.java_cup.runtime.packed_tables;
+import ldf.java_cup.runtime.parse_tables;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the binary form of the LALR tables (see {@link packed_tables})
+ * against the tables of LDF's own parser.
+ *
+ * @author Cristian Harja
+ */
+public class BinaryTablesTest extends AbstractParseTablesTest {
+
+    @Test
+    public void testBinaryTables() throws Exception {
+        parse_tables tables = new parser().tables();
+        List<short[][]> list = Arrays.asList(
+                tables.production_table(),
+                tables.action_table(),
+                tables.reduce_table()
+        );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        packed_tables.write(out, list);
+        short[][][] read = packed_tables.read(
+                ByteBuffer.wrap(out.toByteArray())
+        );
+        assertTrue(Arrays.deepEquals(list.toArray(), read));
+
+        // the same, as written by the generator
+        File dir = generate("-binary_tables");
+        read = readTables(dir);
+        assertTrue(Arrays.deepEquals(list.toArray(), read));
+
+        // which loads them instead of unpacking strings
+        String source = readSource(new File(dir, "parser.java"));
+        assertTrue(source.contains("packed_tables.load("));
+        assertFalse(source.contains("unpackFromStrings("));
+    }
+}
@@ -0,0 +1,101 @@
+package ldf.compiler;
+
+import com.google.common.base.Predicate;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Cristian Harja
+ */
+public class CompilerLogTest {
+
+    @Test
+    public void testConcurrentLogging() throws Exception {
+        final CompilerLog log = new CompilerLog();
+        final AtomicInteger received = new AtomicInteger();
+        log.addSink(new CompilerLog.Sink() {
+            @Override
+            public void messageLogged(@Nonnull CompilerLog.Entry e) {
+                received.incrementAndGet();
+            }
+        });
+
+        final int threads = 4, perThread = 1000;
+        List<Thread> list = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final String fileName = "file" + t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        log.logMessage(
+                                i % 2 == 0 ? CompilerLog.EntryType.WARN
+                                           : CompilerLog.EntryType.ERROR,
+                                fileName, null, "message {0}",
+                                new Object[]{i}
+                        );
+                    }
+                }
+            };
+            list.add(thread);
+            thread.start();
+        }
+        for (Thread thread : list) {
+            thread.join();
+        }
+
+        assertEquals(threads * perThread, received.get());
+        assertEquals(threads * perThread, log.getMessages().size());
+        assertTrue(log.hasErrors());
+
+        CompilerLog.Entry prev = null;
+        for (CompilerLog.Entry e : log.getMessages()) {
+            if (prev != null) {
+                assertTrue(prev.getFileName().compareTo(
+                        e.getFileName()) <= 0
+                );
+            }
+            prev = e;
+        }
+
+        log.removeMessages(new Predicate<CompilerLog.Entry>() {
+            @Override
+            public boolean apply(@Nullable CompilerLog.Entry input) {
+                assert input != null;
+                return input.getType() == CompilerLog.EntryType.ERROR;
+            }
+        });
+        assertFalse(log.hasErrors());
+        assertEquals(threads * perThread / 2, log.getMessages().size());
+
+        log.logMessage(
+                CompilerLog.EntryType.ERROR, "file0", null, "again",
+                new Object[0]
+        );
+        assertTrue(log.hasErrors());
+        assertEquals(threads * perThread / 2 + 1, log.getMessages().size());
+    }
+
+    @Test
+    public void testLazyFormatting() throws Exception {
+        CompilerLog log = new CompilerLog();
+        log.logMessage(
+                CompilerLog.EntryType.WARN, "a.ldf", null,
+                "{0} and {1}", new Object[]{"x", 1}
+        );
+        CompilerLog.Entry e = log.getMessages().first();
+        assertEquals("x and 1", e.getFormattedMessage());
+        assertEquals("x and 1", e.getFormattedMessage());
+        assertEquals("[WARN]  a.ldf: x and 1", e.toString());
+    }
+
+}
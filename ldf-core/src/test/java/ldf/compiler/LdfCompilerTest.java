@@ -1,7 +1,20 @@
 package ldf.compiler;
 
+import ldf.compiler.semantics.symbols.NsNode;
+import ldf.compiler.semantics.symbols.NsNodeType;
+import ldf.compiler.semantics.symbols.Scope;
+import ldf.compiler.util.PackratParser;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
 /**
  * @author Cristian Harja
  */
@@ -26,4 +39,337 @@ public class LdfCompilerTest extends AbstractCompilerTest {
         Thread.sleep(200);
     }
 
+    @Test
+    public void testScopeCache() throws Exception {
+        LdfCompiler compiler = initCompiler("testCompile2");
+        compiler.parseAllFiles();
+        compiler.analyzeParsedFiles();
+        assertFalse(compiler.getLogger().hasErrors());
+
+        Iterator<NsNode> it = compiler.getGlobalNamespace().findAllByType(
+                NsNodeType.GRAMMAR
+        );
+        Scope base = null;
+        while (it.hasNext()) {
+            NsNode g = it.next();
+            if ("Base".equals(g.getName())) {
+                base = g.getAstNode().getScope();
+            }
+        }
+        assertNotNull(base);
+
+        // `DECIMAL_DIGIT` and `ID_START` are referenced twice
+        assertTrue(base.getCacheHits() >= 2);
+        assertTrue(base.getCacheMisses() > 0);
+    }
+
+    @Test
+    public void testDefineParser() throws Exception {
+        PackratParser.Factory factory = definePackratParser(
+                initSettings("testCompile2"), "Robot"
+        );
+        int rule = factory.getRuleId("command_block");
+        assertTrue(rule >= 0);
+
+        String input = "begin turn left\n move end";
+        assertEquals(
+                input.length(),
+                factory.newParser(input).parseRule(rule, 0)
+        );
+        assertEquals(
+                PackratParser.FAIL,
+                factory.newParser("begin turn up end").parseRule(rule, 0)
+        );
+    }
+
+    @Test
+    public void testStreamingParser() throws Exception {
+        PackratParser.Factory factory = definePackratParser(
+                initSettings("testCompile2"), "Robot"
+        );
+        int rule = factory.getRuleId("command");
+
+        final int count = 100000;
+        Reader input = new Reader() {
+            int n;
+            String line = "";
+            int pos;
+
+            @Override
+            public int read(char[] buf, int off, int len) {
+                if (pos == line.length()) {
+                    if (n == count) return -1;
+                    line = (n++ % 2 == 0) ? "turn left\n" : "move\n";
+                    pos = 0;
+                }
+                len = Math.min(len, line.length() - pos);
+                line.getChars(pos, pos + len, buf, off);
+                pos += len;
+                return len;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        PackratParser parser = factory.newParser(input);
+        int end = parser.parseEach(rule, 0);
+        assertEquals(count / 2 * ("turn left\n".length() + 5) - 1, end);
+        assertTrue(parser.isAtEnd(end));
+    }
+
+    @Test
+    public void testParseParallel() throws Exception {
+        LdfCompiler sequential = initCompiler("testCompile2");
+        sequential.parseAllFiles();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            LdfCompilerSettings settings = initSettings("testCompile2");
+            settings.setParseExecutor(executor);
+            LdfCompiler parallel = new LdfCompiler(settings);
+            parallel.parseAllFiles();
+
+            assertEquals(
+                    sequential.parsedFiles.keySet(),
+                    parallel.parsedFiles.keySet()
+            );
+            assertEquals(
+                    messagesOf(sequential.getLogger()),
+                    messagesOf(parallel.getLogger())
+            );
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAnalyzeParallel() throws Exception {
+        LdfCompiler sequential = initCompiler("testCompile2");
+        sequential.analyzeParsedFiles();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            LdfCompilerSettings settings = initSettings("testCompile2");
+            settings.setParseExecutor(executor);
+            settings.setAnalysisExecutor(executor);
+            LdfCompiler parallel = new LdfCompiler(settings);
+            parallel.analyzeParsedFiles();
+
+            assertEquals(
+                    messagesOf(sequential.getLogger()),
+                    messagesOf(parallel.getLogger())
+            );
+            assertEquals(
+                    sequential.getGlobalNamespace().getChildren().keySet(),
+                    parallel.getGlobalNamespace().getChildren().keySet()
+            );
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testLeftRecursion() throws Exception {
+        PackratParser.Factory factory = definePackratParser(
+                "Calc",
+                "grammar Calc {\n" +
+                        "nterm E ::= E \"+\" T | T ;\n" +
+                        "nterm T ::= \"x\" | \"(\" E \")\" ;\n" +
+                        "nterm L ::= M \"a\" | \"a\" ;\n" +
+                        "nterm M ::= L \"b\" ;\n" +
+                        "nterm A ::= B \"x\" | \"a\" ;\n" +
+                        "nterm B ::= A \"y\" | B \"z\" | \"b\" ;\n" +
+                        "}"
+        );
+
+        int e = factory.getRuleId("E");
+        int l = factory.getRuleId("L");
+        int a = factory.getRuleId("A");
+        int b = factory.getRuleId("B");
+
+        String input = "x + (x + x) + x";
+        assertEquals(
+                input.length(),
+                factory.newParser(input).parseRule(e, 0)
+        );
+        // the longest match
+        assertEquals(5, factory.newParser("x + x +").parseRule(e, 0));
+        assertEquals(
+                PackratParser.FAIL,
+                factory.newParser("+ x").parseRule(e, 0)
+        );
+
+        // indirect
+        assertEquals(5, factory.newParser("ababa").parseRule(l, 0));
+        assertEquals(3, factory.newParser("abab").parseRule(l, 0));
+
+        // a left recursive cycle nested in another
+        assertEquals(3, factory.newParser("ayx").parseRule(a, 0));
+        assertEquals(5, factory.newParser("ayxyx").parseRule(a, 0));
+        assertEquals(3, factory.newParser("bzx").parseRule(a, 0));
+        assertEquals(2, factory.newParser("ay").parseRule(b, 0));
+    }
+
+    @Test
+    public void testQuantifiedGroups() throws Exception {
+        PackratParser.Factory factory = definePackratParser(
+                "Groups",
+                "grammar Groups {\n" +
+                        "nterm K ::= (\"a\" \"b\")* ;\n" +
+                        "nterm H ::= (\"a\" \"b\")+ | \"z\" ;\n" +
+                        "nterm U ::= (\"a\" | \"b\")+ ;\n" +
+                        "nterm N ::= \"x\" (\"a\" \"b\")* \"y\" ;\n" +
+                        "}"
+        );
+
+        int k = factory.getRuleId("K");
+        int h = factory.getRuleId("H");
+        int u = factory.getRuleId("U");
+        int n = factory.getRuleId("N");
+
+        // the whole rule
+        assertEquals(0, factory.newParser("").parseRule(k, 0));
+        assertEquals(4, factory.newParser("abab").parseRule(k, 0));
+        assertEquals(2, factory.newParser("aba").parseRule(k, 0));
+        assertEquals(4, factory.newParser("abbb").parseRule(u, 0));
+
+        // a whole branch
+        assertEquals(4, factory.newParser("abab").parseRule(h, 0));
+        assertEquals(1, factory.newParser("z").parseRule(h, 0));
+        assertEquals(
+                PackratParser.FAIL,
+                factory.newParser("").parseRule(h, 0)
+        );
+
+        // an item
+        assertEquals(2, factory.newParser("xy").parseRule(n, 0));
+        assertEquals(6, factory.newParser("xababy").parseRule(n, 0));
+    }
+
+    @Test
+    public void testFirstSetDispatch() throws Exception {
+        // more alternatives than there are bits in a mask
+        StringBuilder words = new StringBuilder();
+        for (int i = 0; i < 70; i++) {
+            words.append(i == 0 ? "" : " | ");
+            words.append('"').append(wordStart(i)).append("x\"");
+        }
+        PackratParser.Factory factory = definePackratParser(
+                "Words",
+                "grammar Words {\n" +
+                        "nterm W ::= " + words + " ;\n" +
+                        "nterm S ::= W \";\" | \"a\" \"b\" | \"a\" | \"\" ;\n" +
+                        "}"
+        );
+
+        int w = factory.getRuleId("W");
+        int s = factory.getRuleId("S");
+
+        for (int i = 0; i < 70; i++) {
+            String input = " " + wordStart(i) + "x";
+            assertEquals(3, factory.newParser(input).parseRule(w, 0));
+        }
+        assertEquals(
+                PackratParser.FAIL,
+                factory.newParser("x").parseRule(w, 0)
+        );
+        assertEquals(3, factory.newParser("0x;").parseRule(s, 0));
+        assertEquals(3, factory.newParser("a b").parseRule(s, 0));
+        assertEquals(1, factory.newParser("ac").parseRule(s, 0));
+        assertEquals(0, factory.newParser("c").parseRule(s, 0));
+        assertEquals(0, factory.newParser("").parseRule(s, 0));
+    }
+
+    @Test
+    public void testUpdateFiles() throws Exception {
+        File dir = File.createTempFile("ldf", "");
+        assertTrue(dir.delete() && dir.mkdir());
+
+        File base = new File(dir, "base.ldf");
+        File robot = new File(dir, "robot.ldf");
+        File other = new File(dir, "other.ldf");
+        try {
+            write(base, "grammar Base { nterm X ::= \"x\" ; }");
+            write(robot, "grammar Robot : Base { nterm Y ::= X ; }");
+            write(other, "grammar Other { nterm Z ::= \"z\" ; }");
+
+            LdfCompilerSettings settings = new LdfCompilerSettings();
+            settings.addSourceFile(base);
+            settings.addSourceFile(robot);
+            settings.addSourceFile(other);
+            LdfCompiler compiler = new LdfCompiler(settings);
+            compiler.analyzeParsedFiles();
+            assertFalse(compiler.getLogger().hasErrors());
+
+            LdfParser baseParser = compiler.parsedFiles.get(base);
+            LdfParser robotParser = compiler.parsedFiles.get(robot);
+
+            // nothing depends on `other`
+            compiler.updateFiles(Collections.singleton(other));
+            assertFalse(compiler.getLogger().hasErrors());
+            assertSame(baseParser, compiler.parsedFiles.get(base));
+            assertSame(robotParser, compiler.parsedFiles.get(robot));
+
+            // `robot` depends on `base`
+            write(base, "grammar Base { nterm W ::= \"x\" ; }");
+            compiler.updateFiles(Collections.singleton(base));
+            assertTrue(compiler.getLogger().hasErrors());
+            assertNotSame(robotParser, compiler.parsedFiles.get(robot));
+
+            write(base, "grammar Base { nterm X ::= \"x\" ; }");
+            compiler.updateFiles(Collections.singleton(base));
+            assertFalse(compiler.getLogger().hasErrors());
+            assertEquals(
+                    1, compiler.getGlobalNamespace().getChildren()
+                            .get("Base").size()
+            );
+        } finally {
+            assertTrue(base.delete() && robot.delete() && other.delete());
+            assertTrue(dir.delete());
+        }
+    }
+
+    @Test
+    public void testParseCache() throws Exception {
+        File dir = File.createTempFile("ldf", "");
+        assertTrue(dir.delete());
+        try {
+            LdfCompiler uncached = initCompiler("testCompile2");
+            uncached.analyzeParsedFiles();
+
+            for (int i = 0; i < 2; i++) {
+                LdfCompilerSettings settings = initSettings("testCompile2");
+                settings.setParseCacheDir(dir);
+                LdfCompiler compiler = new LdfCompiler(settings);
+                compiler.analyzeParsedFiles();
+                compiler.generateParser("Robot");
+
+                File[] entries = dir.listFiles();
+                assertNotNull(entries);
+                assertEquals(2, entries.length);
+                // the second run only reads the trees stored by the first
+                assertEquals(2 * i, compiler.parseCache.getHitCount());
+                assertEquals(
+                        messagesOf(uncached.getLogger()),
+                        messagesOf(compiler.getLogger())
+                );
+            }
+        } finally {
+            File[] entries = dir.listFiles();
+            if (entries != null) {
+                for (File f : entries) {
+                    assertTrue(f.delete());
+                }
+            }
+            assertTrue(dir.delete());
+        }
+    }
+
+    private static char wordStart(int i) {
+        char c = (char) ('0' + i);
+        return c < '\\' ? c : (char) (c + 1);
+    }
+
 }
@@ -2,11 +2,31 @@ package ldf.compiler;
 
 import ldf.compiler.semantics.ags.AgsNode;
 import ldf.compiler.semantics.ags.AgsNodeUnion;
+import ldf.compiler.ast.AstIdentifier;
+import ldf.compiler.ast.AstNode;
 import ldf.compiler.ast.AstSourceFile;
+import ldf.compiler.ast.AstStore;
 import ldf.compiler.ast.decl.DeclGrammar;
 import ldf.compiler.ast.decl.Declaration;
+import ldf.compiler.semantics.symbols.InternedName;
+import ldf.compiler.syntax.tree.StCompactTree;
+import ldf.compiler.syntax.tree.StCursor;
+import ldf.compiler.syntax.tree.StNode;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static ldf.compiler.AbstractCompilerTest.messagesOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -107,6 +127,75 @@ public class LdfParserTest extends AbstractParserTest{
         Thread.sleep(100);
     }
 
+    @Test
+    public void testParallelSyntaxCheck() throws Exception {
+        String[] examples = {
+                "example1.txt", "example2.txt", "example3.txt",
+                "example4.txt", "example5.txt", "example6.txt"
+        };
+        List<LdfParser> parsers = new ArrayList<LdfParser>();
+        for (String example : examples) {
+            parsers.add(initParser(example));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            new ParallelSyntaxCheck(pool).run(parsers);
+        } finally {
+            pool.shutdown();
+        }
+
+        for (int i = 0; i < examples.length; i++) {
+            LdfParser parser = initParser(examples[i]);
+            parser.syntaxCheck();
+            assertEquals(examples[i],
+                    messagesOf(parser.getLogger()),
+                    messagesOf(parsers.get(i).getLogger())
+            );
+            assertEquals(
+                    parser.getLogger().hasErrors(),
+                    parsers.get(i).getLogger().hasErrors()
+            );
+        }
+    }
+
+    @Test
+    public void testInternedIdentifiers() throws Exception {
+        LdfParserSettings settings = new LdfParserSettings();
+        settings.setInput(
+                LdfParserTest.class.getResourceAsStream("example5.txt")
+        );
+        LdfParser parser = new LdfParser(settings);
+        parser.parseInput();
+        assertTrue(parser.successful());
+
+        AstSourceFile root = parser.getAbstractSyntaxTree();
+        Iterator<AstIdentifier> it = root.findAllOfType(AstIdentifier.class);
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        int count = 0;
+        while (it.hasNext()) {
+            AstIdentifier id = it.next();
+            Integer prev = ids.put(id.getName(), id.getId());
+            if (prev != null) {
+                assertEquals(prev.intValue(), id.getId());
+            }
+            assertEquals(
+                    id.getName(),
+                    InternedName.forId(id.getId()).getName()
+            );
+            count++;
+        }
+        assertTrue(count > ids.size());
+
+        // ids are restored when the tree is deserialized
+        AstSourceFile copy = AstStore.of(root).getRoot();
+        it = copy.findAllOfType(AstIdentifier.class);
+        while (it.hasNext()) {
+            AstIdentifier id = it.next();
+            assertEquals(ids.get(id.getName()).intValue(), id.getId());
+        }
+    }
+
     @Test
     public void testParse6() throws Exception {
         beginTest();
@@ -124,4 +213,201 @@ public class LdfParserTest extends AbstractParserTest{
 
 
 
+    @Test
+    public void testParseSession() throws Exception {
+        LdfParserSettings settings = new LdfParserSettings();
+        settings.setUseSyntaxTree(true);
+        settings.setRecordInput(true);
+        LdfParseSession session = new LdfParseSession(settings);
+
+        List<LdfParser> results = session.parseAll(Arrays.asList(
+                "grammar A { nterm X ::= \"x\" ; }",
+                "grammar B { nterm ::= ; }",
+                "grammar C { nterm Y ::= X* ; }"
+        ));
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).successful());
+        assertFalse(results.get(1).successful());
+        assertFalse(results.get(1).getResults().isEmpty());
+        assertTrue(results.get(2).successful());
+        assertTrue(results.get(2).getResults().isEmpty());
+
+        // same results as a parser of its own
+        String input = "grammar C { nterm Y ::= X* ; }";
+        settings.setInput(input);
+        LdfParser expected = new LdfParser(settings);
+        expected.parseInput();
+        for (int i = 0; i < 5; i++) {
+            LdfParser parser = session.parse("c.ldf", input);
+            assertTrue(parser.successful());
+            AstSourceFile ast = parser.getAbstractSyntaxTree();
+            assertNotNull(findGrammar(ast, "C"));
+            Declaration d = ast.findAllOfType(Declaration.class).next();
+            assertEquals(input, parser.getRecordedText(d).toString());
+            assertEquals(
+                    expected.getSyntaxTree().getLeafR().getOffsetR(),
+                    parser.getSyntaxTree().getLeafR().getOffsetR()
+            );
+        }
+    }
+
+    @Test
+    public void testAstStore() throws Exception {
+        LdfParserSettings settings = new LdfParserSettings();
+        settings.setInput(
+                LdfParserTest.class.getResourceAsStream("example2.txt")
+        );
+        LdfParser parser = new LdfParser(settings);
+        AstSourceFile ast = parser.getAbstractSyntaxTree();
+        AstStore store = AstStore.of(ast);
+        assertFalse(store.isMaterialized());
+
+        // searching by type only uses the arrays
+        Iterator<Declaration> it = ast.findAllOfType(Declaration.class);
+        int[] found = store.indicesOfType(Declaration.class);
+        for (int i : found) {
+            Declaration d = it.next();
+            assertEquals(d.getClass(), store.getType(i));
+            assertEquals(d.getOffsetL(), store.getOffsetL(i));
+            assertEquals(d.getOffsetR(), store.getOffsetR(i));
+            assertEquals(d.getLineL(), store.getLineL(i));
+        }
+        assertFalse(it.hasNext());
+        assertTrue(found.length > 0);
+        assertFalse(store.isMaterialized());
+
+        // the nodes are created when accessed, in the same order
+        Iterator<AstNode> it1 = ast.findAllByDFS();
+        Iterator<AstNode> it2 = store.findAllByDFS();
+        int i = 0;
+        while (it1.hasNext()) {
+            AstNode n1 = it1.next(), n2 = it2.next();
+            assertEquals(n1.getClass(), n2.getClass());
+            if (n1.getSymbol() != null) {
+                assertEquals(n1.getOffsetL(), n2.getOffsetL());
+                assertEquals(n1.getOffsetL(), store.getOffsetL(i));
+            } else {
+                assertEquals(-1, store.getOffsetL(i));
+            }
+            int parent = store.getParent(i);
+            assertTrue(parent < 0
+                    ? n2.getAstParent() == null
+                    : n2.getAstParent() == store.getNode(parent));
+            assertTrue(store.getSubtreeEnd(i) > i);
+            i++;
+        }
+        assertFalse(it2.hasNext());
+        assertEquals(i, store.size());
+        assertTrue(store.isMaterialized());
+        assertTrue(store.getRoot() == store.getNode(0));
+
+        store.release();
+        assertFalse(store.isMaterialized());
+        Iterator<Declaration> it3 = store.findAllOfType(Declaration.class);
+        assertEquals(found.length > 0, it3.hasNext());
+        assertTrue(it3.next() == store.getNode(found[0]));
+    }
+
+    private static void assertSameTree(
+            StNode node, StCompactTree tree, int n
+    ) {
+        assertEquals(node.getSymbolName(), tree.getSymbolName(n));
+        assertEquals(node.getSymbolCode(), tree.getSymbolCode(n));
+        assertEquals(node.isToken(), tree.isToken(n));
+        assertEquals(node.getOffsetL(), tree.getOffsetL(n));
+        assertEquals(node.getOffsetR(), tree.getOffsetR(n));
+        int c = tree.getChildL(n);
+        for (StNode child : node) {
+            assertTrue(c >= 0);
+            assertEquals(n, tree.getParent(c));
+            assertSameTree(child, tree, c);
+            c = tree.getSiblingR(c);
+        }
+        assertEquals(-1, c);
+    }
+
+    @Test
+    public void testCompactSyntaxTree() throws Exception {
+        LdfParser expected = initParser("example1.txt");
+        StNode stRoot = expected.getSyntaxTree();
+
+        LdfParserSettings settings = new LdfParserSettings();
+        settings.setUseCompactSyntaxTree(true);
+        settings.setInput(
+                LdfParserTest.class.getResourceAsStream("example1.txt")
+        );
+        LdfParser parser = new LdfParser(settings);
+        StCompactTree tree = parser.getCompactSyntaxTree();
+        assertTrue(parser.successful());
+        assertNotNull(tree);
+        assertEquals(null, parser.getSyntaxTree());
+        assertSameTree(stRoot, tree, tree.getRoot());
+
+        // the cursor visits the same nodes, in the same order
+        StCursor cursor = tree.cursor();
+        int count = 1;
+        while (cursor.toNext()) {
+            count++;
+        }
+        int expectedCount = 0;
+        for (StNode n = stRoot; n != null; n = next(n)) {
+            expectedCount++;
+        }
+        assertEquals(expectedCount, count);
+    }
+
+    private static StNode next(StNode n) {
+        if (n.getChildL() != null) {
+            return n.getChildL();
+        }
+        for (; n != null; n = n.getParent()) {
+            if (n.getSiblingR() != null) {
+                return n.getSiblingR();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testParseMemoryMapped() throws Exception {
+        LdfParser expected = initParser("example2.txt");
+        expected.parseInput();
+
+        LdfParserSettings settings = new LdfParserSettings();
+        settings.setRecordInput(true);
+        settings.setUseSyntaxTree(true);
+        settings.setMemoryMapped(true);
+        settings.setInput(new File(
+                LdfParserTest.class.getResource("example2.txt").toURI()
+        ));
+
+        LdfParser parser = new LdfParser(settings);
+        assertTrue(parser.isMemoryMapped());
+        parser.parseInput();
+        assertTrue(parser.successful());
+
+        Iterator<Declaration> it1, it2;
+        it1 = expected.getAbstractSyntaxTree().findAllOfType(
+                Declaration.class
+        );
+        it2 = parser.getAbstractSyntaxTree().findAllOfType(
+                Declaration.class
+        );
+        while (it1.hasNext()) {
+            assertTrue(it2.hasNext());
+            assertEquals(
+                    expected.getRecordedText(it1.next()).toString(),
+                    parser.getRecordedText(it2.next()).toString()
+            );
+        }
+        assertFalse(it2.hasNext());
+
+        // without recording, the file is streamed instead
+        settings.setRecordInput(false);
+        parser = new LdfParser(settings);
+        assertFalse(parser.isMemoryMapped());
+        parser.parseInput();
+        assertTrue(parser.successful());
+    }
+
 }
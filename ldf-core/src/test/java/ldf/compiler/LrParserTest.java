@@ -0,0 +1,92 @@
+package ldf.compiler;
+
+import ldf.java_cup.runtime.Symbol;
+import ldf.java_cup.runtime.lr_parser;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Stack;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the handling of the parse stack by {@code lr_parser}, without
+ * parsing anything.
+ *
+ * @author Cristian Harja
+ */
+public class LrParserTest {
+
+    private static final class StackParser extends lr_parser {
+        public short[][] production_table() { return null; }
+        public short[][] action_table() { return null; }
+        public short[][] reduce_table() { return null; }
+        public void init_actions() {}
+        public int start_state() { return 0; }
+        public int start_production() { return 0; }
+        public int EOF_sym() { return 0; }
+        public int error_sym() { return 1; }
+
+        public Symbol do_action(
+                int act_num, lr_parser parser, Stack<Symbol> stack, int top
+        ) {
+            return null;
+        }
+
+        void push(int n) {
+            for (int i = 0; i < n; i++) {
+                push(new Symbol("t" + i, i), 0);
+            }
+        }
+
+        void popSymbols(int n) {
+            pop(n);
+        }
+
+        void reset() {
+            reset_stack();
+        }
+
+        boolean isEmpty() {
+            return tos < 0 && legacy_stack().isEmpty();
+        }
+
+        void check() {
+            Stack<Symbol> copy = legacy_stack();
+            assertEquals(
+                    Arrays.asList(Arrays.copyOf(stack, tos + 1)), copy
+            );
+            for (int i = tos + 1; i < stack.length; i++) {
+                assertNull(stack[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testLegacyStack() throws Exception {
+        StackParser p = new StackParser();
+        p.reset();
+        p.check();
+
+        p.push(5);
+        p.check();
+        p.popSymbols(3);
+        p.push(1);
+        p.check();
+
+        // popped and pushed again, between two actions
+        p.popSymbols(2);
+        p.push(4);
+        p.check();
+
+        // grows past the initial size
+        p.push(200);
+        p.check();
+        p.popSymbols(150);
+        p.check();
+
+        p.reset();
+        p.check();
+        assertTrue(p.isEmpty());
+    }
+}
@@ -0,0 +1,21 @@
+package ldf.compiler;
+
+import org.junit.Test;
+
+import java.io.File;
+
+/**
+ * Checks the parallel construction of the LALR states against the serial
+ * one.
+ *
+ * @author Cristian Harja
+ */
+public class ParallelGeneratorTest extends AbstractParseTablesTest {
+
+    @Test
+    public void testParallelGenerator() throws Exception {
+        File serial = generate("-threads", "1");
+        assertSameParser(serial, generate("-threads", "2"));
+        assertSameParser(serial, generate("-threads", "4"));
+    }
+}
@@ -0,0 +1,117 @@
+package ldf.compiler;
+
+import ldf.compiler.gen.parser;
+import ldf.java_cup.runtime.comb_table;
+import ldf.java_cup.runtime.lr_parser;
+import ldf.java_cup.runtime.parse_tables;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the comb-packed form of the LALR tables against the row tables
+ * of LDF's own parser, the sharing of the tables between the instances
+ * of a parser, and the reuse of the generator between runs.
+ *
+ * @author Cristian Harja
+ */
+public class ParseTablesTest extends AbstractParseTablesTest {
+
+    @Test
+    public void testCombTables() throws Exception {
+        parse_tables tables = new parser().tables();
+        for (short[][] rows : Arrays.asList(
+                tables.action_table(), tables.reduce_table()
+        )) {
+            int n = numSymbols(rows);
+            comb_table comb = comb_table.pack(rows, n);
+            assertSameLookups(rows, comb, n);
+            assertSameLookups(
+                    rows, comb_table.from_short_arrays(comb.to_short_arrays()), n
+            );
+            assertSameLookups(rows, comb.to_rows(n), n);
+        }
+    }
+
+    @Test
+    public void testFastTables() throws Exception {
+        parse_tables tables = new parser().tables();
+        File dir = generate("-fast_tables", "-binary_tables");
+
+        // the comb tables replace the row tables
+        String source = readSource(new File(dir, "parser.java"));
+        assertFalse(source.contains("_action_table ="));
+        assertFalse(source.contains("_reduce_table ="));
+
+        short[][][] read = readTables(dir);
+        assertEquals(3, read.length);
+        assertTrue(Arrays.deepEquals(tables.production_table(), read[0]));
+
+        short[][] action = tables.action_table();
+        short[][] reduce = tables.reduce_table();
+        assertSameLookups(
+                action, comb_table.from_short_arrays(read[1]),
+                numSymbols(action)
+        );
+        assertSameLookups(
+                reduce, comb_table.from_short_arrays(read[2]),
+                numSymbols(reduce)
+        );
+    }
+
+    @Test
+    public void testSharedTables() throws Exception {
+        // the tables are decoded once, and shared by all the instances
+        assertSame(new parser().tables(), new parser().tables());
+
+        File grammar = File.createTempFile("ldf-cup", ".cup");
+        grammar.deleteOnExit();
+        write(grammar,
+                "import ldf.java_cup.runtime.*;\n" +
+                "terminal A, B;\n" +
+                "non terminal s, t;\n" +
+                "s ::= s t | t ;\n" +
+                "t ::= A | B ;\n"
+        );
+        for (String[] options : new String[][]{
+                {}, {"-binary_tables"}, {"-fast_tables", "-binary_tables"}
+        }) {
+            ClassLoader loader = compile(generate(grammar, options));
+            Class<?> c = loader.loadClass("parser");
+            lr_parser p1 = (lr_parser) c.newInstance();
+            lr_parser p2 = (lr_parser) c.newInstance();
+            assertSame(p1.tables(), p2.tables());
+            assertSame(p1.production_table(), p2.production_table());
+            assertEquals(
+                    options.length > 1,
+                    p1.tables().action_comb() != null
+            );
+        }
+    }
+
+    private static void write(File f, String text) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+        try {
+            w.write(text);
+        } finally {
+            w.close();
+        }
+    }
+
+    @Test
+    public void testGeneratorReuse() throws Exception {
+        // the options of a run must not leak into the next one
+        File before = generate();
+        generate("-fast_tables", "-binary_tables", "-nopositions");
+        File after = generate();
+        assertSameParser(before, after);
+        assertFalse(new File(after, "parser.tables").exists());
+    }
+}
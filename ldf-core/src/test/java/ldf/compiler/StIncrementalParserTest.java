@@ -0,0 +1,164 @@
+package ldf.compiler;
+
+import ldf.compiler.syntax.tree.StIncrementalParser;
+import ldf.compiler.syntax.tree.StNode;
+import ldf.java_cup.runtime.Comment;
+import ldf.java_cup.runtime.CommentEnumeration;
+import ldf.java_cup.runtime.LocationAwareEntity;
+import org.junit.Test;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Cristian Harja
+ */
+public class StIncrementalParserTest {
+
+    private static String readExample(String example) throws Exception {
+        Reader r = new InputStreamReader(
+                StIncrementalParserTest.class.getResourceAsStream(example),
+                "UTF-8"
+        );
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[4096];
+        int n;
+        while ((n = r.read(buf)) != -1) {
+            sb.append(buf, 0, n);
+        }
+        r.close();
+        return sb.toString();
+    }
+
+    private static void pos(StringBuilder sb, LocationAwareEntity e) {
+        sb.append(" [").append(e.getLineL()).append(':')
+                .append(e.getColumnL()).append('/')
+                .append(e.getOffsetL()).append(" - ")
+                .append(e.getLineR()).append(':')
+                .append(e.getColumnR()).append('/')
+                .append(e.getOffsetR()).append(']');
+    }
+
+    private static void dump(StringBuilder sb, StNode node, int depth) {
+        for (int i = 0; i < depth; i++) {
+            sb.append("  ");
+        }
+        sb.append(node.getSymbolName());
+        pos(sb, node);
+        CommentEnumeration comments = node.getCommentsReverse();
+        while (comments.hasMoreElements()) {
+            Comment c = comments.nextElement();
+            sb.append(" //");
+            pos(sb, c);
+        }
+        sb.append('\n');
+        for (StNode child : node) {
+            assertSame(node, child.getParent());
+            dump(sb, child, depth + 1);
+        }
+    }
+
+    /**
+     * Dumps the tree, followed by the list of its leaves.
+     */
+    private static String dump(StNode root) {
+        StringBuilder sb = new StringBuilder();
+        dump(sb, root, 0);
+        StNode leaf = root.getLeafL();
+        while (leaf.getTokenL() != null) {
+            leaf = leaf.getTokenL();
+        }
+        for (; leaf != null; leaf = leaf.getTokenR()) {
+            if (leaf.getTokenR() != null) {
+                assertSame(leaf, leaf.getTokenR().getTokenL());
+            }
+            sb.append(leaf.getSymbolName());
+            pos(sb, leaf);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void assertSameTree(StIncrementalParser p) {
+        StIncrementalParser full = new StIncrementalParser();
+        StNode expected = full.parse(p.getText());
+        assertEquals(full.hasErrors(), p.hasErrors());
+        if (expected == null) {
+            assertNull(p.getSyntaxTree());
+        } else {
+            assertEquals(dump(expected), dump(p.getSyntaxTree()));
+        }
+    }
+
+    private static void edit(
+            StIncrementalParser p, String at, int skip,
+            int length, String inserted
+    ) {
+        int offset = p.getText().indexOf(at);
+        assertTrue(offset >= 0);
+        p.edit(offset + skip, length, inserted);
+    }
+
+    @Test
+    public void testEdits() throws Exception {
+        StIncrementalParser p = new StIncrementalParser();
+        assertNotNull(p.parse(readExample("example1.txt")));
+        assertFalse(p.hasErrors());
+        assertSameTree(p);
+
+        // rename a non-terminal
+        edit(p, "expr_function_call", 4, 0, "ession");
+        assertSameTree(p);
+        assertTrue(p.getRelexedTokens() < 10);
+        assertTrue(p.getReusedSubtrees() > 0);
+
+        // add a declaration
+        edit(p, "nterm stmt_if", 0, 0, "nterm extra ::= IDENTIFIER ;\n");
+        assertSameTree(p);
+        assertTrue(p.getRelexedTokens() < 20);
+        assertTrue(p.getReusedSubtrees() > 0);
+
+        // edit a string, then a comment
+        edit(p, "\"forever\"", 1, 7, "loop");
+        assertSameTree(p);
+        edit(p, "// union", 3, 5, "one of these");
+        assertSameTree(p);
+        edit(p, "nterm decl_var", 0, 0, "/* two\n lines */ ");
+        assertSameTree(p);
+
+        // break the syntax, then fix it again
+        edit(p, "::= ( \"loop\"", 0, 3, "");
+        assertTrue(p.hasErrors());
+        assertSameTree(p);
+        assertEquals(-1, p.getRelexedTokens());
+        edit(p, "stmt_forever\n", 13, 0, "::=");
+        assertFalse(p.hasErrors());
+        assertSameTree(p);
+
+        // remove everything up to the first declaration
+        edit(p, "grammar", 0, p.getText().indexOf("nterm"), "grammar G {\n");
+        assertSameTree(p);
+        assertTrue(p.getReusedSubtrees() > 0);
+    }
+
+    @Test
+    public void testEditAtEnd() throws Exception {
+        StIncrementalParser p = new StIncrementalParser();
+        p.parse("grammar G { nterm a ::= b ; }");
+        edit(p, "}", 0, 1, "nterm c ::= d ; }\n");
+        assertSameTree(p);
+        edit(p, "}", 1, 1, "");
+        assertSameTree(p);
+        edit(p, "}", 0, 1, "");
+        assertTrue(p.hasErrors());
+        assertSameTree(p);
+    }
+
+}
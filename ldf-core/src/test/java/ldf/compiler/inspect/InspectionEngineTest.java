@@ -0,0 +1,64 @@
+package ldf.compiler.inspect;
+
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Cristian Harja
+ */
+public class InspectionEngineTest {
+
+    private static final class Record<T> extends Inspection<List<String>, T> {
+        private final String name;
+
+        Record(String name, Class<T> clazz) {
+            super(clazz);
+            this.name = name;
+        }
+
+        @Override
+        protected boolean filter(List<String> ctx, @Nonnull T obj) {
+            return !obj.equals(0);
+        }
+
+        @Override
+        protected boolean inspect(List<String> ctx, @Nonnull T obj) {
+            ctx.add(name + ":" + obj);
+            return true;
+        }
+    }
+
+    @Test
+    public void testDispatchByClass() throws Exception {
+        InspectionEngine<List<String>, Object> engine;
+        engine = new InspectionEngine<List<String>, Object>(Arrays.asList(
+                new Record<Number>("number", Number.class),
+                new Record<Integer>("int", Integer.class),
+                new Record<CharSequence>("chars", CharSequence.class)
+        ));
+
+        List<String> log = new ArrayList<String>();
+        engine.runAllOnIterator(log, Arrays.<Object>asList(
+                1, "a", 2L, 0, 3, new StringBuilder("b"), 'c'
+        ).iterator());
+
+        assertEquals(Arrays.asList(
+                "number:1", "int:1",
+                "chars:a",
+                "number:2",
+                "number:3", "int:3",
+                "chars:b"
+        ), log);
+
+        log.clear();
+        engine.run(log, 4);
+        assertEquals(Arrays.asList("number:4", "int:4"), log);
+    }
+
+}
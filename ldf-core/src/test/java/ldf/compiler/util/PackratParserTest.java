@@ -0,0 +1,44 @@
+package ldf.compiler.util;
+
+import ldf.compiler.AbstractCompilerTest;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Cristian Harja
+ */
+public class PackratParserTest extends AbstractCompilerTest {
+
+    @Test
+    public void testMemoConsulted() throws Exception {
+        PackratParser.Factory factory = definePackratParser(
+                "Memo",
+                "grammar Memo {\n" +
+                        "nterm A ::= B \"b\" ;\n" +
+                        "nterm B ::= \"x\" | \"y\" ;\n" +
+                        "}"
+        );
+
+        int a = factory.getRuleId("A");
+        int b = factory.getRuleId("B");
+
+        // results which can only come from the memoization table
+        PackratParser parser = factory.newParser("xxb");
+        assertEquals(PackratParser.FAIL, parser.parseRule(a, 0));
+        parser = factory.newParser("xxb");
+        parser.memoSeed(b, 0, 2);
+        assertEquals(3, parser.parseRule(a, 0));
+
+        parser = factory.newParser("xb");
+        parser.memoSeed(a, 0, PackratParser.FAIL);
+        assertEquals(PackratParser.FAIL, parser.parseRule(a, 0));
+
+        // and the results are memoized in the first place
+        parser = factory.newParser("xb");
+        assertEquals(2, parser.parseRule(a, 0));
+        assertEquals(1, parser.memoGet(b, 0));
+        assertEquals(2, parser.memoGet(a, 0));
+    }
+
+}
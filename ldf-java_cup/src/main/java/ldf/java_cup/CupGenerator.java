@@ -0,0 +1,162 @@
+package ldf.java_cup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Runs the parser generator in-process, without exiting the JVM and
+ * without interfering with other runs, so that several grammars can be
+ * generated at the same time (e.g. by a build server, or by parallel
+ * {@link ldf.java_cup.anttask.CUPTask} instances).
+ * </p>
+ * <p>The generator keeps its symbol, production, state and emitter tables
+ * (and its options) in static variables, which {@link Main} clears at
+ * the start of each run. Each concurrent run therefore uses its own copy
+ * of the generator's classes (but not of the runtime classes in
+ * {@code ldf.java_cup.runtime}), which owns a separate set of tables.
+ * The copies are pooled: a run takes an idle one if there is any, so
+ * sequential runs reuse the same (already compiled) classes, and only
+ * as many copies are loaded as there were simultaneous runs.
+ * </p>
+ * <p>Arguments are the same as those of the command line tool; the input
+ * file should be given explicitly, since standard input is shared.
+ * Messages are still printed to {@code System.err}.
+ * </p>
+ *
+ * @author Cristian Harja
+ */
+public class CupGenerator {
+
+    private static final String MAIN_CLASS = "ldf.java_cup.Main";
+
+    /** Bytecode of the generator's classes, shared by all instances. */
+    private static final ConcurrentMap<String, byte[]> bytecode =
+            new ConcurrentHashMap<String, byte[]>();
+
+    /** Copies of the generator which aren't being used by any run. */
+    private static final Queue<Method> idle =
+            new ConcurrentLinkedQueue<Method>();
+
+    private final String[] argv;
+
+    public CupGenerator(String... argv) {
+        this.argv = argv.clone();
+    }
+
+    public CupGenerator(List<String> argv) {
+        this.argv = argv.toArray(new String[argv.size()]);
+    }
+
+    /**
+     * Runs the generator. Each call is a separate run, with its own tables.
+     *
+     * @return the exit status of the command line tool: 0 on success, 100
+     *         if there were errors in the grammar, another value if the
+     *         arguments were invalid or the output files couldn't be opened
+     */
+    public int generate() throws Exception {
+        Method run = idle.poll();
+        if (run == null) {
+            ClassLoader loader = new IsolatingClassLoader(
+                    CupGenerator.class.getClassLoader()
+            );
+            run = loader.loadClass(MAIN_CLASS).getMethod(
+                    "run", String[].class
+            );
+        }
+        try {
+            return (Integer) run.invoke(null, (Object) argv.clone());
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        } finally {
+            idle.add(run);
+        }
+    }
+
+    /**
+     * Tells which classes each generator gets its own copy of.
+     */
+    static boolean isIsolated(String className) {
+        return className.startsWith("ldf.java_cup.") &&
+                !className.startsWith("ldf.java_cup.runtime.") &&
+                !className.startsWith("ldf.java_cup.anttask.") &&
+                !className.equals(CupGenerator.class.getName()) &&
+                !className.startsWith(CupGenerator.class.getName() + "$");
+    }
+
+    /**
+     * Loads the generator's classes itself (from the same location as the
+     * parent loader), delegating everything else to the parent.
+     */
+    private static final class IsolatingClassLoader extends ClassLoader {
+
+        IsolatingClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve)
+                throws ClassNotFoundException {
+            if (!isIsolated(name)) {
+                return super.loadClass(name, resolve);
+            }
+            // a run may load classes from several threads (see -threads)
+            synchronized (this) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    byte[] b = getBytecode(name);
+                    c = defineClass(
+                            name, b, 0, b.length,
+                            CupGenerator.class.getProtectionDomain()
+                    );
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            }
+        }
+
+        private byte[] getBytecode(String name)
+                throws ClassNotFoundException {
+            byte[] b = bytecode.get(name);
+            if (b != null) {
+                return b;
+            }
+            String resource = name.replace('.', '/') + ".class";
+            InputStream in = getParent().getResourceAsStream(resource);
+            if (in == null) {
+                throw new ClassNotFoundException(name);
+            }
+            try {
+                try {
+                    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                    byte[] tmp = new byte[8192];
+                    int n;
+                    while ((n = in.read(tmp)) != -1) {
+                        buf.write(tmp, 0, n);
+                    }
+                    b = buf.toByteArray();
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+            byte[] prev = bytecode.putIfAbsent(name, b);
+            return prev != null ? prev : b;
+        }
+    }
+
+}
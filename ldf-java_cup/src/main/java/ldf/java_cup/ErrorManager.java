@@ -16,6 +16,8 @@ public class ErrorManager{
         errorManager = new ErrorManager();
     }
     public static ErrorManager getManager() { return errorManager; }
+    /** Starts over (with no errors or warnings), for a new run. */
+    public static void clear() { errorManager = new ErrorManager(); }
     private ErrorManager(){
     }
     //TODO: migrate to java.util.logging
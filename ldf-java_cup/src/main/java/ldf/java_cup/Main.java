@@ -35,6 +35,12 @@ import java.util.Enumeration;
  *   <dd> number of conflicts expected/allowed [default 0]
  *   <dt> -compact_red
  *   <dd> compact tables by defaulting to most frequent reduce
+ *   <dt> -fast_tables
+ *   <dd> emit comb-packed tables (bigger), for constant time lookups
+ *   <dt> -binary_tables
+ *   <dd> write the parse tables to a resource file next to the parser
+ *   <dt> -threads #
+ *   <dd> number of threads used to build the LALR states [default 1]
  *   <dt> -nowarn
  *   <dd> don't warn about useless productions, etc.
  *   <dt> -nosummary
@@ -100,6 +106,8 @@ public class Main {
   protected static boolean no_summary = false;
   /** User option -- number of conflicts to expect */
   protected static int expect_conflicts = 0;
+  /** User option -- number of threads used to build the LALR states */
+  protected static int num_threads = 1;
 
   /* frankf added this 6/18/96 */
   /** User option -- should generator generate code for left/right values? */
@@ -152,11 +160,74 @@ public class Main {
    */
   public static void main(String argv[]) throws java.lang.Exception
     {
-      boolean did_output = false;
+      int status = run(argv);
 
-      start_time = System.currentTimeMillis();
+      /* If there were errors during the run,
+       * exit with non-zero status (makefile-friendliness). --CSA */
+      if (status != 0)
+          System.exit(status);
+    }
 
-      /** clean all static members, that contain remaining stuff from earlier calls */
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Thrown instead of exiting the JVM, to end a run early.
+   * @see ldf.java_cup.Main#exit
+   */
+  protected static class exit_request extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    /** The exit status of the run. */
+    public final int status;
+
+    public exit_request(int status)
+      {
+        super("exit status " + status);
+        this.status = status;
+      }
+  }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** End the current run with the given status; main() passes it on to
+   *  System.exit(), while CupGenerator returns it.
+   * @param status the exit status.
+   */
+  protected static void exit(int status)
+    {
+      throw new exit_request(status);
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Run the system, without exiting the JVM.  All state is kept in static
+   *  variables, so only one run at a time is possible within a given class
+   *  loader (see CupGenerator for running several at once).
+   * @param argv an array of strings containing command line arguments.
+   * @return the exit status: 0 on success, 100 if there were errors.
+   */
+  public static int run(String argv[]) throws java.lang.Exception
+    {
+      try
+        {
+          return run_once(argv);
+        }
+      catch (exit_request e)
+        {
+          return e.status;
+        }
+      finally
+        {
+          close_files();
+          /* don't keep the tables around until the next run */
+          clear_tables();
+        }
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Clear the symbol, production, state and emitter tables. */
+  protected static void clear_tables()
+    {
       terminal.clear();
       production.clear();
       action_production.clear();
@@ -165,6 +236,36 @@ public class Main {
       parse_reduce_row.clear();
       parse_action_row.clear();
       lalr_state.clear();
+      start_state = null;
+      action_table = null;
+      reduce_table = null;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** The body of run(). */
+  protected static int run_once(String argv[]) throws java.lang.Exception
+    {
+      boolean did_output = false;
+
+      start_time = System.currentTimeMillis();
+      input_file = null;
+      parser_class_file = symbol_class_file = null;
+      tables_file = null;
+      dest_dir = null;
+
+      /* reset the options (CupGenerator reuses this class between runs) */
+      print_progress = opt_dump_states = opt_dump_tables = false;
+      opt_dump_grammar = opt_show_timing = opt_do_debug = false;
+      opt_compact_red = include_non_terms = no_summary = false;
+      expect_conflicts = 0;
+      num_threads = 1;
+      lr_values = true;
+      sym_interface = suppress_scanner = false;
+      ErrorManager.clear();
+
+      /** clean all static members, that contain remaining stuff from earlier calls */
+      clear_tables();
 
       /* process user options and arguments */
       parse_args(argv);
@@ -174,8 +275,9 @@ public class Main {
       emit.set_lr_values(lr_values);
       /* open output files */
       if (print_progress) System.err.println("Opening files...");
-      /* use a buffered version of standard input */
-      input_file = new BufferedInputStream(System.in);
+      /* use a buffered version of standard input, unless given a file */
+      if (input_file == null)
+        input_file = new BufferedInputStream(System.in);
 
       prelim_end = System.currentTimeMillis();
 
@@ -232,7 +334,8 @@ public class Main {
       /* If there were errors during the run,
        * exit with non-zero status (makefile-friendliness). --CSA */
       if (ErrorManager.getManager().getErrorCount() != 0)
-          System.exit(100);
+          return 100;
+      return 0;
     }
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
@@ -259,6 +362,9 @@ public class Main {
 "    -nonterms      put non terminals in symbol constant class\n" +
 "    -expect #      number of conflicts expected/allowed [default 0]\n" +
 "    -compact_red   compact tables by defaulting to most frequent reduce\n" +
+"    -fast_tables   emit comb-packed tables (bigger), for constant time lookups\n" +
+"    -binary_tables write the parse tables to a binary file next to the parser\n" +
+"    -threads #     number of threads used to build the LALR states [default 1]\n" +
 "    -nowarn        don't warn about useless productions, etc.\n" +
 "    -nosummary     don't print the usual summary of parse states, etc.\n" +
 "    -nopositions   don't propagate the left and right token position values\n" +
@@ -271,7 +377,7 @@ public class Main {
 "    -dump          produce a dump of all of the above\n"+
 "    -version       print the version information for CUP and exit\n"
       );
-      System.exit(1);
+      exit(1);
     }
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
@@ -346,7 +452,23 @@ public class Main {
                 usage("-expect must be followed by a decimal integer");
               }
             }
+          else if (argv[i].equals("-threads"))
+            {
+              /* must have an arg */
+              if (++i >= len || argv[i].startsWith("-") ||
+                                argv[i].endsWith(".cup"))
+                usage("-threads must have a number argument");
+
+              /* record the number */
+              try {
+                num_threads = Integer.parseInt(argv[i]);
+              } catch (NumberFormatException e) {
+                usage("-threads must be followed by a decimal integer");
+              }
+            }
           else if (argv[i].equals("-compact_red"))  opt_compact_red = true;
+          else if (argv[i].equals("-fast_tables"))  emit.fast_tables = true;
+          else if (argv[i].equals("-binary_tables")) emit.binary_tables = true;
           else if (argv[i].equals("-nosummary"))    no_summary = true;
           else if (argv[i].equals("-nowarn"))       emit.nowarn = true;
           else if (argv[i].equals("-dump_states"))  opt_dump_states = true;
@@ -366,7 +488,7 @@ public class Main {
           /* CSA 23-Jul-1999 */
           else if (argv[i].equals("-version")) {
               System.out.println(version.title_str);
-              System.exit(1);
+              exit(1);
           }
       /* TUM changes; suggested by Henning Niss 20050628*/
            else if (argv[i].equals("-typearg")){
@@ -382,7 +504,8 @@ public class Main {
           else if (!argv[i].startsWith("-") && i==len-1) {
               /* use input from file. */
               try {
-                  System.setIn(new FileInputStream(argv[i]));
+                  input_file = new BufferedInputStream(
+                                new FileInputStream(argv[i]));
               } catch (java.io.FileNotFoundException e) {
                   usage("Unable to open \"" + argv[i] +"\" for input");
               }
@@ -400,7 +523,8 @@ public class Main {
   /* Files */
   /*-------*/
 
-  /** Input file.  This is a buffered version of System.in. */
+  /** Input file.  This is a buffered version of the file named on the
+   *  command line, or of System.in. */
   protected static BufferedInputStream input_file;
 
   /** Output file for the parser class. */
@@ -409,6 +533,9 @@ public class Main {
   /** Output file for the symbol constant class. */
   protected static PrintWriter symbol_class_file;
 
+  /** Output file for the parse tables (with <code>-binary_tables</code>). */
+  protected static OutputStream tables_file;
+
   /** Output directory. */
   protected static File dest_dir = null;
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
@@ -429,7 +556,7 @@ public class Main {
                  new BufferedOutputStream(new FileOutputStream(fil), 4096));
       } catch(Exception e) {
         System.err.println("Can't open \"" + out_name + "\" for output");
-        System.exit(3);
+        exit(3);
       }
 
       /* symbol constants class */
@@ -440,8 +567,21 @@ public class Main {
                  new BufferedOutputStream(new FileOutputStream(fil), 4096));
       } catch(Exception e) {
         System.err.println("Can't open \"" + out_name + "\" for output");
-        System.exit(4);
+        exit(4);
       }
+
+      /* parse tables */
+      if (emit.binary_tables)
+        {
+          out_name = emit.tables_file_name();
+          fil = new File(dest_dir,out_name);
+          try {
+            tables_file = new BufferedOutputStream(new FileOutputStream(fil));
+          } catch(Exception e) {
+            System.err.println("Can't open \"" + out_name + "\" for output");
+            exit(5);
+          }
+        }
     }
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
@@ -452,6 +592,10 @@ public class Main {
       if (input_file != null) input_file.close();
       if (parser_class_file != null) parser_class_file.close();
       if (symbol_class_file != null) symbol_class_file.close();
+      if (tables_file != null) tables_file.close();
+      input_file = null;
+      parser_class_file = symbol_class_file = null;
+      tables_file = null;
     }
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
@@ -468,7 +612,7 @@ public class Main {
 
       /* create a parser and parse with it */
       TokenFactory csf = new TokenFactoryImpl();
-      parser_obj = new parser(new Lexer(csf),csf);
+      parser_obj = new parser(new Lexer(input_file, csf),csf);
       try {
         if (opt_do_debug)
           parser_obj.debug_parse();
@@ -579,7 +723,7 @@ public class Main {
       /* build the LR viable prefix recognition machine */
       if (opt_do_debug || print_progress)
         System.err.println("  Building state machine...");
-      start_state = lalr_state.build_machine(emit.start_production);
+      start_state = lalr_state.build_machine(emit.start_production, num_threads);
 
       machine_end = System.currentTimeMillis();
 
@@ -617,12 +761,14 @@ public class Main {
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
   /** Call the emit routines necessary to write out the generated parser. */
-  protected static void emit_parser() throws internal_error
+  protected static void emit_parser() throws internal_error, IOException
     {
       emit.symbols(symbol_class_file, include_non_terms, sym_interface);
       emit.parser(parser_class_file, action_table, reduce_table,
                   start_state.index(), emit.start_production, opt_compact_red,
                   suppress_scanner);
+      if (emit.binary_tables)
+        emit.tables(tables_file);
     }
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
@@ -688,7 +834,9 @@ public class Main {
       /* code location */
       if (output_produced)
         System.err.println("  Code written to \"" + emit.parser_class_name +
-                ".java\", and \"" + emit.symbol_const_class_name + ".java\".");
+                ".java\", and \"" + emit.symbol_const_class_name + ".java\"" +
+                (emit.binary_tables ?
+                  " (tables in \"" + emit.tables_file_name() + "\")." : "."));
       else
         System.err.println("  No code produced.");
 
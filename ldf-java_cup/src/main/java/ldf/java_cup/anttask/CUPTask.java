@@ -21,6 +21,7 @@
 
 package ldf.java_cup.anttask;
 
+import ldf.java_cup.CupGenerator;
 import ldf.java_cup.version;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
@@ -44,6 +45,9 @@ public class CUPTask extends Task
     private boolean nonterms=false;
     private String expect=null;
     private boolean compact_red=false;
+    private boolean fast_tables=false;
+    private boolean binary_tables=false;
+    private String threads=null;
     private boolean nowarn=false;
     private boolean nosummary=false;
     private boolean progress=false;
@@ -78,6 +82,9 @@ public class CUPTask extends Task
         if (_interface)    {  sc.add("-interface"); }
         if (nonterms)      {  sc.add("-nonterms"); }
         if (compact_red)   {  sc.add("-compact_red"); }
+        if (fast_tables)   {  sc.add("-fast_tables"); }
+        if (binary_tables) {  sc.add("-binary_tables"); }
+        if (threads!=null) {  sc.add("-threads"); sc.add(threads); }
         if (nowarn)        {  sc.add("-nowarn"); }
         if (nosummary)     {  sc.add("-nosummary");}
         if (progress)      {  sc.add("-progress"); }
@@ -152,11 +159,15 @@ public class CUPTask extends Task
         for (int i=0;i<args.length;i++) args[i]= sc.get(i);
 
 
+        // run in-process, isolated from other CUP tasks (which may be
+        // running at the same time, e.g. within <parallel>)
+        int status;
         try {
-            ldf.java_cup.Main.main(args);
+            status = new CupGenerator(args).generate();
         }catch(Exception e){
-            log("CUP error occured int CUP task: "+e);
+            throw new BuildException("CUP failed on "+srcfile, e);
         }
+        if (status != 0) throw new BuildException("CUP failed on "+srcfile+" (exit status "+status+")");
 
         // this is a dirty hack to determine the apropriate class path
 //        URL url = CUPTask.class.getResource("/java_cup/Main.class");
@@ -398,6 +409,60 @@ public class CUPTask extends Task
         this.compact_red = argCompact_red;
     }
 
+    /**
+     * Gets the value of fast_tables
+     *
+     * @return the value of fast_tables
+     */
+    public boolean isFast_tables() {
+        return this.fast_tables;
+    }
+
+    /**
+     * Sets the value of fast_tables
+     *
+     * @param argFast_tables Value to assign to this.fast_tables
+     */
+    public void setFast_tables(boolean argFast_tables){
+        this.fast_tables = argFast_tables;
+    }
+
+    /**
+     * Gets the value of binary_tables
+     *
+     * @return the value of binary_tables
+     */
+    public boolean isBinary_tables() {
+        return this.binary_tables;
+    }
+
+    /**
+     * Sets the value of binary_tables
+     *
+     * @param argBinary_tables Value to assign to this.binary_tables
+     */
+    public void setBinary_tables(boolean argBinary_tables){
+        this.binary_tables = argBinary_tables;
+    }
+
+    /**
+     * Gets the value of threads
+     *
+     * @return the value of threads
+     */
+    public String getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Sets the value of threads
+     *
+     * @param argThreads Value to assign to this.threads
+     */
+    public void setThreads(String argThreads){
+        this.threads = argThreads;
+    }
+
     /**
      * Gets the value of nowarn
      *
@@ -1,6 +1,13 @@
 package ldf.java_cup;
 
+import ldf.java_cup.runtime.comb_table;
+import ldf.java_cup.runtime.packed_tables;
+
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Stack;
 import java.util.Enumeration;
 import java.util.Date;
@@ -65,6 +72,8 @@ import java.util.Date;
      emit_production_table - emit declaration and init for the production table
      do_action_table       - emit declaration and init for the action table
      do_reduce_table       - emit declaration and init for the reduce-goto table
+     emit_tables           - emit the holder of the tables, and their accessors
+     do_table              - emit a table (or a reference to the binary file)
 
    Finally, this class uses a number of public instance variables to communicate
    optional parameters and flags used to control how code is generated,
@@ -174,6 +183,23 @@ public class emit {
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
+  /** Do we emit the action and reduce-goto tables in comb (row
+   *  displacement) format, for constant time lookups, instead of the
+   *  (smaller) row tables? */
+  public static boolean fast_tables = false;
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Do we write the parse tables to a binary resource file next to the
+   *  parser, instead of embedding them as string literals? */
+  public static boolean binary_tables = false;
+
+  /** The tables referring to the binary resource, in order. */
+  protected static List<short[][]> binary_table_list =
+    new ArrayList<short[][]>();
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
   /** Count of the number on non-reduced productions found. */
   public static int not_reduced = 0;
 
@@ -220,6 +246,11 @@ public class emit {
   public static void clear () {
       _lr_values = true;
       action_code = null;
+      fast_tables = false;
+      binary_tables = false;
+      binary_table_list = new ArrayList<short[][]>();
+      class_type_argument = null;
+      nowarn = false;
       import_list = new Stack<String>();
       init_code = null;
       not_reduced = 0;
@@ -245,6 +276,17 @@ public class emit {
     return prefix + parser_class_name + "$" + str;
   }
 
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Build the expression which fetches a Symbol from the parse stack,
+   *  within generated action code.
+   * @param offset how far below the top of the stack the Symbol is.
+   */
+  protected static String stack_element(int offset) {
+    return pre("stack") + "[" + pre("top") +
+           (offset == 0 ? "" : "-" + offset) + "]";
+  }
+
    /**
     * TUM changes; proposed by Henning Niss 20050628
     * Build a string with the specified type arguments,
@@ -396,7 +438,7 @@ public class emit {
                      pre("do_action_part")+ String.format("%08d", instancecounter) +"(");
       out.println("    int                        " + pre("act_num,"));
       out.println("    ldf.java_cup.runtime.lr_parser " + pre("parser,"));
-      out.println("    java.util.Stack<Symbol>    " + pre("stack,"));
+      out.println("    Symbol[]                   " + pre("stack,"));
       out.println("    int                        " + pre("top)"));
       out.println("    throws java.lang.Exception");
       out.println("    {");
@@ -434,9 +476,7 @@ public class emit {
                       result += "(" + type +") ";
                   }
                    result +=
-                      emit.pre("stack") +
-                      // TUM 20050917
-                      ((lastResult==1)?".peek()":(".elementAt(" + emit.pre("top") + "-" + (lastResult-1) + ")"))+
+                      emit.stack_element(lastResult-1) +
                       ".value";
               }
           }
@@ -480,10 +520,7 @@ public class emit {
             if (!type.equals("Object")) {
                 out.print("(" + type + ") ");
             }
-            out.println(emit.pre("stack") +
-                        // TUM 20050917
-                        ((index==0)?".peek()":(".elementAt(" + emit.pre("top") + "-" + index + ")"))+
-                        ".value;");
+            out.println(emit.stack_element(index) + ".value;");
             break;
           }
 
@@ -509,12 +546,7 @@ public class emit {
             String leftstring, rightstring;
             // TUM 20050917
             //int roffset = 0;
-            rightstring = emit.pre("stack") +
-                // TUM 20050917
-                //".elementAt(" + emit.pre("top") + "-" + roffset + "))"+
-                ".peek()"
-                // TUM 20060327 removed .right
-                ;
+            rightstring = emit.stack_element(0);
             if (prod.rhs_length() == 0) {
               leftstring = rightstring;
 
@@ -536,15 +568,7 @@ public class emit {
             else {
               loffset = prod.rhs_length() - 1;
 
-              // TUM 20050917
-              if (loffset == 0) {
-                leftstring = emit.pre("stack") + ".peek()";
-              } else {
-                leftstring = emit.pre("stack") +
-                    ".elementAt(" +
-                    emit.pre("top") +
-                    "-" + loffset + ")";
-              }
+              leftstring = emit.stack_element(loffset);
 
               // TUM 20060327 removed .left
               out.println(
@@ -611,7 +635,7 @@ public class emit {
                      pre("do_action") + "(");
       out.println("    int                        " + pre("act_num,"));
       out.println("    ldf.java_cup.runtime.lr_parser " + pre("parser,"));
-      out.println("    java.util.Stack<Symbol>    " + pre("stack," +
+      out.println("    Symbol[]                   " + pre("stack," +
               ""));
       out.println("    int                        " + pre("top)"));
       out.println("    throws java.lang.Exception");
@@ -695,19 +719,25 @@ public class emit {
           prod_table[i][0] = (short) prod.lhs().the_symbol().index();
           prod_table[i][1] = (short) prod.rhs_length();
         }
-      /* do the top of the table */
-      out.println();
-      out.println("  /** Production table. */");
-      out.println("  protected static final short _production_table[][] = ");
-      out.print  ("    unpackFromStrings(");
-      do_table_as_string(out, prod_table);
-      out.println(");");
+      /* the tables are loaded from a resource, before their fields */
+      if (binary_tables)
+        {
+          out.println();
+          out.println("    /** Parse tables, loaded from <code>" +
+                      tables_file_name() + "</code>. */");
+          out.println("    static final short[][][] _tables =");
+          out.println("      ldf.java_cup.runtime.packed_tables.load(" +
+                      parser_class_name + ".class, \"" +
+                      tables_file_name() + "\");");
+        }
 
-      /* do the public accessor method */
+      /* do the top of the table */
       out.println();
-      out.println("  /** Access to production table. */");
-      out.println("  public short[][] production_table() " +
-                                                 "{return _production_table;}");
+      out.println("    /** Production table. */");
+      out.println("    static final short[][] _production_table =");
+      out.print  ("      ");
+      do_table(out, prod_table);
+      out.println(";");
 
       production_table_time = System.currentTimeMillis() - start_time;
     }
@@ -803,17 +833,18 @@ public class emit {
         }
 
       /* finish off the init of the table */
-      out.println();
-      out.println("  /** Parse-action table. */");
-      out.println("  protected static final short[][] _action_table = ");
-      out.print  ("    unpackFromStrings(");
-      do_table_as_string(out, action_table);
-      out.println(");");
-
-      /* do the public accessor method */
-      out.println();
-      out.println("  /** Access to parse-action table. */");
-      out.println("  public short[][] action_table() {return _action_table;}");
+      if (fast_tables)
+        do_comb_table(out, "action",
+                      comb_table.pack(action_table, parse_action_row.size()));
+      else
+        {
+          out.println();
+          out.println("    /** Parse-action table. */");
+          out.println("    static final short[][] _action_table =");
+          out.print  ("      ");
+          do_table(out, action_table);
+          out.println(";");
+        }
 
       action_table_time = System.currentTimeMillis() - start_time;
     }
@@ -864,21 +895,161 @@ public class emit {
         }
 
       /* emit the table. */
+      if (fast_tables)
+        do_comb_table(out, "reduce",
+                      comb_table.pack(reduce_goto_table,
+                                      parse_reduce_row.size()));
+      else
+        {
+          out.println();
+          out.println("    /** <code>reduce_goto</code> table. */");
+          out.println("    static final short[][] _reduce_table =");
+          out.print  ("      ");
+          do_table(out, reduce_goto_table);
+          out.println(";");
+        }
+
+      goto_table_time = System.currentTimeMillis() - start_time;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Emit a table in comb format.
+   * @param out   stream to produce output on.
+   * @param name  "action" or "reduce".
+   * @param table the table.
+   */
+  protected static void do_comb_table(
+    PrintWriter out,
+    String      name,
+    comb_table  table)
+    {
       out.println();
-      out.println("  /** <code>reduce_goto</code> table. */");
-      out.println("  protected static final short[][] _reduce_table = ");
-      out.print  ("    unpackFromStrings(");
-      do_table_as_string(out, reduce_goto_table);
+      out.println("    /** Comb-packed <code>" + name + "</code> table. */");
+      out.println("    static final ldf.java_cup.runtime.comb_table _" +
+                  name + "_comb =");
+      out.print  ("      ldf.java_cup.runtime.comb_table.from_short_arrays(");
+      do_table(out, table.to_short_arrays());
       out.println(");");
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Emit the class holding the parse tables, and the methods giving
+   *  access to them.  The tables are decoded when the holder class is
+   *  initialized, i.e. the first time a parser asks for them, and then
+   *  shared by all the instances of the parser.  With
+   *  <code>-fast_tables</code>, only the comb tables are kept; the row
+   *  tables, which the parser doesn't use then, are rebuilt from them
+   *  whenever they're asked for.
+   * @param out             stream to produce output on.
+   * @param action_table    internal representation of the action table.
+   * @param reduce_table    internal representation of the reduce-goto table.
+   * @param compact_reduces do we use most frequent reduce as default?
+   */
+  protected static void emit_tables(
+    PrintWriter        out,
+    parse_action_table action_table,
+    parse_reduce_table reduce_table,
+    boolean            compact_reduces)
+    throws internal_error
+    {
+      String holder = pre("tables");
+      String rows = fast_tables ?
+        "null, null" : "_action_table, _reduce_table";
+      String combs = fast_tables ? "_action_comb, _reduce_comb" : "null, null";
 
-      /* do the public accessor method */
       out.println();
-      out.println("  /** Access to <code>reduce_goto</code> table. */");
-      out.println("  public short[][] reduce_table() {return _reduce_table;}");
+      out.println("  /** Holder of the parse tables (decoded on first use). */");
+      out.println("  private static final class " + holder + " {");
+      emit_production_table(out);
+      do_action_table(out, action_table, compact_reduces);
+      do_reduce_table(out, reduce_table);
       out.println();
+      out.println("    /** All of the above. */");
+      out.println("    static final ldf.java_cup.runtime.parse_tables tables =");
+      out.println("      new ldf.java_cup.runtime.parse_tables(");
+      out.println("        _production_table, " + rows + ",");
+      out.println("        " + combs + ");");
+      out.println("  }");
 
-      goto_table_time = System.currentTimeMillis() - start_time;
+      /* do the public accessor methods */
+      out.println();
+      out.println("  /** Access to the parse tables (shared by all instances). */");
+      out.println("  public ldf.java_cup.runtime.parse_tables tables() " +
+                  "{return " + holder + ".tables;}");
+      out.println();
+      out.println("  /** Access to production table. */");
+      out.println("  public short[][] production_table() " +
+                  "{return " + holder + "._production_table;}");
+      if (!fast_tables)
+        {
+          out.println();
+          out.println("  /** Access to parse-action table. */");
+          out.println("  public short[][] action_table() " +
+                      "{return " + holder + "._action_table;}");
+          out.println();
+          out.println("  /** Access to <code>reduce_goto</code> table. */");
+          out.println("  public short[][] reduce_table() " +
+                      "{return " + holder + "._reduce_table;}");
+        }
+      else
+        {
+          out.println();
+          out.println("  /** Access to parse-action table (rebuilt on each call). */");
+          out.println("  public short[][] action_table() " +
+                      "{return " + holder + "._action_comb.to_rows(" +
+                      parse_action_row.size() + ");}");
+          out.println();
+          out.println("  /** Access to <code>reduce_goto</code> table (rebuilt on each call). */");
+          out.println("  public short[][] reduce_table() " +
+                      "{return " + holder + "._reduce_comb.to_rows(" +
+                      parse_reduce_row.size() + ");}");
+          out.println();
+          out.println("  /** Access to comb-packed <code>action</code> table. */");
+          out.println("  public ldf.java_cup.runtime.comb_table action_comb() " +
+                      "{return " + holder + "._action_comb;}");
+          out.println();
+          out.println("  /** Access to comb-packed <code>reduce</code> table. */");
+          out.println("  public ldf.java_cup.runtime.comb_table reduce_comb() " +
+                      "{return " + holder + "._reduce_comb;}");
+        }
+      out.println();
+    }
+
+  /** Emit an expression evaluating to the given table: either a string
+   *  literal to be unpacked, or an element of the tables loaded from the
+   *  binary resource (in which case the table is written there).
+   * @param out stream to produce output on.
+   * @param sa  the table.
+   */
+  protected static void do_table(PrintWriter out, short[][] sa) {
+    if (binary_tables) {
+      out.print("_tables[" + binary_table_list.size() + "]");
+      binary_table_list.add(sa);
+    } else {
+      out.print("unpackFromStrings(");
+      do_table_as_string(out, sa);
+      out.print(")");
     }
+  }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Name of the binary resource holding the parse tables. */
+  public static String tables_file_name() {
+    return parser_class_name + ".tables";
+  }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Write the tables emitted so far (as references to the binary
+   *  resource) to the resource file.
+   * @param out stream to write to.
+   */
+  public static void tables(OutputStream out) throws IOException {
+    packed_tables.write(out, binary_table_list);
+  }
 
   // print a string array encoding the given short[][] array.
   protected static void do_table_as_string(PrintWriter out, short[][] sa) {
@@ -994,9 +1165,7 @@ public class emit {
       }
 
       /* emit the various tables */
-      emit_production_table(out);
-      do_action_table(out, action_table, compact_reduces);
-      do_reduce_table(out, reduce_table);
+      emit_tables(out, action_table, reduce_table, compact_reduces);
 
       /* instance of the action encapsulation class */
       out.println("  /** Instance of action encapsulation class. */");
@@ -1017,7 +1186,7 @@ public class emit {
       out.println("  public ldf.java_cup.runtime.Symbol do_action(");
       out.println("    int                        act_num,");
       out.println("    ldf.java_cup.runtime.lr_parser parser,");
-      out.println("    java.util.Stack<Symbol>    stack,");
+      out.println("    Symbol[]                   stack,");
       out.println("    int                        top)");
       out.println("    throws java.lang.Exception");
       out.println("  {");
@@ -1027,6 +1196,20 @@ public class emit {
       out.println("  }");
       out.println("");
 
+      out.println("  /** Invoke a user supplied parse action (for callers " +
+                  "which use a Stack). */");
+      out.println("  public ldf.java_cup.runtime.Symbol do_action(");
+      out.println("    int                        act_num,");
+      out.println("    ldf.java_cup.runtime.lr_parser parser,");
+      out.println("    java.util.Stack<Symbol>    stack,");
+      out.println("    int                        top)");
+      out.println("    throws java.lang.Exception");
+      out.println("  {");
+      out.println("    return do_action(act_num, parser, " +
+                  "stack.toArray(new Symbol[stack.size()]), top);");
+      out.println("  }");
+      out.println("");
+
 
       /* method to tell the parser about the start state */
       out.println("  /** Indicates start state. */");
@@ -1048,6 +1231,19 @@ public class emit {
                                           ";}");
       out.println();
 
+      /* names of the non terminals (for syntax trees built without actions) */
+      out.println("  /** Names of the non terminals, by index. */");
+      out.println("  private static final String[] " + pre("nt_names") +
+                  " = {");
+      for (int i = 0; i < non_terminal.number(); i++)
+        out.println("    \"" + non_terminal.find(i).name() + "\",");
+      out.println("  };");
+      out.println();
+      out.println("  /** Name of a non terminal. */");
+      out.println("  public String non_terminal_name(int sym) {return " +
+                  pre("nt_names") + "[sym];}");
+      out.println();
+
       /* user supplied code for user_init() */
       if (init_code != null)
         {
@@ -15,6 +15,6 @@ public class internal_error extends Exception
       {
           ErrorManager.getManager().emit_fatal("JavaCUP Internal Error Detected: "+getMessage());
           printStackTrace();
-          System.exit(-1);
+          Main.exit(-1);
       }
   }
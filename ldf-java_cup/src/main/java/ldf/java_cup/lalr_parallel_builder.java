@@ -0,0 +1,541 @@
+package ldf.java_cup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** This class builds the LALR viable prefix recognition machine using
+ *  several threads (see lalr_state.build_machine(production, int)).  The
+ *  machine it builds is identical to the one built serially: same states,
+ *  numbered in the same order, with the same transitions and lookaheads.<p>
+ *
+ *  This matters because the serial algorithm is sensitive to the order in
+ *  which it does things: state indexes follow the order in which states are
+ *  discovered, which in turn follows the (hash table) order of the items of
+ *  each state, and the propagation links of an item are fixed up differently
+ *  depending on whether the state it leads to already existed or not.  So the
+ *  states are still discovered in the same order, by the calling thread,
+ *  while the expensive parts of the work are done by a pool of threads: <ul>
+ *  <li> Computing the closure of a state, as well as the kernels of all the
+ *       states it has transitions to, is done as soon as the state is
+ *       discovered, well ahead of the moment when the main loop gets to it.
+ *  <li> Lookaheads are propagated by strongly connected components of the
+ *       propagation graph.  Within a component, all items end up with the
+ *       same lookahead, and components which don't depend on each other are
+ *       handled in parallel.
+ *  </ul>
+ *
+ * @see     ldf.java_cup.lalr_state
+ * @author  Cristian Harja
+ */
+class lalr_parallel_builder {
+
+  /*-----------------------------------------------------------*/
+  /*--- Constructor(s) ----------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** Constructor.
+   * @param num_threads the number of threads to use.
+   */
+  lalr_parallel_builder(int num_threads)
+    {
+      this.num_threads = num_threads;
+    }
+
+  /*-----------------------------------------------------------*/
+  /*--- (Access to) Instance Variables ------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** The number of threads to use. */
+  protected final int num_threads;
+
+  /** The threads doing the work (while the machine is being built). */
+  protected ExecutorService pool;
+
+  /** All the states, in the order of their indexes. */
+  protected List<lalr_state> states = new ArrayList<lalr_state>();
+
+  /** Pending (or finished) expansions of each state. */
+  protected Map<lalr_state, Future<List<expansion>>> expansions =
+          new IdentityHashMap<lalr_state, Future<List<expansion>>>();
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** A transition out of a state, computed ahead of time: the kernel of the
+   *  state it leads to, along with the items that have propagate links to
+   *  that kernel.
+   */
+  protected static class expansion {
+    symbol        sym;
+    lalr_item_set new_items;
+    lalr_item_set kernel;
+    lalr_item_set linked_items;
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- General Methods ---------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** Build the machine; this follows lalr_state.build_machine(production)
+   *  step by step, except for the work which is done by expand().
+   * @param start_prod the start production of the grammar
+   */
+  public lalr_state build_machine(production start_prod)
+    throws internal_error
+    {
+      lalr_state    start_state;
+      lalr_item_set start_items;
+      lalr_item_set kernel;
+      Stack<lalr_state> work_stack = new Stack<lalr_state>();
+      lalr_state    st, new_st;
+      lalr_item     itm, new_itm, existing, fix_itm;
+      Enumeration<lalr_item> fix;
+
+      /* sanity check */
+      if (start_prod == null)
+        throw new internal_error(
+           "Attempt to build viable prefix recognizer using a null production");
+
+      pool = Executors.newFixedThreadPool(num_threads);
+      try
+        {
+          /* build item with dot at front of start production and EOF
+             lookahead */
+          start_items = new lalr_item_set();
+
+          itm = new lalr_item(start_prod);
+          itm.lookahead().add(terminal.EOF);
+
+          start_items.add(itm);
+
+          /* create copy the item set to form the kernel */
+          kernel = new lalr_item_set(start_items);
+
+          /* build a state out of that item set and put it in our work set */
+          start_state = new_state(start_items);
+          work_stack.push(start_state);
+
+          /* enter the state using the kernel as the key */
+          lalr_state._all_kernels.put(kernel, start_state);
+
+          /* continue looking at new states until we have no more work */
+          while (!work_stack.empty())
+            {
+              /* remove a state from the work set */
+              st = work_stack.pop();
+
+              /* consider each transition out of it */
+              for (expansion ex : await(st))
+                {
+                  /* have we seen this one already? */
+                  new_st = lalr_state._all_kernels.get(ex.kernel);
+
+                  /* if we haven't, build a new state out of the item set */
+                  if (new_st == null)
+                    {
+                      new_st = new_state(ex.new_items);
+                      work_stack.push(new_st);
+                      lalr_state._all_kernels.put(ex.kernel, new_st);
+                    }
+                  /* otherwise relink propagation to items in existing state */
+                  else
+                    {
+                      /* the closure of that state has to be done */
+                      await(new_st);
+
+                      for (fix = ex.linked_items.all(); fix.hasMoreElements(); )
+                        {
+                          fix_itm = fix.nextElement();
+
+                          for (int l = 0; l < fix_itm.propagate_items().size(); l++)
+                            {
+                              new_itm = fix_itm.propagate_items().elementAt(l);
+                              existing = new_st.items().find(new_itm);
+                              if (existing != null)
+                                fix_itm.propagate_items().setElementAt(existing, l);
+                            }
+                        }
+                    }
+
+                  /* add a transition from current state to that state */
+                  st.add_transition(ex.sym, new_st);
+                }
+            }
+
+          /* add the states to the global collection, in the same order as
+             the serial algorithm does */
+          for (lalr_state s : states)
+            s.register();
+
+          /* propagate complete lookahead sets throughout the states */
+          propagate_all_lookaheads();
+        }
+      finally
+        {
+          pool.shutdownNow();
+        }
+
+      return start_state;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Create a new state from its kernel (it gets the next index, but isn't
+   *  registered yet), and start expanding it.
+   * @param kernel_items the kernel of the state; closed by expand().
+   */
+  protected lalr_state new_state(lalr_item_set kernel_items)
+    throws internal_error
+    {
+      final lalr_state st = new lalr_state(kernel_items, false);
+      states.add(st);
+      expansions.put(st, pool.submit(new Callable<List<expansion>>() {
+        public List<expansion> call() throws internal_error {
+          return expand(st);
+        }
+      }));
+      return st;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Wait for a state to be expanded.
+   * @param st the state.
+   */
+  protected List<expansion> await(lalr_state st) throws internal_error
+    {
+      try
+        {
+          return expansions.get(st).get();
+        }
+      catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          throw new internal_error("Interrupted while building states");
+        }
+      catch (ExecutionException e)
+        {
+          Throwable cause = e.getCause();
+          if (cause instanceof internal_error) throw (internal_error) cause;
+          if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+          if (cause instanceof Error) throw (Error) cause;
+          throw new internal_error(String.valueOf(cause));
+        }
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Compute the closure of a state, then the kernels of the states it
+   *  has transitions to (exactly like the serial algorithm, only without
+   *  looking them up).  Only touches the items of the given state.
+   * @param st the state.
+   */
+  protected static List<expansion> expand(lalr_state st) throws internal_error
+    {
+      List<expansion> result = new ArrayList<expansion>();
+      symbol_set      outgoing;
+      lalr_item       itm;
+      symbol          sym;
+      expansion       ex;
+
+      /* compute the closure of the kernel for the full item set */
+      st.items().compute_closure();
+
+      /* gather up all the symbols that appear before dots */
+      outgoing = new symbol_set();
+      for (Enumeration<lalr_item> i = st.items().all(); i.hasMoreElements(); )
+        {
+          sym = i.nextElement().symbol_after_dot();
+          if (sym != null) outgoing.add(sym);
+        }
+
+      /* now create a kernel for each individual symbol */
+      for (Enumeration<symbol> s = outgoing.all(); s.hasMoreElements(); )
+        {
+          ex = new expansion();
+          ex.sym = s.nextElement();
+          ex.linked_items = new lalr_item_set();
+          ex.new_items = new lalr_item_set();
+          for (Enumeration<lalr_item> i = st.items().all(); i.hasMoreElements();)
+            {
+              itm = i.nextElement();
+              if (ex.sym.equals(itm.symbol_after_dot()))
+                {
+                  ex.new_items.add(itm.shift());
+                  ex.linked_items.add(itm);
+                }
+            }
+          ex.kernel = new lalr_item_set(ex.new_items);
+
+          /* compute (and cache) the hash code while we're here */
+          ex.kernel.hashCode();
+          result.add(ex);
+        }
+
+      return result;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Propagate lookahead sets through the machine.  The result is the same
+   *  as that of lalr_state.propagate_all_lookaheads() (each item ends up
+   *  with the union of its own lookahead and of those of all the items which
+   *  can reach it through propagate links).
+   */
+  protected void propagate_all_lookaheads() throws internal_error
+    {
+      /* number all the items */
+      final List<lalr_item> items = new ArrayList<lalr_item>();
+      Map<lalr_item, Integer> ids = new IdentityHashMap<lalr_item, Integer>();
+      for (lalr_state st : states)
+        for (Enumeration<lalr_item> i = st.items().all(); i.hasMoreElements(); )
+          {
+            lalr_item itm = i.nextElement();
+            ids.put(itm, items.size());
+            items.add(itm);
+          }
+
+      /* build the propagation graph (any item reachable through links takes
+         part, even if it didn't end up in a state) */
+      List<int[]> succ_list = new ArrayList<int[]>();
+      for (int v = 0; v < items.size(); v++)
+        {
+          Stack<lalr_item> links = items.get(v).propagate_items();
+          int[] succ = new int[links.size()];
+          for (int l = 0; l < succ.length; l++)
+            {
+              lalr_item target = links.elementAt(l);
+              Integer id = ids.get(target);
+              if (id == null)
+                {
+                  id = items.size();
+                  ids.put(target, id);
+                  items.add(target);
+                }
+              succ[l] = id;
+            }
+          succ_list.add(succ);
+        }
+      int n = items.size();
+      final int[][] succ = succ_list.toArray(new int[n][]);
+      final int[][] pred = reverse(succ);
+
+      /* find the strongly connected components */
+      final int[] comp = new int[n];
+      int num_comps = find_components(succ, comp);
+      final int[][] members = group(comp, num_comps);
+
+      /* an edge between two components always goes from a higher numbered
+         one to a lower numbered one; compute the length of the longest path
+         leading to each component */
+      int[] level = new int[num_comps];
+      int max_level = 0;
+      for (int c = num_comps - 1; c >= 0; c--)
+        {
+          max_level = Math.max(max_level, level[c]);
+          for (int v : members[c])
+            for (int w : succ[v])
+              if (comp[w] != c)
+                level[comp[w]] = Math.max(level[comp[w]], level[c] + 1);
+        }
+      int[][] by_level = group(level, max_level + 1);
+
+      /* components on the same level don't depend on each other */
+      final terminal_set[] comp_la = new terminal_set[num_comps];
+      for (final int[] comps : by_level)
+        {
+          List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+          int chunk = Math.max(64, (comps.length + num_threads - 1) / num_threads);
+          for (int from = 0; from < comps.length; from += chunk)
+            {
+              final int lo = from, hi = Math.min(comps.length, from + chunk);
+              tasks.add(new Callable<Void>() {
+                public Void call() throws internal_error {
+                  for (int k = lo; k < hi; k++)
+                    propagate_component(comps[k], items, comp, members[comps[k]],
+                                        pred, comp_la);
+                  return null;
+                }
+              });
+            }
+          if (tasks.size() == 1)
+            {
+              try { tasks.get(0).call(); }
+              catch (internal_error e) { throw e; }
+              catch (Exception e) { throw new internal_error(String.valueOf(e)); }
+            }
+          else
+            {
+              try
+                {
+                  for (Future<Void> f : pool.invokeAll(tasks))
+                    f.get();
+                }
+              catch (InterruptedException e)
+                {
+                  Thread.currentThread().interrupt();
+                  throw new internal_error("Interrupted while propagating lookaheads");
+                }
+              catch (ExecutionException e)
+                {
+                  Throwable cause = e.getCause();
+                  if (cause instanceof internal_error) throw (internal_error) cause;
+                  if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                  if (cause instanceof Error) throw (Error) cause;
+                  throw new internal_error(String.valueOf(cause));
+                }
+            }
+        }
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Compute the lookahead of one component, once those of all components
+   *  leading to it are done, and give it to all of its items.
+   */
+  protected static void propagate_component(
+    int               c,
+    List<lalr_item>   items,
+    int[]             comp,
+    int[]             members,
+    int[][]           pred,
+    terminal_set[]    comp_la)
+    throws internal_error
+    {
+      terminal_set la = new terminal_set();
+      for (int v : members)
+        {
+          la.add(items.get(v).lookahead());
+          for (int u : pred[v])
+            if (comp[u] != c)
+              la.add(comp_la[comp[u]]);
+        }
+      for (int v : members)
+        {
+          lalr_item itm = items.get(v);
+          itm.lookahead().add(la);
+          itm.needs_propagation = false;
+        }
+      comp_la[c] = la;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Find the strongly connected components of a graph (Tarjan's algorithm,
+   *  without recursion).  Components are numbered in reverse topological
+   *  order.
+   * @param succ the graph (successors of each vertex).
+   * @param comp receives the component of each vertex.
+   * @return the number of components.
+   */
+  protected static int find_components(int[][] succ, int[] comp)
+    {
+      int n = succ.length;
+      int[] index = new int[n];
+      int[] low = new int[n];
+      int[] next_edge = new int[n];
+      boolean[] on_stack = new boolean[n];
+      int[] stack = new int[n];
+      int[] call_stack = new int[n];
+      int sp = 0, csp, counter = 0, num_comps = 0;
+
+      Arrays.fill(index, -1);
+      for (int root = 0; root < n; root++)
+        {
+          if (index[root] != -1) continue;
+
+          index[root] = low[root] = counter++;
+          stack[sp++] = root;
+          on_stack[root] = true;
+          csp = 0;
+          call_stack[csp++] = root;
+
+          while (csp > 0)
+            {
+              int v = call_stack[csp-1];
+              if (next_edge[v] < succ[v].length)
+                {
+                  int w = succ[v][next_edge[v]++];
+                  if (index[w] == -1)
+                    {
+                      index[w] = low[w] = counter++;
+                      stack[sp++] = w;
+                      on_stack[w] = true;
+                      call_stack[csp++] = w;
+                    }
+                  else if (on_stack[w])
+                    low[v] = Math.min(low[v], index[w]);
+                }
+              else
+                {
+                  csp--;
+                  if (csp > 0)
+                    {
+                      int u = call_stack[csp-1];
+                      low[u] = Math.min(low[u], low[v]);
+                    }
+                  if (low[v] == index[v])
+                    {
+                      int w;
+                      do
+                        {
+                          w = stack[--sp];
+                          on_stack[w] = false;
+                          comp[w] = num_comps;
+                        }
+                      while (w != v);
+                      num_comps++;
+                    }
+                }
+            }
+        }
+      return num_comps;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Reverse the edges of a graph. */
+  protected static int[][] reverse(int[][] succ)
+    {
+      int n = succ.length;
+      int[] count = new int[n];
+      for (int[] s : succ)
+        for (int w : s)
+          count[w]++;
+      int[][] pred = new int[n][];
+      for (int v = 0; v < n; v++)
+        pred[v] = new int[count[v]];
+      for (int v = 0; v < n; v++)
+        for (int w : succ[v])
+          pred[w][--count[w]] = v;
+      return pred;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Group the indexes of an array by value.
+   * @param key        the value for each index.
+   * @param num_groups one more than the largest value.
+   */
+  protected static int[][] group(int[] key, int num_groups)
+    {
+      int[] count = new int[num_groups];
+      for (int k : key)
+        count[k]++;
+      int[][] result = new int[num_groups][];
+      for (int g = 0; g < num_groups; g++)
+        result[g] = new int[count[g]];
+      for (int i = key.length - 1; i >= 0; i--)
+        result[key[i]][--count[key[i]]] = i;
+      return result;
+    }
+}
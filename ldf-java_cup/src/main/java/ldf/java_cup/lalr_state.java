@@ -58,20 +58,45 @@ public class lalr_state {
    */
   public lalr_state(lalr_item_set itms) throws internal_error
    {
-     /* don't allow null or duplicate item sets */
+     this(itms, true);
+   }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Constructor for building a state from a set of items, which is
+   *  optionally left out of the global collection (and without an index)
+   *  until register() is called.
+   * @param itms     the set of items that makes up this state.
+   * @param register whether to register the state right away.
+   */
+  protected lalr_state(lalr_item_set itms, boolean register)
+    throws internal_error
+   {
+     /* don't allow null item sets */
      if (itms == null)
        throw new internal_error(
          "Attempt to construct an LALR state from a null item set");
 
-     if (find_state(itms) != null)
+     /* store the items */
+     _items = itms;
+
+     if (register) register();
+   }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Assign a unique index to the state and add it to the global
+   *  collection, keyed with its item set.
+   */
+  protected void register() throws internal_error
+   {
+     /* don't allow duplicate item sets */
+     if (find_state(_items) != null)
        throw new internal_error(
          "Attempt to construct a duplicate LALR state");
 
      /* assign a unique index */
-      _index = next_index++;
-
-     /* store the items */
-     _items = itms;
+     _index = next_index++;
 
      /* add to the global collection, keyed with its item set */
      _all.put(_items,this);
@@ -90,8 +115,9 @@ public class lalr_state {
 
   //Hm Added clear  to clear all static fields
   public static void clear() {
-      _all.clear();
-      _all_kernels.clear();
+      /* see terminal.clear() */
+      _all = new Hashtable<lalr_item_set, lalr_state>();
+      _all_kernels = new Hashtable<lalr_item_set, lalr_state>();
       next_index=0;
   }
 
@@ -422,6 +448,28 @@ public class lalr_state {
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
+  /** Build an LALR viable prefix recognition machine given a start
+   *  production, using several threads.  The machine is identical to the
+   *  one built by build_machine(production): same states, numbered in the
+   *  same order, with the same transitions and lookaheads (hence the
+   *  generated tables are identical too).
+   *
+   * @param start_prod  the start production of the grammar
+   * @param num_threads how many threads to use (at most 1 means to build
+   *                    the machine serially)
+   * @see   ldf.java_cup.lalr_parallel_builder
+   */
+  public static lalr_state build_machine(production start_prod, int num_threads)
+    throws internal_error
+    {
+      if (num_threads <= 1)
+        return build_machine(start_prod);
+
+      return new lalr_parallel_builder(num_threads).build_machine(start_prod);
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
   /** Propagate lookahead sets out of this state. This recursively
    *  propagates to all items that have propagation links from some item
    *  in this state.
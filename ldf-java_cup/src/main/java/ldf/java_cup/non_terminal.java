@@ -65,8 +65,9 @@ public class non_terminal extends symbol {
 
   //Hm Added clear  to clear all static fields
   public static void clear() {
-      _all.clear();
-      _all_by_index.clear();
+      /* see terminal.clear() */
+      _all = new Hashtable<String, non_terminal>();
+      _all_by_index = new Hashtable<Integer, non_terminal>();
       next_index=0;
       next_nt=0;
   }
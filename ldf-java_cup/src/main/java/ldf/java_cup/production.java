@@ -236,7 +236,8 @@ public class production {
 
   //Hm Added clear  to clear all static fields
   public static void clear() {
-      _all.clear();
+      /* see terminal.clear() */
+      _all = new Hashtable<Integer, production>();
       next_index=0;
   }
 
@@ -405,16 +406,7 @@ public class production {
       sb.append("Symbol sym_");
       sb.append(labelname);
       sb.append(" = ");
-      sb.append(emit.pre("stack"));
-      if (offset == 0) {
-          sb.append(".peek()");
-      } else {
-          sb.append(".elementAt(");
-          sb.append(emit.pre("top"));
-          sb.append("-");
-          sb.append(offset);
-          sb.append(")");
-      }
+      sb.append(emit.stack_element(offset));
       sb.append(";\n");
 
       return sb.toString();
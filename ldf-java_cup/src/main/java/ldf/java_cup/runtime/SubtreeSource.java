@@ -0,0 +1,32 @@
+package ldf.java_cup.runtime;
+
+/**
+ * Source of subtrees from an earlier parse, which an incremental parse
+ * (see {@link lr_parser#parse_syntax}) can shift as a whole, instead of
+ * parsing that part of the input again. This is normally implemented by
+ * the scanner as well, since it has to skip the tokens of the subtrees.
+ *
+ * @author Cristian Harja
+ */
+public interface SubtreeSource {
+
+    /**
+     * <p>Called before each parse action. Returns a non-terminal from an
+     * earlier parse, starting with the given lookahead token, which the
+     * parser should shift in the given state; or {@code null}, if there
+     * isn't one.
+     * </p>
+     * <p>The subtree must be the one the parser would have built from
+     * that point on: the earlier parse must have started it in the same
+     * state, and the token following it must be the same as well (the
+     * actions of an LR parser only depend on those). If it returns a
+     * subtree, the next token returned by the scanner must be the one
+     * following it.
+     * </p>
+     *
+     * @param state     the current state of the parser
+     * @param lookahead the current lookahead token
+     */
+    Symbol subtree(int state, Symbol lookahead);
+
+}
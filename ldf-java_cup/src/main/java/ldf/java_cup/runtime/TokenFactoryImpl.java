@@ -95,6 +95,16 @@ public class TokenFactoryImpl extends SymbolFactoryImpl
         markRightPos(lineL, columnL, offsetL);
     }
 
+    /**
+     * Forgets about the previous input, so that the factory can be used
+     * for a new one.
+     */
+    public void reset() {
+        lastComment = null;
+        lastSymbol = null;
+        lastRightPosWasSet = false;
+    }
+
     /**
      * Marks the end position of whatever was the previously returned
      * object. Of course, it won't set it any more than once for an
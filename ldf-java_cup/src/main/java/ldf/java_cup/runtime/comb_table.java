@@ -0,0 +1,234 @@
+package ldf.java_cup.runtime;
+
+import java.util.Arrays;
+
+/** A parse table (action or reduce-goto) stored using row displacement
+ *  ("comb" compression), as an alternative to the row-by-row tables of
+ *  <code>lr_parser</code>, which have to be searched.  Looking up an entry
+ *  takes constant time:
+ *  <pre>
+ *    i = base[state] + sym;
+ *    result = (check[i] == state) ? value[i] : deflt[state];
+ *  </pre>
+ *  The rows of the original table are overlapped in the <code>check</code>
+ *  and <code>value</code> arrays, such that no two entries end up in the
+ *  same slot.  Each slot remembers (in <code>check</code>) which state it
+ *  belongs to; lookups which land in a slot belonging to another state
+ *  fall back to the default entry of their own row.
+ *
+ *  Tables are built by the parser generator (see {@link #pack}) and
+ *  embedded in the generated parser via {@link #to_short_arrays} and
+ *  {@link #from_short_arrays}.
+ *
+ * @see ldf.java_cup.runtime.lr_parser#action_comb()
+ * @see ldf.java_cup.runtime.lr_parser#reduce_comb()
+ * @author Cristian Harja
+ */
+public final class comb_table {
+
+  /** Offset of each row into <code>check</code> and <code>value</code>. */
+  private final int[] base;
+
+  /** The state which owns each slot (-1 for unused slots). */
+  private final short[] check;
+
+  /** The table entries. */
+  private final short[] value;
+
+  /** The default entry of each row. */
+  private final short[] deflt;
+
+  /*-----------------------------------------------------------*/
+  /*--- Constructor(s) ----------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  private comb_table(int[] base, short[] check, short[] value, short[] deflt)
+    {
+      this.base  = base;
+      this.check = check;
+      this.value = value;
+      this.deflt = deflt;
+    }
+
+  /*-----------------------------------------------------------*/
+  /*--- General Methods ---------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** Fetch an entry from the table.
+   * @param state the state (row) index.
+   * @param sym   the Symbol (column) index.
+   */
+  public short get(int state, int sym)
+    {
+      int i = base[state] + sym;
+      return check[i] == state ? value[i] : deflt[state];
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** The number of slots used to store the overlapped rows. */
+  public int size()
+    {
+      return check.length;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Build a comb table from a table in the row format used by
+   *  <code>lr_parser</code> (each row is a list of index, value pairs
+   *  terminated by a default entry, whose index is -1).  Rows are placed
+   *  in decreasing order of their number of entries, each at the lowest
+   *  offset where it doesn't collide with the rows already placed.
+   * @param rows        the table, one row per state.
+   * @param num_symbols the number of columns (terminals or non terminals).
+   */
+  public static comb_table pack(short[][] rows, int num_symbols)
+    {
+      int num_states = rows.length;
+      int[]   base  = new int[num_states];
+      short[] deflt = new short[num_states];
+
+      /* place big rows first; order is deterministic (ties by state) */
+      Integer[] order = new Integer[num_states];
+      for (int i = 0; i < num_states; i++)
+        order[i] = i;
+      final short[][] r = rows;
+      Arrays.sort(order, new java.util.Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          int la = r[a] == null ? 0 : r[a].length;
+          int lb = r[b] == null ? 0 : r[b].length;
+          if (la != lb) return lb - la;
+          return a - b;
+        }
+      });
+
+      short[] check = new short[Math.max(num_symbols, 16)];
+      short[] value = new short[check.length];
+      Arrays.fill(check, (short) -1);
+      int used = 0;        /* one past the last used slot */
+      int first_free = 0;  /* no free slots below this */
+
+      for (int k = 0; k < num_states; k++)
+        {
+          int state = order[k];
+          short[] row = rows[state];
+
+          /* the default entry is the last pair of the row */
+          deflt[state] = (row == null || row.length < 2) ?
+            (short) -1 : row[row.length-1];
+          int num_entries = (row == null) ? 0 : row.length/2 - 1;
+          if (num_entries <= 0)
+            {
+              base[state] = 0;
+              continue;
+            }
+
+          /* find the lowest offset where the row fits */
+          int min_sym = row[0];
+          for (int e = 0; e < num_entries; e++)
+            min_sym = Math.min(min_sym, row[2*e]);
+          int b = Math.max(first_free - min_sym, 0);
+          for (;; b++)
+            {
+              if (b + num_symbols > check.length)
+                {
+                  int len = Math.max(check.length * 2, b + num_symbols);
+                  check = grow(check, len, (short) -1);
+                  value = grow(value, len, (short) 0);
+                }
+              boolean fits = true;
+              for (int e = 0; e < num_entries && fits; e++)
+                fits = check[b + row[2*e]] == -1;
+              if (fits) break;
+            }
+
+          /* place it */
+          base[state] = b;
+          for (int e = 0; e < num_entries; e++)
+            {
+              check[b + row[2*e]] = (short) state;
+              value[b + row[2*e]] = row[2*e+1];
+            }
+          used = Math.max(used, b + num_symbols);
+          while (first_free < check.length && check[first_free] != -1)
+            first_free++;
+        }
+
+      /* every lookup must stay in bounds: base + sym < length */
+      for (int i = 0; i < num_states; i++)
+        used = Math.max(used, base[i] + num_symbols);
+      check = Arrays.copyOf(check, used);
+      value = Arrays.copyOf(value, used);
+      return new comb_table(base, check, value, deflt);
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  private static short[] grow(short[] a, int len, short fill)
+    {
+      int old_len = a.length;
+      a = Arrays.copyOf(a, len);
+      Arrays.fill(a, old_len, len, fill);
+      return a;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Rebuild the table in the row format used by <code>lr_parser</code>
+   *  (the inverse of {@link #pack}, up to the order of the entries).
+   * @param num_symbols the number of columns the table was packed with.
+   */
+  public short[][] to_rows(int num_symbols)
+    {
+      short[][] rows = new short[base.length][];
+      short[] temp = new short[2*num_symbols];
+      for (int state = 0; state < base.length; state++)
+        {
+          int n = 0;
+          for (int sym = 0; sym < num_symbols; sym++)
+            {
+              int i = base[state] + sym;
+              if (check[i] == state)
+                {
+                  temp[n++] = (short) sym;
+                  temp[n++] = value[i];
+                }
+            }
+          rows[state] = new short[n + 2];
+          System.arraycopy(temp, 0, rows[state], 0, n);
+          rows[state][n]   = -1;
+          rows[state][n+1] = deflt[state];
+        }
+      return rows;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Convert the table to a <code>short[][]</code> (which the generator
+   *  can embed in the parser the same way it does the other tables).
+   *  Row offsets are split into their low and high 16 bits.
+   */
+  public short[][] to_short_arrays()
+    {
+      short[] base_lo = new short[base.length];
+      short[] base_hi = new short[base.length];
+      for (int i = 0; i < base.length; i++)
+        {
+          base_lo[i] = (short) base[i];
+          base_hi[i] = (short) (base[i] >>> 16);
+        }
+      return new short[][] {base_lo, base_hi, check, value, deflt};
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Inverse of {@link #to_short_arrays}; used by generated parsers. */
+  public static comb_table from_short_arrays(short[][] sa)
+    {
+      short[] base_lo = sa[0], base_hi = sa[1];
+      int[] base = new int[base_lo.length];
+      for (int i = 0; i < base.length; i++)
+        base[i] = (base_lo[i] & 0xFFFF) | ((base_hi[i] & 0xFFFF) << 16);
+      return new comb_table(base, sa[2], sa[3], sa[4]);
+    }
+}
@@ -14,7 +14,7 @@ import java.util.Stack;
  *  To control the decision of whether to shift or reduce at any given point,
  *  the parser uses a state machine (the "viable prefix recognition machine"
  *  built by the parser generator).  The current state of the machine is placed
- *  on top of the parse stack (stored as part of a Symbol object representing
+ *  on top of the parse stack (stored alongside the Symbol object representing
  *  a terminal or non terminal).  The parse action table is consulted
  *  (using the current state and the current lookahead Symbol as indexes) to
  *  determine whether to shift or to reduce.  When the parser shifts, it
@@ -52,6 +52,9 @@ import java.util.Stack;
  *  <dd> Provides a reference to the parse action table.
  *  <dt> short[][] reduce_table()
  *  <dd> Provides a reference to the reduce-goto table.
+ *  <dt> parse_tables tables()
+ *  <dd> Provides all of the tables at once (decoded once, and shared by all
+ *       the instances of the generated parser).
  *  <dt> int start_state()
  *  <dd> Indicates the index of the start state.
  *  <dt> int start_production()
@@ -64,7 +67,10 @@ import java.util.Stack;
  *  <dd> Executes a piece of user supplied action code.  This always comes at
  *       the point of a reduce in the parse, so this code also allocates and
  *       fills in the left hand side non terminal Symbol object that is to be
- *       pushed onto the stack for the reduce.
+ *       pushed onto the stack for the reduce.  The parse stack is passed in
+ *       as an array; the version which takes a
+ *       <code>java.util.Stack</code> is what parsers generated by older
+ *       versions implement (newer ones have it forward to the array one).
  *  <dt> void init_actions()
  *  <dd> Code to initialize a special object that encapsulates user supplied
  *       actions (this object is used by do_action() to actually carry out the
@@ -102,6 +108,9 @@ import java.util.Stack;
  *  <dd> This method is called if syntax error recovery fails.  In the default
  *       implementation it invokes:<br>
  *         report_fatal_error("Couldn't repair and continue parse", null);
+ *  <dt> String non_terminal_name(int sym)
+ *  <dd> Provides the name of a non terminal, for the Symbols created by
+ *       parse_syntax() (which doesn't run the action code).
  *  </dl>
  *
  * @see     ldf.java_cup.runtime.Symbol
@@ -211,6 +220,59 @@ public abstract class lr_parser {
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
+  /** The action table in comb (row displacement) format, which allows
+   *  constant time lookups; only supplied by parsers generated with the
+   *  <code>-fast_tables</code> option.  When present, it is used instead of
+   *  <code>action_table()</code> (which such parsers only rebuild from it
+   *  on request).
+   *
+   * @see ldf.java_cup.runtime.comb_table
+   */
+  public comb_table action_comb() {return null;}
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** The reduce-goto table in comb (row displacement) format; only
+   *  supplied by parsers generated with the <code>-fast_tables</code>
+   *  option.  When present, it is used instead of <code>reduce_table()</code>
+   *  (which such parsers only rebuild from it on request).
+   *
+   * @see ldf.java_cup.runtime.comb_table
+   */
+  public comb_table reduce_comb() {return null;}
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** All of the tables above.  Generated parsers return an instance which
+   *  is created once (the first time it's needed) and shared by all the
+   *  instances of the parser; the default implementation (used by parsers
+   *  generated by older versions) collects the tables from the individual
+   *  accessors, on each call.
+   *
+   * @see ldf.java_cup.runtime.parse_tables
+   */
+  public parse_tables tables()
+    {
+      return new parse_tables(production_table(), action_table(),
+                              reduce_table(), action_comb(), reduce_comb());
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Set up the direct references to the tables, which drive the parser.
+   * @param t the tables.
+   */
+  protected void set_tables(parse_tables t)
+    {
+      production_tab  = t.production_table();
+      action_tab      = t.action_table();
+      reduce_tab      = t.reduce_table();
+      action_comb_tab = t.action_comb();
+      reduce_comb_tab = t.reduce_comb();
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
   /** The index of the start state (supplied by generated subclass). */
   public abstract int start_state();
 
@@ -233,11 +295,29 @@ public abstract class lr_parser {
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
+  /** Name of a non terminal (supplied by generated subclass).  This is
+   *  only needed by parse_syntax(), which creates the Symbols for non
+   *  terminals itself, instead of running the action code.
+   */
+  public String non_terminal_name(int sym) {return null;}
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
   /** Internal flag to indicate when parser should quit. */
   protected boolean _done_parsing = false;
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
+  /** Number of syntax errors found during the last parse. */
+  protected int error_count;
+
+  /** The number of syntax errors found during the last parse (including
+   *  the ones the parser recovered from).
+   */
+  public int error_count() {return error_count;}
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
   /** This method is called to indicate that the parser should quit.  This is
    *  normally called by an accept action, but can be used to cancel parsing
    *  early in other circumstances if desired.
@@ -262,8 +342,40 @@ public abstract class lr_parser {
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
-  /** The parse stack itself. */
-  protected Stack<Symbol> stack = new Stack<Symbol>();
+  /** The parse stack itself: the Symbols shifted so far, from the bottom
+   *  (index 0) to the top (index <code>tos</code>); the entries above
+   *  <code>tos</code> are null.  (This used to be a
+   *  <code>java.util.Stack</code>; subclasses which need one can use
+   *  <code>legacy_stack()</code>.)
+   */
+  protected Symbol[] stack = new Symbol[INITIAL_STACK_SIZE];
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** The parse state recorded with each Symbol on the parse stack (this
+   *  is parallel to <code>stack</code>); the current state is always
+   *  <code>state_stack[tos]</code>.
+   */
+  protected int[] state_stack = new int[INITIAL_STACK_SIZE];
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Initial size of the parse stack (it grows as needed). */
+  protected static final int INITIAL_STACK_SIZE = 64;
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Copy of the parse stack, as a <code>java.util.Stack</code> (see
+   *  legacy_stack()); created on first use.
+   */
+  private Stack<Symbol> legacy_stack;
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** The entries of the parse stack below this index haven't been popped
+   *  since legacy_stack() last brought its copy up to date.
+   */
+  private int unchanged_below;
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
@@ -282,6 +394,16 @@ public abstract class lr_parser {
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
+  /** Direct reference to the comb action table (if any). */
+  protected comb_table action_comb_tab;
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Direct reference to the comb reduce-goto table (if any). */
+  protected comb_table reduce_comb_tab;
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
   /** This is the scanner object used by the default implementation
    *  of scan() to get Symbols.  To avoid name conflicts with existing
    *  code, this field is private. [CSA/davidm] */
@@ -303,22 +425,140 @@ public abstract class lr_parser {
 
   /** Perform a bit of user supplied action code (supplied by generated
    *  subclass).  Actions are indexed by an internal action number assigned
-   *  at parser generation time.
+   *  at parser generation time.  This is the version called by the parser;
+   *  by default, it hands a copy of the parse stack to the
+   *  <code>java.util.Stack</code> based version (which is all that parsers
+   *  generated by older versions implement).
    *
    * @param act_num   the internal index of the action to be performed.
    * @param parser    the parser object we are acting for.
    * @param stack     the parse stack of that object.
    * @param top       the index of the top element of the parse stack.
    */
-  public abstract Symbol do_action(
+  public Symbol do_action(
     int       act_num,
     lr_parser parser,
-    Stack<Symbol>     stack,
+    Symbol[]  stack,
     int       top)
+    throws java.lang.Exception
+    {
+      return do_action(act_num, parser, legacy_stack(), top);
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Perform a bit of user supplied action code, with the parse stack
+   *  given as a <code>java.util.Stack</code> (see the other version).
+   *
+   * @param act_num   the internal index of the action to be performed.
+   * @param parser    the parser object we are acting for.
+   * @param stack     the parse stack of that object.
+   * @param top       the index of the top element of the parse stack.
+   */
+  public abstract Symbol do_action(
+    int           act_num,
+    lr_parser     parser,
+    Stack<Symbol> stack,
+    int           top)
     throws java.lang.Exception;
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
+  /** Whether reductions skip the action code (see parse_syntax()). */
+  private boolean syntax_only;
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Perform a reduction, returning the Symbol for the left hand side of
+   *  the production (which isn't pushed yet).  Normally, this runs the
+   *  action code of the production; when only building a syntax tree,
+   *  the Symbol is created here, through the symbol factory, and it has
+   *  no value.
+   *
+   * @param prod_num the production we are reducing with.
+   */
+  protected Symbol reduce(int prod_num) throws java.lang.Exception
+    {
+      if (!syntax_only)
+        return do_action(prod_num, this, stack, tos);
+
+      short lhs_sym_num = production_tab[prod_num][0];
+      short handle_size = production_tab[prod_num][1];
+      String name = non_terminal_name(lhs_sym_num);
+
+      /* the generated action code does this for the start production */
+      if (prod_num == start_production())
+        done_parsing();
+
+      if (handle_size == 0)
+        return getSymbolFactory().newEmptySymbol(
+          name, lhs_sym_num, stack[tos]);
+      return getSymbolFactory().newSymbol(
+        name, lhs_sym_num, stack[tos - handle_size + 1], stack[tos]);
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Push a Symbol onto the parse stack, growing it if needed.
+   *
+   * @param sym   the Symbol being shifted.
+   * @param state the state the parser goes to.
+   */
+  protected final void push(Symbol sym, int state)
+    {
+      if (++tos == stack.length)
+        {
+          stack       = java.util.Arrays.copyOf(stack, tos * 2);
+          state_stack = java.util.Arrays.copyOf(state_stack, tos * 2);
+        }
+      stack[tos]       = sym;
+      state_stack[tos] = state;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Pop Symbols off the parse stack, clearing their slots (so that a
+   *  parser which is reused doesn't keep them alive).
+   *
+   * @param n the number of Symbols to pop.
+   */
+  protected final void pop(int n)
+    {
+      for (; n > 0; n--)
+        stack[tos--] = null;
+      if (unchanged_below > tos + 1)
+        unchanged_below = tos + 1;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Empty the parse stack, before starting a new parse. */
+  protected final void reset_stack()
+    {
+      pop(tos + 1);
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** The parse stack, as a <code>java.util.Stack</code>.  The returned
+   *  object is a copy, which is only brought up to date by the next call
+   *  of this method (only the entries pushed since the previous call are
+   *  copied), and must not be modified.
+   */
+  protected Stack<Symbol> legacy_stack()
+    {
+      if (legacy_stack == null)
+        legacy_stack = new Stack<Symbol>();
+      int keep = Math.min(legacy_stack.size(), unchanged_below);
+      legacy_stack.setSize(keep);
+      for (int i = keep; i <= tos; i++)
+        legacy_stack.push(stack[i]);
+      unchanged_below = tos + 1;
+      return legacy_stack;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
   /** User code for initialization inside the parser.  Typically this
    *  initializes the scanner.  This is called before the parser requests
    *  the first Symbol.  Here this is just a placeholder for subclasses that
@@ -435,12 +675,17 @@ public abstract class lr_parser {
    *  entries in the table), and the list is terminated by a default entry
    *  (denoted with a Symbol index of -1).  To find the proper entry in a row
    *  we do a linear or binary search (depending on the size of the row).
+   *  If the parser also has a comb table, the entry is fetched from there
+   *  instead, in constant time.
    *
    * @param state the state index of the action being accessed.
    * @param sym   the Symbol index of the action being accessed.
    */
   protected final short get_action(int state, int sym)
     {
+      if (action_comb_tab != null)
+        return action_comb_tab.get(state, sym);
+
       short tag;
       int first, last, probe;
       short[] row = action_tab[state];
@@ -489,13 +734,17 @@ public abstract class lr_parser {
    *  Within each row, a list of index, value pairs are given (as sequential
    *  entries in the table), and the list is terminated by a default entry
    *  (denoted with a Symbol index of -1).  To find the proper entry in a row
-   *  we do a linear search.
+   *  we do a linear search.  If the parser also has a comb table, the entry
+   *  is fetched from there instead, in constant time.
    *
    * @param state the state index of the entry being accessed.
    * @param sym   the Symbol index of the entry being accessed.
    */
   protected final short get_reduce(int state, int sym)
     {
+      if (reduce_comb_tab != null)
+        return reduce_comb_tab.get(state, sym);
+
       short tag;
       short[] row = reduce_tab[state];
 
@@ -537,10 +786,8 @@ public abstract class lr_parser {
       short handle_size, lhs_sym_num;
 
       /* set up direct reference to tables to drive the parser */
-
-      production_tab = production_table();
-      action_tab     = action_table();
-      reduce_tab     = reduce_table();
+      set_tables(tables());
+      error_count = 0;
 
       /* initialize the action encapsulation object */
       init_actions();
@@ -552,9 +799,9 @@ public abstract class lr_parser {
       cur_token = scan();
 
       /* push dummy Symbol with start state to get us underway */
-      stack.removeAllElements();
-      stack.push(getSymbolFactory().startSymbol("START", 0, start_state()));
-      tos = 0;
+      reset_stack();
+      push(getSymbolFactory().startSymbol("START", 0, start_state()),
+           start_state());
 
       /* continue until we are told to stop */
       for (_done_parsing = false; !_done_parsing; )
@@ -566,7 +813,7 @@ public abstract class lr_parser {
           /* current state is always on the top of the stack */
 
           /* look up action out of the current state with the current input */
-          act = get_action(stack.peek().parse_state, cur_token.symCode);
+          act = get_action(state_stack[tos], cur_token.symCode);
 
           /* decode the action -- > 0 encodes shift */
           if (act > 0)
@@ -574,8 +821,7 @@ public abstract class lr_parser {
               /* shift to the encoded state by pushing it on the stack */
               cur_token.parse_state = act-1;
               cur_token.used_by_parser = true;
-              stack.push(cur_token);
-              tos++;
+              push(cur_token, act-1);
 
               /* advance to the next Symbol */
               cur_token = scan();
@@ -584,31 +830,28 @@ public abstract class lr_parser {
           else if (act < 0)
             {
               /* perform the action for the reduce */
-              lhs_sym = do_action((-act)-1, this, stack, tos);
+              lhs_sym = reduce((-act)-1);
 
               /* look up information about the production */
               lhs_sym_num = production_tab[(-act)-1][0];
               handle_size = production_tab[(-act)-1][1];
 
               /* pop the handle off the stack */
-              for (int i = 0; i < handle_size; i++)
-                {
-                  stack.pop();
-                  tos--;
-                }
+              pop(handle_size);
 
               /* look up the state to go to from the one popped back to */
-              act = get_reduce(stack.peek().parse_state, lhs_sym_num);
+              act = get_reduce(state_stack[tos], lhs_sym_num);
 
               /* shift to that state */
               lhs_sym.parse_state = act;
               lhs_sym.used_by_parser = true;
-              stack.push(lhs_sym);
-              tos++;
+              push(lhs_sym, act);
             }
           /* finally if the entry is zero, we have an error */
           else if (act == 0)
             {
+              error_count++;
+
               /* call user syntax error reporting routine */
               syntax_error(cur_token);
 
@@ -621,7 +864,7 @@ public abstract class lr_parser {
                   /* just in case that wasn't fatal enough, end parse */
                   done_parsing();
                 } else {
-                  lhs_sym = stack.peek();
+                  lhs_sym = stack[tos];
                 }
             }
         }
@@ -645,19 +888,19 @@ public abstract class lr_parser {
   /** Dump the parse stack for debugging purposes. */
   public void dump_stack()
     {
-      if (stack == null)
+      if (tos < 0)
         {
-          debug_message("# Stack dump requested, but stack is null");
+          debug_message("# Stack dump requested, but stack is empty");
           return;
         }
 
       debug_message("============ Parse Stack Dump ============");
 
       /* dump the stack */
-      for (int i=0; i<stack.size(); i++)
+      for (int i=0; i<=tos; i++)
         {
-          debug_message("Symbol: " + stack.elementAt(i).symCode +
-                        " State: " + stack.elementAt(i).parse_state);
+          debug_message("Symbol: " + stack[i].symCode +
+                        " State: " + state_stack[i]);
         }
       debug_message("==========================================");
     }
@@ -694,14 +937,13 @@ public abstract class lr_parser {
    */
   public void debug_stack() {
       StringBuffer sb=new StringBuffer("## STACK:");
-      for (int i=0; i<stack.size(); i++) {
-          Symbol s = stack.elementAt(i);
+      for (int i=0; i<=tos; i++) {
           sb.append(" <state ")
-        .append(s.parse_state)
+        .append(state_stack[i])
         .append(", sym ")
-        .append(s.symCode)
+        .append(stack[i].symCode)
         .append(">");
-          if ((i%3)==2 || (i==(stack.size()-1))) {
+          if ((i%3)==2 || (i==tos)) {
               debug_message(sb.toString());
               sb = new StringBuffer("         ");
           }
@@ -728,9 +970,8 @@ public abstract class lr_parser {
       short handle_size, lhs_sym_num;
 
       /* set up direct reference to tables to drive the parser */
-      production_tab = production_table();
-      action_tab     = action_table();
-      reduce_tab     = reduce_table();
+      set_tables(tables());
+      error_count = 0;
 
       debug_message("# Initializing parser");
 
@@ -746,9 +987,9 @@ public abstract class lr_parser {
       debug_message("# Current Symbol is #" + cur_token.symCode);
 
       /* push dummy Symbol with start state to get us underway */
-      stack.removeAllElements();
-      stack.push(getSymbolFactory().startSymbol("START",0, start_state()));
-      tos = 0;
+      reset_stack();
+      push(getSymbolFactory().startSymbol("START",0, start_state()),
+           start_state());
 
       /* continue until we are told to stop */
       for (_done_parsing = false; !_done_parsing; )
@@ -761,7 +1002,7 @@ public abstract class lr_parser {
           //debug_stack();
 
           /* look up action out of the current state with the current input */
-          act = get_action(stack.peek().parse_state, cur_token.symCode);
+          act = get_action(state_stack[tos], cur_token.symCode);
 
           /* decode the action -- > 0 encodes shift */
           if (act > 0)
@@ -770,8 +1011,7 @@ public abstract class lr_parser {
               cur_token.parse_state = act-1;
               cur_token.used_by_parser = true;
               debug_shift(cur_token);
-              stack.push(cur_token);
-              tos++;
+              push(cur_token, act-1);
 
               /* advance to the next Symbol */
               cur_token = scan();
@@ -781,7 +1021,7 @@ public abstract class lr_parser {
           else if (act < 0)
             {
               /* perform the action for the reduce */
-              lhs_sym = do_action((-act)-1, this, stack, tos);
+              lhs_sym = reduce((-act)-1);
 
               /* look up information about the production */
               lhs_sym_num = production_tab[(-act)-1][0];
@@ -790,29 +1030,26 @@ public abstract class lr_parser {
               debug_reduce((-act)-1, lhs_sym_num, handle_size);
 
               /* pop the handle off the stack */
-              for (int i = 0; i < handle_size; i++)
-                {
-                  stack.pop();
-                  tos--;
-                }
+              pop(handle_size);
 
               /* look up the state to go to from the one popped back to */
-              act = get_reduce(stack.peek().parse_state, lhs_sym_num);
+              act = get_reduce(state_stack[tos], lhs_sym_num);
               debug_message("# Reduce rule: top state " +
-                             stack.peek().parse_state +
+                             state_stack[tos] +
                              ", lhs sym " + lhs_sym_num + " -> state " + act);
 
               /* shift to that state */
               lhs_sym.parse_state = act;
               lhs_sym.used_by_parser = true;
-              stack.push(lhs_sym);
-              tos++;
+              push(lhs_sym, act);
 
               debug_message("# Goto state #" + act);
             }
           /* finally if the entry is zero, we have an error */
           else if (act == 0)
             {
+              error_count++;
+
               /* call user syntax error reporting routine */
               syntax_error(cur_token);
 
@@ -825,13 +1062,176 @@ public abstract class lr_parser {
                   /* just in case that wasn't fatal enough, end parse */
                   done_parsing();
                 } else {
-                  lhs_sym = stack.peek();
+                  lhs_sym = stack[tos];
                 }
             }
         }
       return lhs_sym;
     }
 
+  /*-----------------------------------------------------------*/
+  /*--- Syntax trees ------------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** Parse without running the action code: each reduction only creates
+   *  the Symbol for the left hand side of its production (through the
+   *  symbol factory, which can link it to the Symbols it covers, so as
+   *  to build a syntax tree), without a value.  This is otherwise the
+   *  same as parse(), unless it's given a stack to start from, or some
+   *  subtrees to reuse, in which case it's an incremental parse:<ul>
+   *
+   *  <li>the parse starts from a parse stack restored from an earlier
+   *  parse (of some text which is the same up to the point where the
+   *  scanner starts), instead of the start state;
+   *
+   *  <li>before each parse action, the parser asks the subtree source
+   *  for a non terminal of an earlier parse (starting with the current
+   *  lookahead), which it can shift as a whole, instead of parsing that
+   *  part of the input again;
+   *
+   *  <li>the parse stops at the first syntax error, with a null result
+   *  (error recovery would need to see the tokens ahead, which may be
+   *  part of the reused subtrees); the input should then be parsed again
+   *  from the start.</ul>
+   *
+   *  The scanner may return Symbols of the earlier parse (the check for
+   *  recycled Symbols is off, in that case).
+   *
+   * @param prefix the Symbols of the stack to start from, bottom first
+   *               (each of them with the parse state it was pushed with),
+   *               or null to start from the start state.
+   * @param source where subtrees to reuse come from (or null).
+   * @return the Symbol for the start production (null if the parse has
+   *         been cut short).
+   */
+  public Symbol parse_syntax(Symbol[] prefix, SubtreeSource source)
+    throws java.lang.Exception
+    {
+      /* the current action code */
+      int act;
+
+      /* the Symbol/stack element returned by a reduce */
+      Symbol lhs_sym = null;
+
+      /* information about production being reduced with */
+      short handle_size, lhs_sym_num;
+
+      /* whether this is an incremental parse */
+      boolean incremental = prefix != null || source != null;
+
+      /* set up direct reference to tables to drive the parser */
+      set_tables(tables());
+      error_count = 0;
+
+      /* initialize the action encapsulation object */
+      init_actions();
+
+      /* do user initialization */
+      user_init();
+
+      syntax_only = true;
+      try {
+        /* get the first token */
+        cur_token = scan();
+
+        /* push the Symbols to start from (or the usual dummy Symbol) */
+        reset_stack();
+        if (prefix == null)
+          push(getSymbolFactory().startSymbol("START", 0, start_state()),
+               start_state());
+        else
+          for (Symbol s : prefix)
+            push(s, s.parse_state);
+
+        for (_done_parsing = false; !_done_parsing; )
+          {
+            /* Check current token for freshness. */
+            if (cur_token.used_by_parser && !incremental)
+              throw new Error("Symbol recycling detected (fix your scanner).");
+
+            /* shift a whole subtree, if there's one to reuse */
+            if (source != null)
+              {
+                Symbol subtree = source.subtree(state_stack[tos], cur_token);
+                if (subtree != null)
+                  {
+                    act = get_reduce(state_stack[tos], subtree.symCode);
+                    subtree.parse_state = act;
+                    subtree.used_by_parser = true;
+                    push(subtree, act);
+
+                    /* the scanner continues after the subtree */
+                    cur_token = scan();
+                    continue;
+                  }
+              }
+
+            /* look up action out of the current state with the current input */
+            act = get_action(state_stack[tos], cur_token.symCode);
+
+            /* decode the action -- > 0 encodes shift */
+            if (act > 0)
+              {
+                /* shift to the encoded state by pushing it on the stack */
+                cur_token.parse_state = act-1;
+                cur_token.used_by_parser = true;
+                push(cur_token, act-1);
+
+                /* advance to the next Symbol */
+                cur_token = scan();
+              }
+            /* if its less than zero, then it encodes a reduce action */
+            else if (act < 0)
+              {
+                /* create the Symbol for the reduce */
+                lhs_sym = reduce((-act)-1);
+
+                /* look up information about the production */
+                lhs_sym_num = production_tab[(-act)-1][0];
+                handle_size = production_tab[(-act)-1][1];
+
+                /* pop the handle off the stack */
+                pop(handle_size);
+
+                /* look up the state to go to from the one popped back to */
+                act = get_reduce(state_stack[tos], lhs_sym_num);
+
+                /* shift to that state */
+                lhs_sym.parse_state = act;
+                lhs_sym.used_by_parser = true;
+                push(lhs_sym, act);
+              }
+            /* finally if the entry is zero, we have an error */
+            else if (act == 0)
+              {
+                error_count++;
+
+                /* leave it to a full parse */
+                if (incremental)
+                  return null;
+
+                /* call user syntax error reporting routine */
+                syntax_error(cur_token);
+
+                /* try to error recover */
+                if (!error_recovery(false))
+                  {
+                    /* if that fails give up with a fatal syntax error */
+                    unrecovered_syntax_error(cur_token);
+
+                    /* just in case that wasn't fatal enough, end parse */
+                    done_parsing();
+                  } else {
+                    lhs_sym = stack[tos];
+                  }
+              }
+          }
+        return lhs_sym;
+      } finally {
+        syntax_only = false;
+      }
+    }
+
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
   /* Error recovery code */
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
@@ -920,7 +1320,7 @@ public abstract class lr_parser {
   protected boolean shift_under_error()
     {
       /* is there a shift under error Symbol */
-      return get_action(stack.peek().parse_state, error_sym()) > 0;
+      return get_action(state_stack[tos], error_sym()) > 0;
     }
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
@@ -940,7 +1340,7 @@ public abstract class lr_parser {
       if (debug) debug_message("# Finding recovery state on stack");
 
       /* Remember the right-position of the top symbol on the stack */
-      Symbol right = stack.peek();// TUM 20060327 removed .right
+      Symbol right = stack[tos];// TUM 20060327 removed .right
       Symbol left  = right;// TUM 20060327 removed .left
 
       /* pop down until we can shift under error Symbol */
@@ -949,12 +1349,12 @@ public abstract class lr_parser {
           /* pop the stack */
           if (debug)
             debug_message("# Pop stack by one, state was # " +
-                          stack.peek().parse_state);
-          left = stack.pop(); // TUM 20060327 removed .left
-          tos--;
+                          state_stack[tos]);
+          left = stack[tos]; // TUM 20060327 removed .left
+          pop(1);
 
           /* if we have hit bottom, we fail */
-          if (stack.empty())
+          if (tos < 0)
             {
               if (debug) debug_message("# No recovery state found on stack");
               return false;
@@ -962,11 +1362,11 @@ public abstract class lr_parser {
         }
 
       /* state on top of the stack can shift under error, find the shift */
-      act = get_action(stack.peek().parse_state, error_sym());
+      act = get_action(state_stack[tos], error_sym());
       if (debug)
         {
           debug_message("# Recover state found (#" +
-                        stack.peek().parse_state + ")");
+                        state_stack[tos] + ")");
           debug_message("# Shifting on error to state #" + (act-1));
         }
 
@@ -974,8 +1374,7 @@ public abstract class lr_parser {
       error_token = getSymbolFactory().newSymbol("ERROR",error_sym(), left, right);
       error_token.parse_state = act-1;
       error_token.used_by_parser = true;
-      stack.push(error_token);
-      tos++;
+      push(error_token, act-1);
 
       return true;
     }
@@ -1068,7 +1467,7 @@ public abstract class lr_parser {
       short lhs, rhs_size;
 
       /* create a virtual stack from the real parse stack */
-      virtual_parse_stack vstack = new virtual_parse_stack(stack);
+      virtual_parse_stack vstack = new virtual_parse_stack(state_stack, tos);
 
       /* parse until we fail or get past the lookahead input */
       for (;;)
@@ -1152,7 +1551,7 @@ public abstract class lr_parser {
           debug_message("# Reparsing saved input with actions");
           debug_message("# Current Symbol is #" + cur_err_token().symCode);
           debug_message("# Current state is #" +
-                        stack.peek().parse_state);
+                        state_stack[tos]);
         }
 
       /* continue until we accept or have read all lookahead input */
@@ -1162,7 +1561,7 @@ public abstract class lr_parser {
 
           /* look up action out of the current state with the current input */
           act =
-            get_action(stack.peek().parse_state, cur_err_token().symCode);
+            get_action(state_stack[tos], cur_err_token().symCode);
 
           /* decode the action -- > 0 encodes shift */
           if (act > 0)
@@ -1171,8 +1570,7 @@ public abstract class lr_parser {
               cur_err_token().parse_state = act-1;
               cur_err_token().used_by_parser = true;
               if (debug) debug_shift(cur_err_token());
-              stack.push(cur_err_token());
-              tos++;
+              push(cur_err_token(), act-1);
 
               /* advance to the next Symbol, if there is none, we are done */
               if (!advance_lookahead())
@@ -1196,7 +1594,7 @@ public abstract class lr_parser {
           else if (act < 0)
             {
               /* perform the action for the reduce */
-              lhs_sym = do_action((-act)-1, this, stack, tos);
+              lhs_sym = reduce((-act)-1);
 
               /* look up information about the production */
               lhs_sym_num = production_tab[(-act)-1][0];
@@ -1205,20 +1603,15 @@ public abstract class lr_parser {
               if (debug) debug_reduce((-act)-1, lhs_sym_num, handle_size);
 
               /* pop the handle off the stack */
-              for (int i = 0; i < handle_size; i++)
-                {
-                  stack.pop();
-                  tos--;
-                }
+              pop(handle_size);
 
               /* look up the state to go to from the one popped back to */
-              act = get_reduce(stack.peek().parse_state, lhs_sym_num);
+              act = get_reduce(state_stack[tos], lhs_sym_num);
 
               /* shift to that state */
               lhs_sym.parse_state = act;
               lhs_sym.used_by_parser = true;
-              stack.push(lhs_sym);
-              tos++;
+              push(lhs_sym, act);
 
               if (debug) debug_message("# Goto state #" + act);
 
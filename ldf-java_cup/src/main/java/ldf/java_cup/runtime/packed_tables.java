@@ -0,0 +1,205 @@
+package ldf.java_cup.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/** The parse tables of a generated parser, stored in a binary resource
+ *  file next to it (instead of string literals in the parser class, which
+ *  have to be decoded char by char, and which count against the method
+ *  size and constant pool limits of the class file).
+ *
+ *  The file holds a list of <code>short[][]</code> tables, written as
+ *  variable length integers (7 bits per byte, least significant first):
+ *  <pre>
+ *    magic ("CUPT"), version, number of tables
+ *    for each table: number of rows
+ *      for each row: length, entries
+ *  </pre>
+ *  Rows of the action and reduce-goto tables are lists of index, value
+ *  pairs, with the indices in increasing order; so each entry is stored
+ *  as the difference from the entry two positions before it, zig-zag
+ *  encoded (small negative differences take a single byte as well).
+ *
+ *  Generated parsers load their tables with {@link #load}, which reads
+ *  the whole file at once (memory-mapping it if it's a plain file).
+ *
+ * @see ldf.java_cup.emit
+ * @author Cristian Harja
+ */
+public final class packed_tables {
+
+  /** First bytes of the file ("CUPT"). */
+  public static final int MAGIC = 0x43555054;
+
+  /** Version of the format. */
+  public static final int VERSION = 1;
+
+  private packed_tables() { }
+
+  /*-----------------------------------------------------------*/
+  /*--- Writing -----------------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** Write the given tables (used by the parser generator).
+   * @param out    stream to write to (not closed).
+   * @param tables the tables, in the order in which they're loaded.
+   */
+  public static void write(OutputStream out, List<short[][]> tables)
+    throws IOException
+    {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      buf.write(MAGIC >>> 24);
+      buf.write(MAGIC >>> 16);
+      buf.write(MAGIC >>> 8);
+      buf.write(MAGIC);
+      write_varint(buf, VERSION);
+      write_varint(buf, tables.size());
+      for (short[][] table : tables)
+        {
+          write_varint(buf, table.length);
+          for (short[] row : table)
+            {
+              write_varint(buf, row.length);
+              for (int j = 0; j < row.length; j++)
+                {
+                  int delta = row[j] - (j >= 2 ? row[j-2] : 0);
+                  write_varint(buf, (delta << 1) ^ (delta >> 31));
+                }
+            }
+        }
+      buf.writeTo(out);
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  private static void write_varint(ByteArrayOutputStream out, int value)
+    {
+      while ((value & ~0x7F) != 0)
+        {
+          out.write((value & 0x7F) | 0x80);
+          value >>>= 7;
+        }
+      out.write(value);
+    }
+
+  /*-----------------------------------------------------------*/
+  /*--- Reading -----------------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** Load the tables of a generated parser.
+   * @param owner    the parser class.
+   * @param resource name of the file, relative to the parser class.
+   * @throws IllegalStateException if the file is missing or invalid.
+   */
+  public static short[][][] load(Class<?> owner, String resource)
+    {
+      URL url = owner.getResource(resource);
+      if (url == null)
+        throw new IllegalStateException(
+          "Parse tables not found: " + resource);
+      try {
+        return read(map_or_read(url));
+      } catch (IOException e) {
+        throw new IllegalStateException(
+          "Can't read parse tables: " + resource, e);
+      }
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  private static ByteBuffer map_or_read(URL url) throws IOException
+    {
+      if ("file".equals(url.getProtocol()))
+        {
+          File file;
+          try {
+            file = new File(url.toURI());
+          } catch (URISyntaxException e) {
+            file = new File(url.getPath());
+          }
+          RandomAccessFile raf = new RandomAccessFile(file, "r");
+          try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY,
+                               0, channel.size());
+          } finally {
+            raf.close();
+          }
+        }
+
+      /* e.g. inside a jar */
+      InputStream in = url.openStream();
+      try {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] tmp = new byte[8192];
+        int n;
+        while ((n = in.read(tmp)) != -1)
+          buf.write(tmp, 0, n);
+        return ByteBuffer.wrap(buf.toByteArray());
+      } finally {
+        in.close();
+      }
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Decode tables written by {@link #write}.
+   * @param buf the contents of the file (read from its position).
+   * @throws IllegalStateException if the data isn't valid.
+   */
+  public static short[][][] read(ByteBuffer buf)
+    {
+      try {
+        if (buf.getInt() != MAGIC)
+          throw new IllegalStateException("Not a parse table file");
+        int version = read_varint(buf);
+        if (version != VERSION)
+          throw new IllegalStateException(
+            "Unsupported parse table version: " + version);
+
+        short[][][] tables = new short[read_varint(buf)][][];
+        for (int t = 0; t < tables.length; t++)
+          {
+            short[][] table = new short[read_varint(buf)][];
+            for (int i = 0; i < table.length; i++)
+              {
+                short[] row = new short[read_varint(buf)];
+                for (int j = 0; j < row.length; j++)
+                  {
+                    int z = read_varint(buf);
+                    int delta = (z >>> 1) ^ -(z & 1);
+                    row[j] = (short) (delta + (j >= 2 ? row[j-2] : 0));
+                  }
+                table[i] = row;
+              }
+            tables[t] = table;
+          }
+        return tables;
+      } catch (java.nio.BufferUnderflowException e) {
+        throw new IllegalStateException("Truncated parse table file");
+      }
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  private static int read_varint(ByteBuffer buf)
+    {
+      int result = 0;
+      for (int shift = 0; shift < 35; shift += 7)
+        {
+          byte b = buf.get();
+          result |= (b & 0x7F) << shift;
+          if (b >= 0) return result;
+        }
+      throw new IllegalStateException("Invalid parse table file");
+    }
+}
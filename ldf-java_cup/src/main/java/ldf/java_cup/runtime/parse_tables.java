@@ -0,0 +1,69 @@
+package ldf.java_cup.runtime;
+
+/** The parse tables of a grammar.  Generated parsers decode their tables
+ *  once, the first time they're needed, and share a single instance of
+ *  this class between all of their instances (see
+ *  {@link lr_parser#tables()}), so that creating a parser costs little
+ *  more than allocating its parse stack.
+ *
+ *  The tables are shared, so they must not be modified; this class only
+ *  exposes them (without copying) for the benefit of the parse loop.
+ *
+ * @author Cristian Harja
+ */
+public final class parse_tables {
+
+  private final short[][] production_tab;
+  private final short[][] action_tab;
+  private final short[][] reduce_tab;
+  private final comb_table action_comb_tab;
+  private final comb_table reduce_comb_tab;
+
+  /*-----------------------------------------------------------*/
+  /*--- Constructor(s) ----------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** Full constructor.
+   * @param production_tab the production table.
+   * @param action_tab     the action table (or null, if the comb one
+   *                       is given).
+   * @param reduce_tab     the reduce-goto table (or null, if the comb
+   *                       one is given).
+   * @param action_comb    the comb-packed action table (or null).
+   * @param reduce_comb    the comb-packed reduce-goto table (or null).
+   */
+  public parse_tables(
+    short[][]  production_tab,
+    short[][]  action_tab,
+    short[][]  reduce_tab,
+    comb_table action_comb,
+    comb_table reduce_comb)
+    {
+      this.production_tab  = production_tab;
+      this.action_tab      = action_tab;
+      this.reduce_tab      = reduce_tab;
+      this.action_comb_tab = action_comb;
+      this.reduce_comb_tab = reduce_comb;
+    }
+
+  /*-----------------------------------------------------------*/
+  /*--- Access to the tables ----------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** The production table (see {@link lr_parser#production_table()}). */
+  public short[][] production_table() {return production_tab;}
+
+  /** The action table (see {@link lr_parser#action_table()}), or null
+   *  if only the comb-packed one is kept. */
+  public short[][] action_table() {return action_tab;}
+
+  /** The reduce-goto table (see {@link lr_parser#reduce_table()}), or
+   *  null if only the comb-packed one is kept. */
+  public short[][] reduce_table() {return reduce_tab;}
+
+  /** The comb-packed action table, or null. */
+  public comb_table action_comb() {return action_comb_tab;}
+
+  /** The comb-packed reduce-goto table, or null. */
+  public comb_table reduce_comb() {return reduce_comb_tab;}
+}
@@ -23,33 +23,69 @@ public class virtual_parse_stack {
   /*--- Constructor(s) ----------------------------------------*/
   /*-----------------------------------------------------------*/
 
-  /** Constructor to build a virtual stack out of a real stack. */
-  public virtual_parse_stack(Stack<Symbol> shadowing_stack)
+  /** Constructor to build a virtual stack out of the states of a real
+   *  stack.
+   * @param shadowing_states the states on the real stack.
+   * @param top              the index of the top of the real stack.
+   */
+  public virtual_parse_stack(int[] shadowing_states, int top)
           throws java.lang.Exception
     {
       /* sanity check */
-      if (shadowing_stack == null)
+      if (shadowing_states == null)
         throw new Exception(
           "Internal parser error: attempt to create null virtual stack");
 
       /* set up our internals */
-      real_stack = shadowing_stack;
-      vstack     = new Stack<Integer>();
-      real_next  = 0;
+      real_states = shadowing_states;
+      real_top    = top;
+      vstack      = new int[8];
+      vtop        = -1;
+      real_next   = 0;
 
       /* get one element onto the virtual portion of the stack */
       get_from_real();
     }
 
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Constructor to build a virtual stack out of a real stack of Symbols
+   *  (using the parse state recorded in each of them).
+   */
+  public virtual_parse_stack(Stack<Symbol> shadowing_stack)
+          throws java.lang.Exception
+    {
+      this(states_of(shadowing_stack), size_of(shadowing_stack) - 1);
+    }
+
+  private static int[] states_of(Stack<Symbol> stack)
+    {
+      if (stack == null) return null;
+      int[] states = new int[stack.size()];
+      for (int i = 0; i < states.length; i++)
+        states[i] = stack.elementAt(i).parse_state;
+      return states;
+    }
+
+  private static int size_of(Stack<Symbol> stack)
+    {
+      return stack == null ? 0 : stack.size();
+    }
+
   /*-----------------------------------------------------------*/
   /*--- (Access to) Instance Variables ------------------------*/
   /*-----------------------------------------------------------*/
 
-  /** The real stack that we shadow.  This is accessed when we move off
-   *  the bottom of the virtual portion of the stack, but is always left
-   *  unmodified.
+  /** The states of the real stack that we shadow.  This is accessed when
+   *  we move off the bottom of the virtual portion of the stack, but is
+   *  always left unmodified.
    */
-  protected Stack<Symbol> real_stack;
+  protected int[] real_states;
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** The index of the top of the real stack. */
+  protected int real_top;
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
@@ -61,13 +97,18 @@ public class virtual_parse_stack {
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
-  /** The virtual top portion of the stack.  This stack contains Integer
-   *  objects with state numbers.  This stack shadows the top portion
-   *  of the real stack within the area that has been modified (via operations
-   *  on the virtual stack).  When this portion of the stack becomes empty we
-   *  transfer elements from the underlying stack onto this stack.
+  /** The virtual top portion of the stack.  This stack contains state
+   *  numbers.  This stack shadows the top portion of the real stack within
+   *  the area that has been modified (via operations on the virtual stack).
+   *  When this portion of the stack becomes empty we transfer elements from
+   *  the underlying stack onto this stack.
    */
-  protected Stack<Integer> vstack;
+  protected int[] vstack;
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** The index of the top of the virtual stack (-1 if empty). */
+  protected int vtop;
 
   /*-----------------------------------------------------------*/
   /*--- General Methods ---------------------------------------*/
@@ -78,19 +119,19 @@ public class virtual_parse_stack {
    */
   protected void get_from_real()
     {
-      Symbol stack_sym;
+      int state;
 
       /* don't transfer if the real stack is empty */
-      if (real_next >= real_stack.size()) return;
+      if (real_next > real_top) return;
 
-      /* get a copy of the first Symbol we have not transfered */
-      stack_sym = real_stack.elementAt(real_stack.size()-1-real_next);
+      /* get the first state we have not transfered */
+      state = real_states[real_top-real_next];
 
       /* record the transfer */
       real_next++;
 
-      /* put the state number from the Symbol onto the virtual stack */
-      vstack.push(stack_sym.parse_state);
+      /* put the state number onto the virtual stack */
+      push(state);
     }
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
@@ -100,7 +141,7 @@ public class virtual_parse_stack {
     {
       /* if vstack is empty then we were unable to transfer onto it and
          the whole thing is empty. */
-      return vstack.empty();
+      return vtop < 0;
     }
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
@@ -108,11 +149,11 @@ public class virtual_parse_stack {
   /** Return value on the top of the stack (without popping it). */
   public int top() throws java.lang.Exception
     {
-      if (vstack.empty())
+      if (vtop < 0)
         throw new Exception(
                   "Internal parser error: top() called on empty virtual stack");
 
-      return vstack.peek();
+      return vstack[vtop];
     }
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
@@ -120,15 +161,15 @@ public class virtual_parse_stack {
   /** Pop the stack. */
   public void pop() throws java.lang.Exception
     {
-      if (vstack.empty())
+      if (vtop < 0)
         throw new Exception(
                   "Internal parser error: pop from empty virtual stack");
 
       /* pop it */
-      vstack.pop();
+      vtop--;
 
       /* if we are now empty transfer an element (if there is one) */
-      if (vstack.empty())
+      if (vtop < 0)
         get_from_real();
     }
 
@@ -137,7 +178,9 @@ public class virtual_parse_stack {
   /** Push a state number onto the stack. */
   public void push(int state_num)
     {
-      vstack.push(state_num);
+      if (++vtop == vstack.length)
+        vstack = java.util.Arrays.copyOf(vstack, vtop * 2);
+      vstack[vtop] = state_num;
     }
 
   /*-----------------------------------------------------------*/
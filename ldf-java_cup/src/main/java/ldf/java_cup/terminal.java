@@ -86,8 +86,11 @@ public class terminal extends symbol {
 
   //Hm Added clear  to clear all static fields
   public static void clear() {
-      _all.clear();
-      _all_by_index.clear();
+      /* new tables, rather than emptied ones (which keep their capacity),
+         so that a reused generator enumerates the symbols in the same
+         order as a fresh one */
+      _all = new Hashtable<String, terminal>();
+      _all_by_index = new Hashtable<Integer, terminal>();
       next_index=0;
       EOF = new terminal("EOF");
       error = new terminal ("error");